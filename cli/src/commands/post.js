@@ -5,7 +5,7 @@
 import chalk from 'chalk';
 import { validateFile, validatePassword, handleValidationError } from '../utils/validation.js';
 import { showInfo, showError, createSpinner } from '../utils/progress.js';
-import { uploadFile, checkServiceHealth } from '../services/apiClient.js';
+import { uploadFile, uploadDirectory, relayFile, checkServiceHealth } from '../services/apiClient.js';
 import { getFileInfo, displayFileInfo, displayUploadResult } from '../services/fileService.js';
 import { config } from '../utils/config.js';
 
@@ -18,8 +18,8 @@ export async function postCommand(filePath, options) {
   try {
     console.log(chalk.cyan('🚀 ShareIO - File Upload\n'));
 
-    // Extract options (only password is available now)
-    const { pass: password } = options;
+    // Extract options
+    const { pass: password, live } = options;
 
     // Validate inputs
     const fileValidation = await validateFile(filePath);
@@ -27,6 +27,10 @@ export async function postCommand(filePath, options) {
       handleValidationError(fileValidation.error);
     }
 
+    if (live && fileValidation.isDirectory) {
+      handleValidationError('Directories can\'t be streamed live, share them without --live');
+    }
+
     const passwordValidation = validatePassword(password);
     if (!passwordValidation.isValid) {
       handleValidationError(passwordValidation.error);
@@ -51,6 +55,22 @@ export async function postCommand(filePath, options) {
       process.exit(1);
     }
 
+    if (live) {
+      // Nothing is stored: the file streams to the first receiver and the code is gone after that
+      const spinner = createSpinner('📡 Creating live share...');
+      const relayResult = await relayFile(fileValidation.path, passwordValidation.password, (fileCode) => {
+        const passHint = passwordValidation.password ? ' --pass YOUR_PASSWORD' : '';
+        spinner.updateText(`📡 Waiting for the receiver, run: npx liteshare get ${fileCode}${passHint}`);
+      });
+      if (relayResult.success) {
+        spinner.succeed(`✅ Streamed ${fileInfoResult.info.name} to the receiver`);
+      } else {
+        spinner.fail(`❌ Failed to stream ${fileInfoResult.info.name}`);
+        showError(relayResult.error);
+      }
+      process.exit(relayResult.success ? 0 : 1);
+    }
+
     // Confirm upload
     if (passwordValidation.password) {
       showInfo('File will be uploaded with password protection');
@@ -61,8 +81,9 @@ export async function postCommand(filePath, options) {
     // Create spinner for upload
     const spinner = createSpinner(`📤 Uploading ${fileInfoResult.info.name}...`);
 
-    // Upload file
-    const uploadResult = await uploadFile(
+    // Upload file, or all files of a directory as one bundle
+    const upload = fileValidation.isDirectory ? uploadDirectory : uploadFile;
+    const uploadResult = await upload(
       fileValidation.path,
       passwordValidation.password
     );
@@ -38,6 +38,7 @@ program
   .description(chalk.green('📤 Upload and share a file'))
   .argument('<file>', 'path to the file to share')
   .option('-p, --pass <password>', 'password to protect the file')
+  .option('-l, --live', 'stream the file directly to the receiver instead of storing it')
   .action(postCommand);
 
 // Add get command
@@ -54,6 +55,7 @@ program.addHelpText('after', `
 ${chalk.yellow('Examples:')}
   ${chalk.gray('$')} npx liteshare post ./document.pdf
   ${chalk.gray('$')} npx liteshare post ./document.pdf --pass 1234
+  ${chalk.gray('$')} npx liteshare post ./video.mp4 --live
   ${chalk.gray('$')} npx liteshare get 8081
   ${chalk.gray('$')} npx liteshare get 8081 --pass 1234
   ${chalk.gray('$')} npx liteshare get 8081 -o ./downloads/
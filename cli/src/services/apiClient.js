@@ -3,12 +3,22 @@
  */
 
 import axios from 'axios';
+import crypto from 'crypto';
 import FormData from 'form-data';
 import fs from 'fs-extra';
+import http from 'http';
+import https from 'https';
 import path from 'path';
 import { config, getBackendUrl } from '../utils/config.js';
+import { listDirectoryFiles } from './fileService.js';
 import { showError } from '../utils/progress.js';
 
+const RETRY_DELAY_MS = 1000;
+
+// Kept-alive connections let parallel range requests reuse connections, and with
+// https their TLS sessions, instead of a new handshake for every chunk
+const httpAgent = new http.Agent({ keepAlive: true });
+const httpsAgent = new https.Agent({ keepAlive: true });
 
 /**
  * Create an axios instance with default configuration
@@ -20,6 +30,8 @@ function createApiClient() {
   return axios.create({
     baseURL,
     timeout: config.backend.timeout,
+    httpAgent,
+    httpsAgent,
     headers: {
       'User-Agent': 'LiteShare-CLI/1.0.4'
     }
@@ -28,6 +40,10 @@ function createApiClient() {
 
 /**
  * Upload a file to the backend service
+ *
+ * The file's SHA-256 is sent along, the server rejects the upload if what it received
+ * doesn't match. Content it already stores is kept only once.
+ *
  * @param {string} filePath - Path to the file to upload
  * @param {string} password - Optional password for the file
  * @returns {Promise<object>} Upload result
@@ -35,6 +51,8 @@ function createApiClient() {
 export async function uploadFile(filePath, password) {
   try {
     const apiClient = createApiClient();
+    const sha256 = await hashFile(filePath);
+
     const formData = new FormData();
     
     // Add file to form data
@@ -56,6 +74,7 @@ export async function uploadFile(filePath, password) {
     });
     
     const response = await apiClient.post('/upload', formData, {
+      params: { sha256 },
       headers: {
         ...formData.getHeaders(),
         'Content-Length': formLength
@@ -64,6 +83,10 @@ export async function uploadFile(filePath, password) {
       maxBodyLength: config.upload.maxFileSize,
     });
 
+    if (response.data.sha256 && response.data.sha256 !== sha256) {
+      throw new Error('The server stored different content than was sent, please upload again');
+    }
+
     return {
       success: true,
       data: response.data,
@@ -76,8 +99,137 @@ export async function uploadFile(filePath, password) {
   }
 }
 
+/**
+ * Stream a file straight to its receiver through a live relay, without storing it
+ *
+ * The relay is created first and its code handed to onCode, then the file is sent
+ * with the sender token the server handed out, which only the sender knows.
+ * The server holds the upload until someone downloads the code, so this only
+ * resolves once the receiver got the whole file (or the relay failed).
+ *
+ * @param {string} filePath - Path to the file to send
+ * @param {string} password - Optional password for the file
+ * @param {function} onCode - Called with the file code as soon as it is known
+ * @returns {Promise<object>} Relay result
+ */
+export async function relayFile(filePath, password, onCode) {
+  try {
+    const apiClient = createApiClient();
+    const { size } = await fs.stat(filePath);
+
+    const created = await apiClient.post('/relay', null, {
+      params: { filename: path.basename(filePath), size, pass: password || undefined }
+    });
+    const { port: fileCode, token } = created.data;
+    onCode(fileCode);
+
+    const response = await apiClient.put(`/relay/${fileCode}`, fs.createReadStream(filePath), {
+      headers: {
+        'Content-Type': 'application/octet-stream',
+        'Content-Length': size,
+        'X-Relay-Token': token
+      },
+      // Waiting for the receiver may take much longer than any request timeout
+      timeout: 0,
+      maxContentLength: Infinity,
+      maxBodyLength: Infinity
+    });
+
+    return {
+      success: true,
+      data: response.data,
+      fileCode,
+      message: 'File streamed to the receiver'
+    };
+
+  } catch (error) {
+    return handleApiError('Failed to stream file', error);
+  }
+}
+
+/**
+ * Upload every file below a directory as one bundle share
+ *
+ * Each file keeps its path inside the directory, with the directory's own name in
+ * front, so the bundle unpacks into a folder of the same name.
+ *
+ * @param {string} dirPath - Path to the directory to upload
+ * @param {string} password - Optional password for the bundle
+ * @returns {Promise<object>} Upload result
+ */
+export async function uploadDirectory(dirPath, password) {
+  try {
+    const apiClient = createApiClient();
+    const files = await listDirectoryFiles(dirPath);
+    if (files.length === 0) {
+      return { success: false, error: `${dirPath} contains no files` };
+    }
+
+    const baseName = path.basename(dirPath);
+    const formData = new FormData();
+    for (const file of files) {
+      formData.append('file', fs.createReadStream(file.path), {
+        filepath: `${baseName}/${file.relativePath}`,
+        knownLength: file.size
+      });
+    }
+    formData.append('name', baseName);
+    if (password) {
+      formData.append('password', password);
+    }
+
+    const formLength = await new Promise((resolve, reject) => {
+      formData.getLength((err, length) => {
+        if (err) reject(err);
+        else resolve(length);
+      });
+    });
+
+    const response = await apiClient.post('/upload', formData, {
+      headers: {
+        ...formData.getHeaders(),
+        'Content-Length': formLength
+      },
+      maxContentLength: config.upload.maxFileSize,
+      maxBodyLength: config.upload.maxFileSize,
+    });
+
+    return {
+      success: true,
+      data: response.data,
+      fileCode: response.data.port,
+      message: `Uploaded ${response.data.files} files as one share`
+    };
+
+  } catch (error) {
+    return handleApiError('Failed to upload directory', error);
+  }
+}
+
+/**
+ * Compute the hex SHA-256 of a file without reading it into memory
+ * @param {string} filePath - Path to the file
+ * @returns {Promise<string>} Hex digest
+ */
+function hashFile(filePath) {
+  return new Promise((resolve, reject) => {
+    const hash = crypto.createHash('sha256');
+    fs.createReadStream(filePath)
+      .on('data', (chunk) => hash.update(chunk))
+      .on('end', () => resolve(hash.digest('hex')))
+      .on('error', reject);
+  });
+}
+
 /**
  * Download a file from the backend service
+ *
+ * The first byte is probed with a Range request to learn the file name, size and
+ * ETag. Large files are then fetched as several parallel ranges, smaller ones as a
+ * single stream that resumes from a `.part` file after a dropped connection.
+ * Servers that ignore Range stream the whole file in answer to the probe, and what
+ * can't be fetched in ranges is answered with 416 and then downloaded in one piece.
+ *
  * @param {string} fileCode - File code (port number)
  * @param {string} password - Optional password for the file
  * @param {string} outputPath - Output directory path
@@ -94,78 +246,301 @@ export async function downloadFile(fileCode, password, outputPath) {
       downloadUrl += `?pass=${encodedPassword}`;
     }
     
-    const response = await apiClient.get(downloadUrl, {
+    const probe = await apiClient.get(downloadUrl, {
       responseType: 'stream',
-      timeout: config.download.timeout
+      timeout: config.download.timeout,
+      headers: { Range: 'bytes=0-0' },
+      validateStatus: (status) => (status >= 200 && status < 300) || status === 416
     });
 
-    // Extract filename from Content-Disposition header (case-insensitive)
-    let fileName = 'downloaded_file';
-    const headers = response.headers;
-    
-    // Look for content-disposition header regardless of case
-    for (const key in headers) {
-      if (key.toLowerCase() === 'content-disposition') {
-        const contentDisposition = headers[key];
-        const filenameMatch = contentDisposition.match(/filename="(.+)"/);
-        if (filenameMatch && filenameMatch.length === 2) {
-          fileName = filenameMatch[1];
-        }
-        break;
-      }
-    }
+    const fileName = extractFileName(probe.headers);
+    const totalSize = extractTotalSize(probe.headers);
+    const etag = getHeader(probe.headers, 'etag');
+    const sha256 = extractSha256(probe.headers);
 
     // Ensure output directory exists
     await fs.ensureDir(outputPath);
-    
-    // Generate unique filename if file already exists
-    let finalPath = path.join(outputPath, fileName);
-    const originalPath = finalPath;
-    
-    if (await fs.pathExists(finalPath)) {
-      const ext = path.extname(fileName);
-      const nameWithoutExt = path.basename(fileName, ext);
-      let counter = 1;
-      
-      do {
-        finalPath = path.join(outputPath, `${nameWithoutExt} (${counter})${ext}`);
-        counter++;
-      } while (await fs.pathExists(finalPath));
+
+    if (probe.status !== 206 || totalSize === null) {
+      // A server that ignores Range already sends the whole file, so the probe is kept.
+      // Empty files, bundle archives and live shares answer 416 without a body instead
+      let response = probe;
+      if (probe.status === 416) {
+        probe.data.destroy();
+        response = await apiClient.get(downloadUrl, {
+          responseType: 'stream',
+          timeout: config.download.timeout
+        });
+      }
+      const finalPath = await uniqueOutputPath(outputPath, fileName);
+      const received = await saveStream(response.data, finalPath);
+      await verifyChecksum(finalPath, received, extractSha256(response.headers));
+      return downloadResult(finalPath, fileName);
+    }
+    probe.data.destroy();
+
+    const partPath = path.join(outputPath, `${fileName}.part`);
+    if (totalSize >= config.download.parallelThreshold && !(await fs.pathExists(partPath))) {
+      await downloadParallel(apiClient, downloadUrl, partPath, totalSize, etag);
+    } else {
+      await downloadResumable(apiClient, downloadUrl, partPath, totalSize, etag);
+    }
+    // Ranges arrive in any order, so the assembled file is hashed once at the end
+    if (sha256) {
+      await verifyChecksum(partPath, await hashFile(partPath), sha256);
+    }
+
+    const finalPath = await uniqueOutputPath(outputPath, fileName);
+    await fs.move(partPath, finalPath);
+    await fs.remove(`${partPath}.json`);
+    return downloadResult(finalPath, fileName);
+
+  } catch (error) {
+    return handleApiError('Failed to download file', error);
+  }
+}
+
+/**
+ * Download the file as one range, continuing a previous `.part` file when its ETag still matches
+ * @param {object} apiClient - Axios instance
+ * @param {string} downloadUrl - Download URL including the password query
+ * @param {string} partPath - Path of the partial file
+ * @param {number} totalSize - Size of the file in bytes
+ * @param {string} etag - ETag of the file on the server
+ */
+async function downloadResumable(apiClient, downloadUrl, partPath, totalSize, etag) {
+  const metaPath = `${partPath}.json`;
+  const meta = await fs.readJson(metaPath).catch(() => null);
+
+  let offset = 0;
+  if (meta && etag && meta.etag === etag && await fs.pathExists(partPath)) {
+    offset = Math.min((await fs.stat(partPath)).size, totalSize);
+  } else {
+    await fs.writeFile(partPath, '');
+    await fs.writeJson(metaPath, { etag, totalSize });
+  }
+
+  await downloadSegment(apiClient, downloadUrl, partPath, offset, totalSize - 1, etag);
+}
+
+/**
+ * Download the file as several ranges at once, each written at its own offset
+ * @param {object} apiClient - Axios instance
+ * @param {string} downloadUrl - Download URL including the password query
+ * @param {string} partPath - Path of the partial file
+ * @param {number} totalSize - Size of the file in bytes
+ * @param {string} etag - ETag of the file on the server
+ */
+async function downloadParallel(apiClient, downloadUrl, partPath, totalSize, etag) {
+  const handle = await fs.open(partPath, 'w');
+  await fs.ftruncate(handle, totalSize);
+  await fs.close(handle);
+
+  const streams = Math.max(1, config.download.parallelStreams);
+  const segmentSize = Math.ceil(totalSize / streams);
+  const segments = [];
+  for (let start = 0; start < totalSize; start += segmentSize) {
+    const end = Math.min(start + segmentSize, totalSize) - 1;
+    segments.push(downloadSegment(apiClient, downloadUrl, partPath, start, end, etag));
+  }
+
+  try {
+    await Promise.all(segments);
+  } catch (error) {
+    await fs.remove(partPath);
+    throw error;
+  }
+}
+
+/**
+ * Download bytes [start, end] into the file, retrying from where a dropped connection stopped
+ */
+async function downloadSegment(apiClient, downloadUrl, filePath, start, end, etag) {
+  let position = start;
+  let failures = 0;
+
+  while (position <= end) {
+    const { written, error } = await fetchRange(apiClient, downloadUrl, filePath, position, end, etag);
+    position += written;
+
+    if (position <= end) {
+      failures++;
+      if (failures > config.download.retries) {
+        throw error || new Error('Connection closed before the download completed');
+      }
+      await new Promise((resolve) => setTimeout(resolve, RETRY_DELAY_MS * failures));
+    }
+  }
+}
+
+/**
+ * Fetch one byte range and write it into the file at its offset
+ * @returns {Promise<object>} Number of bytes written and the stream error, if any
+ */
+async function fetchRange(apiClient, downloadUrl, filePath, start, end, etag) {
+  let response;
+  try {
+    response = await apiClient.get(downloadUrl, {
+      responseType: 'stream',
+      timeout: config.download.timeout,
+      headers: {
+        Range: `bytes=${start}-${end}`,
+        ...(etag ? { 'If-Range': etag } : {})
+      }
+    });
+  } catch (error) {
+    // Let the caller retry network errors, but not HTTP errors like 401 or 404
+    if (error.response) {
+      throw error;
     }
+    return { written: 0, error };
+  }
+
+  if (response.status !== 206) {
+    response.data.destroy();
+    throw new Error('File changed on the server while downloading, please retry');
+  }
+
+  const writer = fs.createWriteStream(filePath, { flags: 'r+', start });
+  return new Promise((resolve) => {
+    let failure = null;
+
+    response.data.on('error', (error) => {
+      failure = error;
+      writer.end();
+    });
+    writer.on('error', (error) => {
+      failure = error;
+    });
+    writer.on('close', () => resolve({ written: writer.bytesWritten, error: failure }));
 
-    // Write file to disk
-    const writer = fs.createWriteStream(finalPath);
     response.data.pipe(writer);
+  });
+}
 
-    return new Promise((resolve, reject) => {
-      writer.on('finish', () => {
-        resolve({
-          success: true,
-          filePath: finalPath,
-          fileName: path.basename(finalPath),
-          originalFileName: fileName,
-          message: 'File downloaded successfully'
-        });
-      });
+/**
+ * Write a response stream to a file, hashing it on the way
+ * @param {object} stream - Readable response stream
+ * @param {string} finalPath - Destination path
+ * @returns {Promise<string>} Hex SHA-256 of what was written
+ */
+function saveStream(stream, finalPath) {
+  const writer = fs.createWriteStream(finalPath);
+  const hash = crypto.createHash('sha256');
+  stream.on('data', (chunk) => hash.update(chunk));
+  stream.pipe(writer);
 
-      writer.on('error', (error) => {
-        reject({
-          success: false,
-          error: `Failed to write file: ${error.message}`
-        });
-      });
+  return new Promise((resolve, reject) => {
+    writer.on('finish', () => resolve(hash.digest('hex')));
 
-      response.data.on('error', (error) => {
-        reject({
-          success: false,
-          error: `Download failed: ${error.message}`
-        });
-      });
+    writer.on('error', (error) => {
+      reject(new Error(`Failed to write file: ${error.message}`));
     });
 
-  } catch (error) {
-    return handleApiError('Failed to download file', error);
+    stream.on('error', (error) => {
+      reject(new Error(`Download failed: ${error.message}`));
+    });
+  });
+}
+
+/**
+ * Delete a downloaded file whose content doesn't match the checksum the server sent
+ * @param {string} filePath - Downloaded file
+ * @param {string} actual - Hex SHA-256 of the file
+ * @param {string|null} expected - Hex SHA-256 from the server, null if it sent none
+ */
+async function verifyChecksum(filePath, actual, expected) {
+  if (expected && actual !== expected) {
+    await fs.remove(filePath);
+    await fs.remove(`${filePath}.json`);
+    throw new Error('Downloaded file is corrupted (checksum mismatch), please download again');
+  }
+}
+
+/**
+ * Generate a unique filename in the output directory if the file already exists
+ * @param {string} outputPath - Output directory path
+ * @param {string} fileName - Desired file name
+ * @returns {Promise<string>} Path that doesn't exist yet
+ */
+async function uniqueOutputPath(outputPath, fileName) {
+  let finalPath = path.join(outputPath, fileName);
+  
+  if (await fs.pathExists(finalPath)) {
+    const ext = path.extname(fileName);
+    const nameWithoutExt = path.basename(fileName, ext);
+    let counter = 1;
+    
+    do {
+      finalPath = path.join(outputPath, `${nameWithoutExt} (${counter})${ext}`);
+      counter++;
+    } while (await fs.pathExists(finalPath));
+  }
+
+  return finalPath;
+}
+
+function downloadResult(finalPath, fileName) {
+  return {
+    success: true,
+    filePath: finalPath,
+    fileName: path.basename(finalPath),
+    originalFileName: fileName,
+    message: 'File downloaded successfully'
+  };
+}
+
+/**
+ * Look up a response header regardless of case
+ * @param {object} headers - Response headers
+ * @param {string} name - Header name
+ * @returns {string|null} Header value
+ */
+function getHeader(headers, name) {
+  for (const key in headers) {
+    if (key.toLowerCase() === name) {
+      return headers[key];
+    }
   }
+  return null;
+}
+
+/**
+ * Extract the filename from the Content-Disposition header
+ * @param {object} headers - Response headers
+ * @returns {string} File name
+ */
+function extractFileName(headers) {
+  const contentDisposition = getHeader(headers, 'content-disposition');
+  if (contentDisposition) {
+    const filenameMatch = contentDisposition.match(/filename="(.+)"/);
+    if (filenameMatch && filenameMatch.length === 2) {
+      return path.basename(filenameMatch[1]);
+    }
+  }
+  return 'downloaded_file';
+}
+
+/**
+ * Extract the SHA-256 from a Repr-Digest (sha-256=:base64:) or Digest (sha-256=base64) header
+ * @param {object} headers - Response headers
+ * @returns {string|null} Hex SHA-256, or null if the server sent none
+ */
+function extractSha256(headers) {
+  const value = getHeader(headers, 'repr-digest') || getHeader(headers, 'digest');
+  const match = value && value.match(/sha-256=:?([A-Za-z0-9+/=]+):?/i);
+  return match ? Buffer.from(match[1], 'base64').toString('hex') : null;
+}
+
+/**
+ * Extract the full file size from a Content-Range header like "bytes 0-0/1234"
+ * @param {object} headers - Response headers
+ * @returns {number|null} Total size, or null if unknown
+ */
+function extractTotalSize(headers) {
+  const contentRange = getHeader(headers, 'content-range');
+  const match = contentRange && contentRange.match(/\/(\d+)$/);
+  return match ? parseInt(match[1], 10) : null;
 }
 
 /**
@@ -221,6 +596,13 @@ function handleApiError(defaultMessage, error) {
         errorMessage = 'File too large';
         suggestion = 'Try uploading a smaller file';
         break;
+      case 429:
+      case 503: {
+        const retryAfter = error.response.headers?.['retry-after'];
+        errorMessage = status === 429 ? 'Too many requests' : 'Server busy';
+        suggestion = retryAfter ? `Try again in ${retryAfter} seconds` : 'Try again later';
+        break;
+      }
       case 500:
         errorMessage = 'Server error';
         suggestion = 'Try again later or contact support';
@@ -17,14 +17,17 @@ export async function getFileInfo(filePath) {
   try {
     const stats = await fs.stat(filePath);
     const resolvedPath = path.resolve(filePath);
+    const size = stats.isDirectory()
+      ? (await listDirectoryFiles(resolvedPath)).reduce((total, file) => total + file.size, 0)
+      : stats.size;
     
     return {
       success: true,
       info: {
         name: path.basename(resolvedPath),
         path: resolvedPath,
-        size: stats.size,
-        formattedSize: formatFileSize(stats.size),
+        size,
+        formattedSize: formatFileSize(size),
         extension: path.extname(resolvedPath),
         modified: stats.mtime,
         isReadable: true
@@ -38,6 +41,34 @@ export async function getFileInfo(filePath) {
   }
 }
 
+/**
+ * List the regular files below a directory, depth first in name order
+ * @param {string} dirPath - Directory to list
+ * @returns {Promise<Array<{path: string, relativePath: string, size: number}>>} Files with their path relative to the directory
+ */
+export async function listDirectoryFiles(dirPath) {
+  const files = [];
+  async function walk(current) {
+    const entries = await fs.readdir(current, { withFileTypes: true });
+    entries.sort((a, b) => a.name.localeCompare(b.name));
+    for (const entry of entries) {
+      const fullPath = path.join(current, entry.name);
+      if (entry.isDirectory()) {
+        await walk(fullPath);
+      } else if (entry.isFile()) {
+        const stats = await fs.stat(fullPath);
+        files.push({
+          path: fullPath,
+          relativePath: path.relative(dirPath, fullPath).split(path.sep).join('/'),
+          size: stats.size
+        });
+      }
+    }
+  }
+  await walk(dirPath);
+  return files;
+}
+
 /**
  * Check if file exists and is accessible
  * @param {string} filePath - Path to the file
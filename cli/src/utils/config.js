@@ -28,6 +28,8 @@ export const config = {
   download: {
     timeout: parseInt(process.env.DOWNLOAD_TIMEOUT) || 60000, // 60 seconds
     retries: parseInt(process.env.DOWNLOAD_RETRIES) || 3,
+    parallelThreshold: parseInt(process.env.DOWNLOAD_PARALLEL_THRESHOLD) || 64 * 1024 * 1024, // 64MB
+    parallelStreams: parseInt(process.env.DOWNLOAD_PARALLEL_STREAMS) || 4,
   },
 
   // CLI configuration
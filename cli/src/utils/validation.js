@@ -17,6 +17,16 @@ export async function validateFile(filePath) {
     const resolvedPath = path.resolve(filePath);
     const stats = await fs.stat(resolvedPath);
 
+    // Directories are uploaded as a bundle of their files
+    if (stats.isDirectory()) {
+      return {
+        isValid: true,
+        isDirectory: true,
+        path: resolvedPath,
+        name: path.basename(resolvedPath)
+      };
+    }
+
     if (!stats.isFile()) {
       return {
         isValid: false,
@@ -0,0 +1,45 @@
+package p2p.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Request bodies shared by the benchmarks.
+ */
+final class BenchmarkData {
+    static final String BOUNDARY = "----JmhBoundary7MA4YWxkTrZu0gW";
+
+    private BenchmarkData() {
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Builds a multipart/form-data body with {@code fieldCount} small text fields
+     * (the first one named "password") followed by a "file" part with the given content.
+     */
+    static byte[] multipartBody(byte[] fileContent, int fieldCount) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fileContent.length + 512 * (fieldCount + 1));
+        for (int i = 0; i < fieldCount; i++) {
+            String name = i == 0 ? "password" : "field" + i;
+            write(out, "--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                    + "value-" + i + "\r\n");
+        }
+        write(out, "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n");
+        out.writeBytes(fileContent);
+        write(out, "\r\n--" + BOUNDARY + "--\r\n");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,97 @@
+package p2p.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.BufferPool;
+
+/**
+ * Copying a file to a response stream the way downloads do, with pooled buffers
+ * against a fresh buffer per copy and against a channel around the stream. Run with
+ * the gc profiler (on by default in the benchmarks profile) to compare the bytes
+ * allocated per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class CopyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Source {
+        @Param({"65536", "16777216"})
+        int fileSize;
+
+        File file;
+        FileChannel channel;
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("filetogo-bench", ".bin");
+            Files.write(file.toPath(), BenchmarkData.randomBytes(fileSize));
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+            file.delete();
+        }
+    }
+
+    private static final OutputStream SINK = OutputStream.nullOutputStream();
+
+    @Benchmark
+    public long pooledBuffer(Source source) throws IOException {
+        BufferPool.copy(source.channel, 0, source.fileSize, SINK);
+        return source.fileSize;
+    }
+
+    @Benchmark
+    public long freshBuffer(Source source) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long position = 0;
+        while (position < source.fileSize) {
+            buffer.clear();
+            int read = source.channel.read(buffer, position);
+            SINK.write(chunk, 0, read);
+            position += read;
+        }
+        return position;
+    }
+
+    @Benchmark
+    public long channelTransfer(Source source) throws IOException {
+        WritableByteChannel target = Channels.newChannel(SINK);
+        long position = 0;
+        while (position < source.fileSize) {
+            position += source.channel.transferTo(position, source.fileSize - position, target);
+        }
+        return position;
+    }
+}
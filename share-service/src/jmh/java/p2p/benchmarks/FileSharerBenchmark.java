@@ -0,0 +1,70 @@
+package p2p.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.service.FileSharer;
+
+/**
+ * Share registry under contention: a few threads keep offering and releasing shares
+ * while the rest look up existing codes, like uploads racing downloads.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSharerBenchmark {
+    private static final int PREFILLED_SHARES = 4096;
+    // The registry never touches file contents, a missing path keeps disk out of the picture
+    private static final String FILE_PATH = "/nonexistent/jmh-share.bin";
+
+    private FileSharer fileSharer;
+    private int[] codes;
+
+    @Setup
+    public void setUp() {
+        // One download per share, so releasing a share is just recordDownload()
+        fileSharer = new FileSharer(0, 1);
+        codes = new int[PREFILLED_SHARES];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = fileSharer.offerFile(FILE_PATH);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        fileSharer.shutdown();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public int offerAndRelease() {
+        int code = fileSharer.offerFile(FILE_PATH, "secret");
+        fileSharer.recordDownload(code, fileSharer.getFileInfo(code));
+        return code;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(6)
+    public FileSharer.FileInfo lookup() {
+        return fileSharer.getFileInfo(codes[ThreadLocalRandom.current().nextInt(codes.length)]);
+    }
+}
@@ -0,0 +1,81 @@
+package p2p.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.MultipartParser;
+import p2p.utils.MultipartParser.FormPart;
+import p2p.utils.MultipartStreamParser;
+
+/**
+ * Parses multipart bodies of different sizes and part counts, both in memory with
+ * MultipartParser.parseParts() and streamed to disk with MultipartStreamParser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+
+    @Param({"1024", "1048576", "33554432"})
+    int payloadSize;
+
+    @Param({"2", "16"})
+    int partCount;
+
+    private byte[] body;
+    private File uploadDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        body = BenchmarkData.multipartBody(BenchmarkData.randomBytes(payloadSize), partCount - 1);
+        uploadDir = Files.createTempDirectory("jmh-multipart").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = uploadDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        uploadDir.delete();
+    }
+
+    @Benchmark
+    public Map<String, FormPart> parseParts() {
+        return new MultipartParser(body, BenchmarkData.BOUNDARY).parseParts();
+    }
+
+    @Benchmark
+    public Map<String, FormPart> streamParts() throws IOException {
+        MultipartStreamParser parser = new MultipartStreamParser(new ByteArrayInputStream(body), BenchmarkData.BOUNDARY, uploadDir);
+        Map<String, FormPart> parts = parser.parseParts();
+        for (FormPart part : parts.values()) {
+            if (part.storedFile != null) {
+                part.storedFile.delete();
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,160 @@
+package p2p.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.controller.FileController;
+
+/**
+ * End-to-end throughput of /upload and /download against an in-process FileController
+ * on loopback, with several clients at once. The engine parameter compares plain HTTP
+ * with TLS terminated by the server, using a throwaway self-signed certificate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Threads(4)
+@Fork(1)
+public class TransferBenchmark {
+    private static final Pattern CODE = Pattern.compile("\"port\"\\s*:\\s*(\\d+)");
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"65536", "16777216"})
+        int fileSize;
+
+        @Param({"http", "https"})
+        String engine;
+
+        FileController controller;
+        File dataDir;
+        HttpClient client;
+        String baseUrl;
+        byte[] uploadBody;
+        int sharedCode;
+
+        @Setup
+        public void setUp() throws Exception {
+            HttpClient.Builder clientBuilder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1);
+            System.setProperty("filetogo.server.engine", engine);
+            if (engine.equals("https")) {
+                File keystore = selfSignedKeystore();
+                System.setProperty("filetogo.tls.keystore", keystore.getPath());
+                System.setProperty("filetogo.tls.keystore.password", KEYSTORE_PASSWORD);
+                clientBuilder.sslContext(trusting(keystore));
+            }
+            // A directory of its own, so a local server's shares and uploads are left alone
+            dataDir = Files.createTempDirectory("filetogo-bench").toFile();
+            System.setProperty("filetogo.data.dir", dataDir.getPath());
+            controller = new FileController(0, 0);
+            controller.start();
+            baseUrl = engine + "://localhost:" + controller.getPort();
+            client = clientBuilder.build();
+            uploadBody = BenchmarkData.multipartBody(BenchmarkData.randomBytes(fileSize), 0);
+            sharedCode = upload(this);
+        }
+
+        @TearDown
+        public void tearDown() {
+            controller.stop();
+            FileUtils.deleteQuietly(dataDir);
+        }
+    }
+
+    private static final String KEYSTORE_PASSWORD = "benchmark";
+
+    private static File selfSignedKeystore() throws IOException, InterruptedException {
+        File keystore = File.createTempFile("filetogo-bench", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-validity", "1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keystore.getPath(), "-storepass", KEYSTORE_PASSWORD)
+                .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed");
+        }
+        return keystore;
+    }
+
+    private static SSLContext trusting(File keystore) throws Exception {
+        KeyStore trusted = KeyStore.getInstance(keystore, KEYSTORE_PASSWORD.toCharArray());
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Upload followed by a download of the same share. Every upload has the same content,
+     * so the blob store keeps one copy of it, while the shares pile up until the data
+     * directory is deleted at teardown.
+     */
+    @Benchmark
+    public long uploadAndDownload(Server server) throws Exception {
+        int code = upload(server);
+        return download(server, code);
+    }
+
+    @Benchmark
+    public long download(Server server) throws Exception {
+        return download(server, server.sharedCode);
+    }
+
+    private static int upload(Server server) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(server.baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BenchmarkData.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(server.uploadBody))
+                .build();
+        HttpResponse<String> response = server.client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Upload failed: " + response.statusCode() + " " + response.body());
+        }
+        // The response also carries the checksums, so the code is picked out by name
+        Matcher matcher = CODE.matcher(response.body());
+        if (!matcher.find()) {
+            throw new IllegalStateException("Upload answered without a code: " + response.body());
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private static long download(Server server, int code) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(server.baseUrl + "/download/" + code)).GET().build();
+        HttpResponse<byte[]> response = server.client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Download failed: " + response.statusCode());
+        }
+        return response.body().length;
+    }
+}
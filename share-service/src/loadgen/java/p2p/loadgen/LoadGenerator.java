@@ -0,0 +1,210 @@
+package p2p.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.FileUtils;
+
+import p2p.controller.FileController;
+
+/**
+ * Drives /upload and /download/{code} with a mix of CLI-like traffic and reports
+ * throughput and latency percentiles.
+ *
+ * Operations start on a fixed schedule (open loop), whether or not earlier ones have
+ * finished, like independent users do. At most --concurrency run at once, the rest
+ * wait their turn and that wait is part of their response time. By default the service
+ * runs in this process on a free port with its output discarded, --target=http://...
+ * sends the traffic to a running instance or container instead.
+ *
+ * Run with: mvn -P loadgen -DskipTests verify -Dloadgen.args="--rate=100 --duration=2m"
+ */
+public class LoadGenerator {
+    private static final int SHARE_POOL = 1024;
+
+    private final LoadProfile profile;
+    private final ShareClient client;
+    private final OperationStats uploads = new OperationStats("upload");
+    private final OperationStats downloads = new OperationStats("download");
+    // Recent shares downloads pick from, written in a ring
+    private final Share[] shares = new Share[SHARE_POOL];
+    private long shareCount;
+    private final AtomicLong uploadIds = new AtomicLong();
+
+    private static class Share {
+        final int code;
+        final String password;
+        final long size;
+
+        Share(int code, String password, long size) {
+            this.code = code;
+            this.password = password;
+            this.size = size;
+        }
+    }
+
+    LoadGenerator(LoadProfile profile, String baseUrl) {
+        this.profile = profile;
+        this.client = new ShareClient(baseUrl);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadProfile profile = LoadProfile.parse(args);
+        PrintStream report = System.out;
+        report.println("Load profile: " + profile);
+
+        FileController controller = null;
+        File dataDir = null;
+        String baseUrl = profile.target;
+        if (profile.target.equals("in-process")) {
+            // Every simulated client comes from loopback, the per-client limits would reject most of them
+            if (System.getProperty("filetogo.admission.max.per.client") == null) {
+                System.setProperty("filetogo.admission.max.per.client", String.valueOf(Integer.MAX_VALUE));
+            }
+            if (System.getProperty("filetogo.password.client.checks") == null) {
+                System.setProperty("filetogo.password.client.checks", String.valueOf(Integer.MAX_VALUE));
+            }
+            // A directory of its own, so a local server's shares and uploads are left alone
+            if (System.getProperty("filetogo.data.dir") == null) {
+                dataDir = Files.createTempDirectory("filetogo-loadgen").toFile();
+                System.setProperty("filetogo.data.dir", dataDir.getPath());
+            }
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            controller = new FileController(0, 0);
+            controller.start();
+            baseUrl = "http://127.0.0.1:" + controller.getPort();
+        }
+
+        try {
+            LoadGenerator generator = new LoadGenerator(profile, baseUrl);
+            generator.seed();
+            report.print(generator.run());
+        } finally {
+            if (controller != null) {
+                controller.stop();
+            }
+            FileUtils.deleteQuietly(dataDir);
+            System.setOut(report);
+        }
+    }
+
+    private void seed() throws IOException {
+        for (int i = 0; i < profile.seedShares; i++) {
+            String password = i < profile.seedShares * profile.passwords ? "seed-" + i : null;
+            ShareClient.Result result = client.upload(profile.sizes[0], uploadIds.incrementAndGet(), password, 0, -1);
+            if (result.outcome != ShareClient.Outcome.OK) {
+                throw new IOException("Seeding failed with status " + result.status);
+            }
+            addShare(new Share(result.code, password, profile.sizes[0]));
+        }
+    }
+
+    private String run() throws InterruptedException {
+        Random random = new Random(1);
+        Semaphore slots = new Semaphore(profile.concurrency);
+        long interval = (long) (1e9 / profile.rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + profile.warmup.toNanos();
+        long end = measureFrom + profile.duration.toNanos();
+        long maxLag = 0;
+
+        // Platform threads, HttpURLConnection blocks inside synchronized code, which would pin
+        // virtual threads to their carriers and starve the in-process server's own virtual threads
+        ExecutorService executor = Executors.newCachedThreadPool();
+        for (long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if (intended >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            slots.acquire();
+            maxLag = Math.max(maxLag, System.nanoTime() - intended);
+
+            Share share = random.nextDouble() < profile.downloads ? pickShare(random) : null;
+            long bytesPerSecond = random.nextDouble() < profile.slow ? profile.slowRate : 0;
+            double abortAt = random.nextDouble() < profile.aborts ? 0.1 + 0.8 * random.nextDouble() : -1;
+            boolean measured = intended >= measureFrom;
+            Runnable operation = share != null
+                    ? download(share, bytesPerSecond, abortAt, intended, measured)
+                    : upload(profile.nextSize(random), random.nextDouble() < profile.passwords,
+                            bytesPerSecond, abortAt, intended, measured);
+            executor.execute(() -> {
+                try {
+                    operation.run();
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+
+        double seconds = profile.duration.toNanos() / 1e9;
+        return uploads.report(seconds) + downloads.report(seconds)
+                + String.format("generator fell behind schedule by up to %.2f ms%n", maxLag / 1e6);
+    }
+
+    private Runnable upload(long size, boolean withPassword, long bytesPerSecond, double abortAt,
+            long intended, boolean measured) {
+        return () -> {
+            long id = uploadIds.incrementAndGet();
+            String password = withPassword ? "load-" + id : null;
+            long abortAfter = abortAt < 0 ? -1 : (long) (size * abortAt);
+            long actualStart = System.nanoTime();
+            try {
+                ShareClient.Result result = client.upload(size, id, password, bytesPerSecond, abortAfter);
+                if (result.outcome == ShareClient.Outcome.OK) {
+                    addShare(new Share(result.code, password, size));
+                }
+                if (measured) {
+                    uploads.record(result, intended, actualStart, System.nanoTime());
+                }
+            } catch (IOException e) {
+                if (measured) {
+                    uploads.recordError();
+                }
+            }
+        };
+    }
+
+    private Runnable download(Share share, long bytesPerSecond, double abortAt, long intended, boolean measured) {
+        return () -> {
+            long abortAfter = abortAt < 0 ? -1 : Math.max(1, (long) (share.size * abortAt));
+            long actualStart = System.nanoTime();
+            try {
+                ShareClient.Result result = client.download(share.code, share.password, bytesPerSecond, abortAfter);
+                if (measured) {
+                    downloads.record(result, intended, actualStart, System.nanoTime());
+                }
+            } catch (IOException e) {
+                if (measured) {
+                    downloads.recordError();
+                }
+            }
+        };
+    }
+
+    private synchronized void addShare(Share share) {
+        shares[(int) (shareCount++ % SHARE_POOL)] = share;
+    }
+
+    /**
+     * @return A recent share, or null before the first upload finished
+     */
+    private synchronized Share pickShare(Random random) {
+        return shareCount == 0 ? null : shares[random.nextInt((int) Math.min(shareCount, SHARE_POOL))];
+    }
+}
@@ -0,0 +1,187 @@
+package p2p.loadgen;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * What traffic to generate, read from --name=value arguments.
+ *
+ * <pre>
+ *   --target=in-process|http://host:port   where to send requests (in-process)
+ *   --rate=50                              operations started per second
+ *   --duration=60s --warmup=10s            how long to run, and the part not reported
+ *   --concurrency=64                       transfers that may run at the same time
+ *   --sizes=64k:60,1m:30,32m:10            upload sizes with their weights
+ *   --downloads=0.8                        fraction of operations that are downloads
+ *   --passwords=0.2                        fraction of shares with a password
+ *   --slow=0.05 --slow-rate=256k           fraction of clients limited to a rate per second
+ *   --aborts=0.02                          fraction of transfers dropped halfway
+ *   --seed-shares=20                       shares uploaded before the run starts
+ * </pre>
+ */
+class LoadProfile {
+    String target = "in-process";
+    double rate = 50;
+    Duration duration = Duration.ofSeconds(60);
+    Duration warmup = Duration.ofSeconds(10);
+    int concurrency = 64;
+    long[] sizes = {64 * 1024, 1024 * 1024, 32 * 1024 * 1024};
+    int[] sizeWeights = {60, 30, 10};
+    double downloads = 0.8;
+    double passwords = 0.2;
+    double slow = 0.05;
+    long slowRate = 256 * 1024;
+    double aborts = 0.02;
+    int seedShares = 20;
+
+    static LoadProfile parse(String[] args) {
+        LoadProfile profile = new LoadProfile();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            String value = arg.substring(equals + 1);
+            switch (arg.substring(2, equals)) {
+                case "target":
+                    profile.target = value;
+                    break;
+                case "rate":
+                    profile.rate = positive(Double.parseDouble(value), arg);
+                    break;
+                case "duration":
+                    profile.duration = parseDuration(value);
+                    break;
+                case "warmup":
+                    profile.warmup = parseDuration(value);
+                    break;
+                case "concurrency":
+                    profile.concurrency = (int) positive(Integer.parseInt(value), arg);
+                    break;
+                case "sizes":
+                    profile.parseSizes(value);
+                    break;
+                case "downloads":
+                    profile.downloads = fraction(value, arg);
+                    break;
+                case "passwords":
+                    profile.passwords = fraction(value, arg);
+                    break;
+                case "slow":
+                    profile.slow = fraction(value, arg);
+                    break;
+                case "slow-rate":
+                    profile.slowRate = positive(parseBytes(value), arg);
+                    break;
+                case "aborts":
+                    profile.aborts = fraction(value, arg);
+                    break;
+                case "seed-shares":
+                    profile.seedShares = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Picks an upload size according to the weights.
+     */
+    long nextSize(Random random) {
+        int total = 0;
+        for (int weight : sizeWeights) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (int i = 0; i < sizes.length; i++) {
+            pick -= sizeWeights[i];
+            if (pick < 0) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    private void parseSizes(String value) {
+        List<long[]> entries = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split(":");
+            long weight = parts.length > 1 ? Long.parseLong(parts[1]) : 1;
+            entries.add(new long[] {parseBytes(parts[0]), positive(weight, entry)});
+        }
+        sizes = new long[entries.size()];
+        sizeWeights = new int[entries.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = entries.get(i)[0];
+            sizeWeights[i] = (int) entries.get(i)[1];
+        }
+    }
+
+    static long parseBytes(String value) {
+        String lower = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (lower.endsWith("k")) {
+            unit = 1024;
+        } else if (lower.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (lower.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        String number = unit == 1 ? lower : lower.substring(0, lower.length() - 1);
+        return Long.parseLong(number) * unit;
+    }
+
+    private static Duration parseDuration(String value) {
+        String lower = value.trim().toLowerCase(Locale.ROOT);
+        if (lower.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(lower.substring(0, lower.length() - 2)));
+        }
+        if (lower.endsWith("m")) {
+            return Duration.ofMinutes(Long.parseLong(lower.substring(0, lower.length() - 1)));
+        }
+        if (lower.endsWith("s")) {
+            lower = lower.substring(0, lower.length() - 1);
+        }
+        return Duration.ofSeconds(Long.parseLong(lower));
+    }
+
+    private static double fraction(String value, String arg) {
+        double fraction = Double.parseDouble(value);
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Expected a fraction between 0 and 1: " + arg);
+        }
+        return fraction;
+    }
+
+    private static double positive(double value, String arg) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Expected a positive value: " + arg);
+        }
+        return value;
+    }
+
+    private static long positive(long value, String arg) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Expected a positive value: " + arg);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder mix = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            mix.append(i == 0 ? "" : ",").append(sizes[i]).append(':').append(sizeWeights[i]);
+        }
+        return String.format(Locale.ROOT,
+                "target=%s rate=%.1f/s duration=%ds warmup=%ds concurrency=%d sizes=%s downloads=%.2f "
+                        + "passwords=%.2f slow=%.2f@%d B/s aborts=%.2f",
+                target, rate, duration.toSeconds(), warmup.toSeconds(), concurrency, mix, downloads,
+                passwords, slow, slowRate, aborts);
+    }
+}
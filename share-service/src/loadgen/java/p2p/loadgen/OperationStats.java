@@ -0,0 +1,86 @@
+package p2p.loadgen;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latencies of one kind of operation.
+ *
+ * Response time is measured from when the operation was scheduled to start, service
+ * time from when it actually started. When the service falls behind, operations queue
+ * up in the generator. Their wait shows in the response time instead of disappearing,
+ * which is what a closed loop that only sends the next request after the last answer
+ * would hide (coordinated omission).
+ */
+class OperationStats {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final String name;
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final ConcurrentSkipListMap<Integer, LongAdder> statuses = new ConcurrentSkipListMap<>();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    void record(ShareClient.Result result, long intendedStart, long actualStart, long end) {
+        bytes.add(result.bytes);
+        if (result.status > 0) {
+            statuses.computeIfAbsent(result.status, status -> new LongAdder()).increment();
+        }
+        switch (result.outcome) {
+            case OK:
+                responseTime.recordNanos(end - intendedStart);
+                serviceTime.recordNanos(end - actualStart);
+                break;
+            case REJECTED:
+                rejected.increment();
+                break;
+            case ABORTED:
+                aborted.increment();
+                break;
+            default:
+                failed.increment();
+        }
+    }
+
+    void recordError() {
+        failed.increment();
+    }
+
+    String report(double seconds) {
+        long completed = responseTime.count();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT,
+                "%s: %d ok (%.1f/s, %.1f MiB/s), %d failed, %d rejected, %d aborted%n",
+                name, completed, completed / seconds, bytes.sum() / seconds / (1024 * 1024),
+                failed.sum(), rejected.sum(), aborted.sum()));
+        if (!statuses.isEmpty()) {
+            report.append("  status codes:");
+            statuses.forEach((status, count) -> report.append(' ').append(status).append('=').append(count.sum()));
+            report.append(System.lineSeparator());
+        }
+        if (completed > 0) {
+            report.append(line("response time", responseTime));
+            report.append(line("service time ", serviceTime));
+        }
+        return report.toString();
+    }
+
+    private static String line(String label, LatencyHistogram histogram) {
+        StringBuilder line = new StringBuilder("  ").append(label).append(" ms:");
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(Locale.ROOT, " p%s=%.2f",
+                    percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile),
+                    histogram.percentileMicros(percentile) / 1000.0));
+        }
+        line.append(String.format(Locale.ROOT, " max=%.2f%n", histogram.maxMicros() / 1000.0));
+        return line.toString();
+    }
+}
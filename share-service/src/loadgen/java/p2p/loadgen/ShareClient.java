@@ -0,0 +1,202 @@
+package p2p.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads and downloads shares the way the CLI does, optionally as a slow client or
+ * one that gives up halfway.
+ */
+class ShareClient {
+    private static final String BOUNDARY = "----LoadgenBoundary3f9a1c2e";
+    private static final int CHUNK = 64 * 1024;
+    private static final Pattern CODE = Pattern.compile("\"port\"\\s*:\\s*(\\d+)");
+
+    /**
+     * Filler for upload bodies. Repeats only every 64 KiB, past what deflate can see,
+     * so content the server compresses costs it the same as real files.
+     */
+    private static final byte[] FILLER = new byte[CHUNK];
+
+    static {
+        new Random(42).nextBytes(FILLER);
+    }
+
+    enum Outcome {
+        OK, FAILED, REJECTED, ABORTED
+    }
+
+    /**
+     * What one transfer did. The code is the share code for uploads.
+     */
+    static class Result {
+        final Outcome outcome;
+        final int status;
+        final long bytes;
+        final int code;
+
+        Result(Outcome outcome, int status, long bytes, int code) {
+            this.outcome = outcome;
+            this.status = status;
+            this.bytes = bytes;
+            this.code = code;
+        }
+    }
+
+    private final String baseUrl;
+
+    ShareClient(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @param unique Written at the start of the file so no two uploads are stored as one blob
+     * @param bytesPerSecond Upload rate, or 0 for as fast as possible
+     * @param abortAfter Stop sending after this many file bytes, or -1 to send everything
+     */
+    Result upload(long size, long unique, String password, long bytesPerSecond, long abortAfter) throws IOException {
+        StringBuilder head = new StringBuilder();
+        if (password != null) {
+            head.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"password\"\r\n\r\n")
+                    .append(password).append("\r\n");
+        }
+        head.append("--").append(BOUNDARY).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"file\"; filename=\"load-").append(unique).append(".bin\"\r\n")
+                .append("Content-Type: application/octet-stream\r\n\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] tailBytes = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection connection = open("/upload");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        connection.setFixedLengthStreamingMode(headBytes.length + size + tailBytes.length);
+
+        Pacer pacer = new Pacer(bytesPerSecond);
+        long sent = 0;
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(headBytes);
+            byte[] chunk = FILLER.clone();
+            for (int i = 0; i < 8; i++) {
+                chunk[i] = (byte) (unique >>> (8 * i));
+            }
+            while (sent < size) {
+                int length = (int) Math.min(chunk.length, size - sent);
+                if (abortAfter >= 0 && sent + length > abortAfter) {
+                    connection.disconnect();
+                    return new Result(Outcome.ABORTED, 0, sent, 0);
+                }
+                out.write(chunk, 0, length);
+                sent += length;
+                pacer.await(sent);
+                if (sent == length) {
+                    chunk = FILLER;
+                }
+            }
+            out.write(tailBytes);
+            out.close();
+        } catch (IOException e) {
+            // The server may answer and close before reading everything, e.g. when it turns the upload away
+            if (connection.getResponseCode() <= 0) {
+                throw e;
+            }
+        }
+
+        int status = connection.getResponseCode();
+        String body = readAll(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        if (status != 200) {
+            return new Result(status == 429 || status == 503 ? Outcome.REJECTED : Outcome.FAILED, status, sent, 0);
+        }
+        Matcher matcher = CODE.matcher(body);
+        if (!matcher.find()) {
+            return new Result(Outcome.FAILED, status, sent, 0);
+        }
+        return new Result(Outcome.OK, status, sent, Integer.parseInt(matcher.group(1)));
+    }
+
+    /**
+     * @param bytesPerSecond Download rate, or 0 for as fast as possible
+     * @param abortAfter Stop reading after this many bytes, or -1 to read everything
+     */
+    Result download(int code, String password, long bytesPerSecond, long abortAfter) throws IOException {
+        String path = "/download/" + code;
+        if (password != null) {
+            path += "?pass=" + URLEncoder.encode(password, StandardCharsets.UTF_8);
+        }
+        HttpURLConnection connection = open(path);
+        int status = connection.getResponseCode();
+        if (status != 200) {
+            readAll(connection.getErrorStream());
+            return new Result(status == 429 || status == 503 ? Outcome.REJECTED : Outcome.FAILED, status, 0, code);
+        }
+
+        Pacer pacer = new Pacer(bytesPerSecond);
+        byte[] buffer = new byte[CHUNK];
+        long received = 0;
+        try (InputStream in = connection.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                received += read;
+                if (abortAfter >= 0 && received >= abortAfter) {
+                    connection.disconnect();
+                    return new Result(Outcome.ABORTED, status, received, code);
+                }
+                pacer.await(received);
+            }
+        }
+        long expected = connection.getContentLengthLong();
+        Outcome outcome = expected < 0 || expected == received ? Outcome.OK : Outcome.FAILED;
+        return new Result(outcome, status, received, code);
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(baseUrl + path).toURL().openConnection();
+        connection.setConnectTimeout(10_000);
+        connection.setReadTimeout(120_000);
+        return connection;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Holds a transfer back to a steady rate, the way a client on a slow link sends or
+     * reads.
+     */
+    private static class Pacer {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+
+        Pacer(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void await(long transferred) {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long due = start + (long) (transferred * 1e9 / bytesPerSecond);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+}
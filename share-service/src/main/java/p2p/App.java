@@ -9,12 +9,13 @@ import java.io.IOException;
 public class App {
     public static void main(String[] args) {
         try {
-            // Start the API server on port 8080
-            FileController fileController = new FileController(8080); // create new object
+            // Start the API server on port 8080, -Dfiletogo.port picks another one (like for several nodes on one host)
+            int port = Integer.getInteger("filetogo.port", 8080);
+            FileController fileController = new FileController(port); // create new object
             // to initialize the server
             fileController.start();
             
-            System.out.println("filetogo server started on port 8080");
+            System.out.println("filetogo server started on port " + port);
             
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("Shutting down server...");
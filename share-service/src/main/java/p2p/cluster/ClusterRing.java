@@ -0,0 +1,182 @@
+package p2p.cluster;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import p2p.utils.HashUtils;
+import p2p.utils.UploadUtils;
+
+/**
+ * Decides which node of a cluster owns a share code or an upload session.
+ *
+ * Node IDs are placed on a consistent-hash ring, each many times over (virtual nodes)
+ * so codes spread evenly, and a code belongs to the first node at or after the code's
+ * own position on the ring. Every node is configured with the same list, so any of them
+ * can tell where a code lives without asking the others, and a node only hands out codes
+ * it owns. Adding or removing a node moves about 1/N of the codes to another owner; the
+ * shares behind those can't be found anymore, so resize when few shares are live.
+ *
+ * Configured with -Dfiletogo.cluster.nodes=a=http://10.0.0.1:8080,b=http://10.0.0.2:8080
+ * and -Dfiletogo.cluster.node.id=a on the node called a.
+ */
+public class ClusterRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final String selfId;
+    private final Map<String, URI> nodes;
+    // Owner of every code, indexed from the first code
+    private final String[] owners;
+    private final int[] localCodes;
+
+    /**
+     * @param nodes Address of every node by ID, including this one
+     */
+    public ClusterRing(String selfId, Map<String, URI> nodes) {
+        if (!nodes.containsKey(selfId)) {
+            throw new IllegalArgumentException("Node " + selfId + " is not in the cluster's node list");
+        }
+        for (String id : nodes.keySet()) {
+            if (!id.matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("Node IDs may only contain letters, digits, '-' and '_': " + id);
+            }
+        }
+        this.selfId = selfId;
+        this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String id : nodes.keySet()) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(position(id + "#" + i), id);
+            }
+        }
+        // The code space is small, so every code's owner is worked out once up front
+        owners = new String[UploadUtils.DYNAMIC_ENDING_PORT - UploadUtils.DYNAMIC_STARTING_PORT];
+        List<Integer> local = new ArrayList<>();
+        for (int i = 0; i < owners.length; i++) {
+            Map.Entry<Long, String> next = ring.ceilingEntry(position(String.valueOf(UploadUtils.DYNAMIC_STARTING_PORT + i)));
+            owners[i] = (next != null ? next : ring.firstEntry()).getValue();
+            if (owners[i].equals(selfId)) {
+                local.add(UploadUtils.DYNAMIC_STARTING_PORT + i);
+            }
+        }
+        if (local.isEmpty()) {
+            throw new IllegalArgumentException("Node " + selfId + " owns no share codes, the cluster has too many nodes");
+        }
+        localCodes = local.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Reads the cluster from system properties.
+     *
+     * @return The ring, or null if this node runs on its own
+     */
+    public static ClusterRing fromSystemProperties() {
+        String list = System.getProperty("filetogo.cluster.nodes");
+        if (list == null || list.trim().isEmpty()) {
+            return null;
+        }
+        String selfId = System.getProperty("filetogo.cluster.node.id");
+        if (selfId == null) {
+            throw new IllegalArgumentException("-Dfiletogo.cluster.nodes needs -Dfiletogo.cluster.node.id");
+        }
+        Map<String, URI> nodes = new LinkedHashMap<>();
+        for (String entry : list.split(",")) {
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected id=url in -Dfiletogo.cluster.nodes: " + entry);
+            }
+            nodes.put(entry.substring(0, equals).trim(), URI.create(entry.substring(equals + 1).trim()));
+        }
+        return new ClusterRing(selfId, nodes);
+    }
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return ID of the node that owns the code, or null if it isn't a valid code
+     */
+    public String owner(int code) {
+        int index = code - UploadUtils.DYNAMIC_STARTING_PORT;
+        return index >= 0 && index < owners.length ? owners[index] : null;
+    }
+
+    public boolean isLocal(int code) {
+        return selfId.equals(owner(code));
+    }
+
+    /**
+     * A random code owned by this node, for a new share.
+     */
+    public int randomLocalCode() {
+        return localCodes[ThreadLocalRandom.current().nextInt(localCodes.length)];
+    }
+
+    /**
+     * Share codes this node can hand out.
+     */
+    public int getLocalCodeCount() {
+        return localCodes.length;
+    }
+
+    /**
+     * Prefix for IDs this node creates, like upload session IDs, so any node can tell
+     * where they belong with {@link #idOwner}.
+     */
+    public String idPrefix() {
+        return selfId + ".";
+    }
+
+    /**
+     * @return ID of the node that created an ID with {@link #idPrefix()}, or null
+     */
+    public String idOwner(String id) {
+        int dot = id.indexOf('.');
+        String owner = dot > 0 ? id.substring(0, dot) : null;
+        return owner != null && nodes.containsKey(owner) ? owner : null;
+    }
+
+    public URI address(String nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    /**
+     * Whether a connection from this address comes from another node of the cluster.
+     */
+    public boolean isPeer(InetAddress address) {
+        for (Map.Entry<String, URI> node : nodes.entrySet()) {
+            if (node.getKey().equals(selfId)) {
+                continue;
+            }
+            try {
+                for (InetAddress peer : InetAddress.getAllByName(node.getValue().getHost())) {
+                    if (peer.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // Not started yet, so it isn't the one connecting
+            }
+        }
+        return false;
+    }
+
+    private static long position(String value) {
+        return ByteBuffer.wrap(HashUtils.newSha256().digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+}
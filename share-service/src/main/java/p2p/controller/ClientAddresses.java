@@ -0,0 +1,169 @@
+package p2p.controller;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.cluster.ClusterRing;
+
+/**
+ * Works out which client a request came from, for the limits that apply per client.
+ *
+ * Behind a reverse proxy every request arrives from the proxy, so the connection's
+ * address alone would put all clients under one limit. Requests from a trusted proxy
+ * (filetogo.trusted.proxies, a comma-separated list of addresses or CIDR ranges) and
+ * requests forwarded by another cluster node are attributed to the address in their
+ * X-Forwarded-For header instead: the last entry that isn't itself a trusted proxy,
+ * since earlier entries were sent by the client and prove nothing. Without that header,
+ * a trusted proxy's X-Real-IP is used. Anything else is attributed to the connection.
+ */
+class ClientAddresses {
+    private final List<Range> trustedProxies;
+    private volatile ClusterRing cluster;
+
+    ClientAddresses() {
+        this(System.getProperty("filetogo.trusted.proxies", ""));
+    }
+
+    /**
+     * @param trustedProxies Comma-separated addresses or CIDR ranges, like "10.0.0.0/8,::1"
+     * @throws IllegalArgumentException if an entry isn't a literal address or range
+     */
+    ClientAddresses(String trustedProxies) {
+        this.trustedProxies = parseRanges(trustedProxies);
+    }
+
+    /**
+     * @param list Comma-separated addresses or CIDR ranges
+     * @throws IllegalArgumentException if an entry isn't a literal address or range
+     */
+    static List<Range> parseRanges(String list) {
+        List<Range> ranges = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            if (!entry.isBlank()) {
+                ranges.add(Range.parse(entry.trim()));
+            }
+        }
+        return ranges;
+    }
+
+    static boolean contains(List<Range> ranges, InetAddress address) {
+        for (Range range : ranges) {
+            if (range.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Also trusts the X-Forwarded-For header of requests the cluster's nodes forward.
+     */
+    void setCluster(ClusterRing cluster) {
+        this.cluster = cluster;
+    }
+
+    InetAddress resolve(HttpExchange exchange) {
+        InetAddress remote = exchange.getRemoteAddress().getAddress();
+        boolean fromProxy = isTrustedProxy(remote);
+        ClusterRing ring = cluster;
+        boolean fromNode = ring != null && exchange.getRequestHeaders().containsKey(NodeProxy.FORWARDED_BY)
+                && ring.isPeer(remote);
+        if (!fromProxy && !fromNode) {
+            return remote;
+        }
+
+        List<String> forwardedFor = exchange.getRequestHeaders().get("X-Forwarded-For");
+        if (forwardedFor != null) {
+            String[] hops = String.join(",", forwardedFor).split(",");
+            InetAddress client = remote;
+            for (int i = hops.length - 1; i >= 0; i--) {
+                InetAddress hop = literal(hops[i].trim());
+                if (hop == null) {
+                    break;
+                }
+                client = hop;
+                if (!isTrustedProxy(hop)) {
+                    break;
+                }
+            }
+            return client;
+        }
+        InetAddress realIp = fromProxy ? literal(exchange.getRequestHeaders().getFirst("X-Real-IP")) : null;
+        return realIp != null ? realIp : remote;
+    }
+
+    private boolean isTrustedProxy(InetAddress address) {
+        return contains(trustedProxies, address);
+    }
+
+    /**
+     * Parses a literal address, never a name, so a header can't cause a DNS lookup.
+     *
+     * @return The address, or null if the value isn't one
+     */
+    static InetAddress literal(String value) {
+        if (value == null || value.isEmpty() || !value.matches("[0-9a-fA-F.:]+")
+                || value.indexOf(':') < 0 && !value.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}")) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(value);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    static class Range {
+        private final byte[] network;
+        private final int prefixBits;
+
+        private Range(byte[] network, int prefixBits) {
+            this.network = network;
+            this.prefixBits = prefixBits;
+        }
+
+        static Range parse(String value) {
+            int slash = value.indexOf('/');
+            InetAddress address = literal(slash < 0 ? value : value.substring(0, slash));
+            if (address == null) {
+                throw new IllegalArgumentException("Not an address or CIDR range: " + value);
+            }
+            byte[] network = address.getAddress();
+            int prefixBits = network.length * 8;
+            if (slash >= 0) {
+                try {
+                    prefixBits = Integer.parseInt(value.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not an address or CIDR range: " + value);
+                }
+                if (prefixBits < 0 || prefixBits > network.length * 8) {
+                    throw new IllegalArgumentException("Prefix length out of range: " + value);
+                }
+            }
+            return new Range(network, prefixBits);
+        }
+
+        boolean contains(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length != network.length) {
+                return false;
+            }
+            int fullBytes = prefixBits / 8;
+            for (int i = 0; i < fullBytes; i++) {
+                if (bytes[i] != network[i]) {
+                    return false;
+                }
+            }
+            int remainingBits = prefixBits % 8;
+            if (remainingBits == 0) {
+                return true;
+            }
+            int mask = 0xFF << (8 - remainingBits);
+            return (bytes[fullBytes] & mask) == (network[fullBytes] & mask);
+        }
+    }
+}
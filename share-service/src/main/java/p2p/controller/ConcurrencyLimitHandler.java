@@ -0,0 +1,65 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.utils.MultipartFormUtils;
+
+/**
+ * Caps how many requests a route handles at the same time.
+ *
+ * With virtual threads the server itself no longer runs out of threads, so this is what
+ * keeps a flood of slow uploads from starving downloads (and the other way round).
+ * A request that can't get a permit within the wait time is answered with
+ * 503 and a Retry-After header instead of queueing forever.
+ */
+class ConcurrencyLimitHandler implements HttpHandler {
+    private static final byte[] OVERLOADED = "Service Unavailable: Too many concurrent requests".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpHandler delegate;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+
+    ConcurrencyLimitHandler(HttpHandler delegate, int maxConcurrent, long maxWaitMillis) {
+        this.delegate = delegate;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            MultipartFormUtils.respond(exchange, 503, OVERLOADED);
+            return;
+        }
+
+        try {
+            delegate.handle(exchange);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Number of requests currently being handled.
+     */
+    int inFlight() {
+        return maxConcurrent - permits.availablePermits();
+    }
+}
@@ -1,62 +1,357 @@
 package p2p.controller;
 
+import p2p.cluster.ClusterRing;
+import p2p.metrics.MetricsRegistry;
+import p2p.service.BandwidthShaper;
+import p2p.service.BlobStore;
+import p2p.service.BundleArchive;
+import p2p.service.CompressionService;
 import p2p.service.FileSharer;
+import p2p.service.HotFileCache;
+import p2p.service.LiveRelay;
+import p2p.service.RelayManager;
+import p2p.service.ShareIndex;
+import p2p.service.TransferServer;
+import p2p.service.UploadSession;
+import p2p.service.UploadSessionManager;
+import p2p.storage.StorageBackend;
+import p2p.utils.BufferPool;
+import p2p.utils.ByteRange;
+import p2p.utils.Checksums;
+import p2p.utils.ContentEncoding;
+import p2p.utils.HashUtils;
 import p2p.utils.MultipartFormUtils;
-import p2p.utils.MultipartParser;
 import p2p.utils.MultipartParser.FormPart;
+import p2p.utils.MultipartStreamParser;
+import p2p.utils.QueryParams;
+import p2p.utils.ScratchDirectory;
+import p2p.utils.UploadUtils;
 
 import java.io.*;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-
-import org.apache.commons.io.IOUtils;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class FileController {
+    public static final int DEFAULT_TRANSFER_PORT = 9090;
+    // Fixed response bodies, encoded once instead of on every request
+    private static final byte[] NOT_FOUND = "Not Found".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] METHOD_NOT_ALLOWED = "Method Not Allowed".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_MULTIPART = "Bad Request: Content-Type must be multipart/form-data".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SHARE_NOT_FOUND = "Not Found: File not available on this port".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SHARE_GONE = "Not Found: File is no longer available".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNAUTHORIZED = "Unauthorized: Invalid or missing password".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID_PORT = "Bad Request: Invalid port number".getBytes(StandardCharsets.UTF_8);
+
     private final FileSharer fileSharer;
+    private final BlobStore blobStore;
+    private final CompressionService compression;
+    private final HotFileCache hotCache;
+    private final TransferServer transferServer;
+    private final UploadSessionManager uploadSessions;
+    private final RelayManager relays;
     private final HttpServer server;
-    private final String uploadDir;
+    private final ServerEngine engine;
+    private final ScratchDirectory scratch;
     private final ExecutorService executorService;
+    private final MetricsRegistry metrics;
+    private final ClientAddresses clients;
+    private final UploadAdmission admission;
+    private final BandwidthShaper bandwidth;
+    // Null when this node runs on its own
+    private final ClusterRing cluster;
+    private final NodeProxy nodeProxy;
+    private final int maxBundleFiles = Integer.getInteger("filetogo.bundle.max.files", 10_000);
+    // Who may read /metrics and change /limits, by the connection's address and never a forwarded one
+    private final List<ClientAddresses.Range> adminAddresses =
+            ClientAddresses.parseRanges(System.getProperty("filetogo.admin.addresses", "127.0.0.0/8,::1"));
 
     public FileController(int port) throws IOException {
+        this(port, Integer.getInteger("filetogo.transfer.port", DEFAULT_TRANSFER_PORT));
+    }
+
+    public FileController(int port, int transferPort) throws IOException {
+        this(port, transferPort, ServerEngine.fromSystemProperties());
+    }
+
+    FileController(int port, int transferPort, ServerEngine engine) throws IOException {
         this.fileSharer = new FileSharer();
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "filetogo-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
+        // Loopback unless configured otherwise, the transfer protocol sends passwords in plain text
+        this.transferServer = new TransferServer(fileSharer, new InetSocketAddress(
+                InetAddress.getByName(System.getProperty("filetogo.transfer.bind", "127.0.0.1")), transferPort));
+        this.engine = engine;
+        this.server = engine.create(new InetSocketAddress(port));
+        String uploadDir = System.getProperty("filetogo.data.dir",
+                System.getProperty("java.io.tmpdir") + File.separator + "filetogo-uploads");
+        this.executorService = createExecutor();
         
         File uploadDirFile = new File(uploadDir);
         if (!uploadDirFile.exists()) {
             uploadDirFile.mkdirs();
         }
+        // -Dfiletogo.storage=s3 keeps blobs in an object store, the blob directory then caches them
+        File blobDir = new File(uploadDirFile, "blobs");
+        this.blobStore = new BlobStore(blobDir, StorageBackend.fromSystemProperties(blobDir));
+        fileSharer.restore(new ShareIndex(new File(uploadDirFile, "index")), blobStore);
+        // Uploads being received go to a directory of this run's, next to the blobs so they can be moved in
+        this.scratch = ScratchDirectory.create(new File(uploadDirFile, "tmp"));
+        cleanUpAfterRestart(uploadDirFile);
+        // -Dfiletogo.compression=false always sends files as stored
+        this.compression = Boolean.parseBoolean(System.getProperty("filetogo.compression", "true"))
+                ? new CompressionService() : null;
+        // -Dfiletogo.cache.max.bytes=0 turns the in-memory cache off
+        this.hotCache = Long.getLong("filetogo.cache.max.bytes", 1) > 0 ? new HotFileCache() : null;
+        this.uploadSessions = new UploadSessionManager(fileSharer, blobStore, scratch.getDir());
+        this.relays = new RelayManager(fileSharer);
+        
+        this.metrics = new MetricsRegistry();
+        // -Dfiletogo.trusted.proxies lets limits per client see through a reverse proxy
+        this.clients = new ClientAddresses();
+        this.admission = new UploadAdmission(uploadDirFile, clients);
+        uploadSessions.setOnSessionEnd(admission::releaseSession);
+        // -Dfiletogo.bandwidth.*.rate caps download speed, changeable later through /limits
+        this.bandwidth = new BandwidthShaper();
         
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
-        server.createContext("/health", new HealthHandler());
+        // -Dfiletogo.cluster.nodes makes this one of several nodes, each owning part of the codes
+        this.cluster = ClusterRing.fromSystemProperties();
+        this.nodeProxy = cluster != null ? new NodeProxy(cluster) : null;
+        if (cluster != null) {
+            fileSharer.setCodeGenerator(cluster::randomLocalCode);
+            uploadSessions.setIdPrefix(cluster.idPrefix());
+            relays.setCodeGenerator(cluster::randomLocalCode);
+            clients.setCluster(cluster);
+            System.out.println("Node " + cluster.getSelfId() + " of " + cluster.getNodeCount()
+                    + ", owning " + cluster.getLocalCodeCount() + " share codes");
+        }
+        long maxWait = Long.getLong("filetogo.limit.wait.millis", 2000);
+        // Admission runs first so uploads that can't be taken are turned away without waiting
+        route("/upload", admission.guard(new ConcurrencyLimitHandler(new UploadHandler(),
+                Integer.getInteger("filetogo.limit.upload", 256), maxWait)));
+        route("/uploads", admission.guard(new ConcurrencyLimitHandler(new UploadSessionHandler(),
+                Integer.getInteger("filetogo.limit.uploads", 1024), maxWait)));
+        route("/download", new ConcurrencyLimitHandler(new DownloadHandler(),
+                Integer.getInteger("filetogo.limit.download", 2048), maxWait));
+        // Relays never touch the disk, so they skip upload admission
+        route("/relay", new ConcurrencyLimitHandler(new RelayHandler(),
+                Integer.getInteger("filetogo.limit.relay", 256), maxWait));
+        route("/health", new HealthHandler());
+        route("/limits", new LimitsHandler());
+        server.createContext("/metrics", new MetricsHandler());
         server.createContext("/", new CORSHandler());
+        registerMetrics(uploadDirFile);
         
         server.setExecutor(executorService);
     }
     
+    /**
+     * Deletes what a previous run left behind and no restored share uses: unreferenced
+     * blobs, interrupted uploads and upload sessions (which don't survive a restart).
+     * Runs in the background so it doesn't hold up startup.
+     */
+    private void cleanUpAfterRestart(File uploadDirFile) {
+        Thread cleaner = new Thread(() -> {
+            // Only runs that ended, other servers may share the data directory
+            int deleted = blobStore.deleteUnreferenced() + ScratchDirectory.deleteAbandoned(new File(uploadDirFile, "tmp"));
+            if (deleted > 0) {
+                System.out.println("Deleted " + deleted + " files left over from a previous run");
+            }
+        }, "startup-cleanup");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+    
+    /**
+     * Creates a context whose requests are counted and timed under its path.
+     */
+    private void route(String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new MetricsFilter(metrics, path));
+        if (handler instanceof ConcurrencyLimitHandler) {
+            ConcurrencyLimitHandler limiter = (ConcurrencyLimitHandler) handler;
+            metrics.gauge("filetogo_http_requests_in_flight", "Requests currently being handled",
+                    limiter::inFlight, "route", path);
+        }
+    }
+    
+    private void registerMetrics(File uploadDirFile) {
+        metrics.gauge("filetogo_shares_active", "Shares that can currently be downloaded",
+                fileSharer::getShareCount);
+        metrics.counter("filetogo_shares_expired_total", "Shares removed because their TTL ran out",
+                fileSharer::getExpiredShares);
+        metrics.counter("filetogo_downloads_completed_total", "Downloads that delivered the whole file",
+                fileSharer::getCompletedDownloads);
+        metrics.gauge("filetogo_blobs_stored", "Distinct file contents in the blob store",
+                blobStore::getBlobCount);
+        metrics.counter("filetogo_blob_dedup_hits_total", "Uploads whose content was already stored",
+                blobStore::getDedupHits);
+        metrics.gauge("filetogo_storage_cached_bytes", "Bytes of remotely stored blobs cached on local disk",
+                blobStore::getCachedBytes);
+        metrics.counter("filetogo_storage_fetches_total", "Blobs fetched from the storage backend for a download",
+                blobStore::getFetches);
+        metrics.counter("filetogo_storage_evictions_total", "Cached blobs deleted from local disk to make room",
+                blobStore::getEvictions);
+        if (compression != null) {
+            metrics.counter("filetogo_compressed_streams_total", "Downloads compressed while streaming",
+                    compression::getCompressedStreams);
+            metrics.counter("filetogo_compressed_cache_hits_total", "Downloads served from a cached compressed variant",
+                    compression::getCacheHits);
+        }
+        if (hotCache != null) {
+            metrics.counter("filetogo_cache_hits_total", "Downloads served from the in-memory cache",
+                    hotCache::getHits);
+            metrics.counter("filetogo_cache_misses_total", "Cacheable downloads that had to read the file",
+                    hotCache::getMisses);
+            metrics.counter("filetogo_cache_evictions_total", "Files evicted from the in-memory cache",
+                    hotCache::getEvictions);
+            metrics.counter("filetogo_cache_rejections_total", "Misses not cached because the file wasn't popular enough",
+                    hotCache::getRejections);
+            metrics.gauge("filetogo_cache_used_bytes", "Bytes held by the in-memory cache",
+                    hotCache::getUsedBytes);
+            metrics.gauge("filetogo_cache_entries", "Files held by the in-memory cache",
+                    hotCache::getEntryCount);
+            metrics.gauge("filetogo_cache_hit_ratio", "Share of cacheable downloads served from memory",
+                    () -> {
+                        long hits = hotCache.getHits();
+                        long total = hits + hotCache.getMisses();
+                        return total == 0 ? 0 : (double) hits / total;
+                    });
+        }
+        metrics.gauge("filetogo_upload_reserved_bytes", "Bytes reserved by uploads in progress",
+                admission::getReservedBytes);
+        metrics.counter("filetogo_upload_rejected_total", "Uploads turned away before reading the body",
+                admission::getRejectedBusy, "reason", "busy");
+        metrics.counter("filetogo_upload_rejected_total", "Uploads turned away before reading the body",
+                admission::getRejectedDisk, "reason", "disk");
+        metrics.counter("filetogo_upload_rejected_total", "Uploads turned away before reading the body",
+                admission::getRejectedClient, "reason", "client");
+        metrics.gauge("filetogo_upload_sessions_active", "Chunked upload sessions in progress",
+                uploadSessions::getSessionCount);
+        metrics.gauge("filetogo_relays_active", "Live relays waiting for or streaming between sender and receiver",
+                relays::getRelayCount);
+        metrics.counter("filetogo_relays_completed_total", "Live relays whose receiver got every byte",
+                relays::getCompleted);
+        metrics.counter("filetogo_relays_failed_total", "Live relays aborted or never used",
+                relays::getFailed);
+        metrics.counter("filetogo_relayed_bytes_total", "Bytes streamed by live relays that have ended",
+                relays::getRelayedBytes);
+        metrics.counter("filetogo_copy_buffers_allocated_total", "Copy buffers allocated because none was free in the pool",
+                BufferPool::getAllocated);
+        metrics.gauge("filetogo_copy_buffers_pooled", "Copy buffers waiting in the pool",
+                BufferPool::getPooled);
+        if (nodeProxy != null) {
+            metrics.counter("filetogo_cluster_forwarded_total", "Requests passed on to the node that owns them",
+                    nodeProxy::getForwarded);
+            metrics.counter("filetogo_cluster_forward_failures_total", "Requests that couldn't be passed on to their node",
+                    nodeProxy::getFailed);
+        }
+        metrics.gauge("filetogo_bandwidth_limit_bytes_per_second", "Download bandwidth limit, 0 if unlimited",
+                bandwidth::getGlobalRate, "scope", "global");
+        metrics.gauge("filetogo_bandwidth_limit_bytes_per_second", "Download bandwidth limit, 0 if unlimited",
+                bandwidth::getClientRate, "scope", "client");
+        metrics.gauge("filetogo_bandwidth_limit_bytes_per_second", "Download bandwidth limit, 0 if unlimited",
+                bandwidth::getShareRate, "scope", "share");
+        metrics.gauge("filetogo_bandwidth_shaped_transfers", "Downloads currently sending through the bandwidth shaper",
+                bandwidth::getActiveFlows);
+        metrics.counter("filetogo_bandwidth_shaped_bytes_total", "Download bytes sent through the bandwidth shaper",
+                bandwidth::getShapedBytes);
+        metrics.counter("filetogo_bandwidth_throttled_seconds_total", "Time downloads spent waiting for bandwidth",
+                () -> bandwidth.getThrottledNanos() / 1e9);
+        metrics.counter("filetogo_transfer_sent_bytes_total", "File bytes sent by the transfer server",
+                transferServer::getBytesSent);
+        // Virtual threads are started per task and never queue
+        metrics.gauge("filetogo_executor_queue_depth", "Requests waiting for a handler thread",
+                () -> executorService instanceof ThreadPoolExecutor
+                        ? ((ThreadPoolExecutor) executorService).getQueue().size() : 0);
+        metrics.gauge("filetogo_upload_dir_used_bytes", "Bytes of stored files in the upload directory",
+                blobStore::getLocalBytes);
+        metrics.gauge("filetogo_upload_dir_usable_bytes", "Free bytes on the upload directory's file system",
+                uploadDirFile::getUsableSpace);
+    }
+    
+    /**
+     * Handlers run on virtual threads by default, so thousands of slow clients only cost
+     * memory, not platform threads. -Dfiletogo.executor=fixed restores a classic pool
+     * of filetogo.executor.threads platform threads.
+     */
+    private static ExecutorService createExecutor() {
+        String mode = System.getProperty("filetogo.executor", "virtual");
+        if (mode.equalsIgnoreCase("fixed")) {
+            return Executors.newFixedThreadPool(Integer.getInteger("filetogo.executor.threads", 10));
+        }
+        if (!mode.equalsIgnoreCase("virtual")) {
+            throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+    
     public void start() {
+        transferServer.start();
         server.start();
-        System.out.println("API server started on port " + server.getAddress().getPort());
+        System.out.println("API server started on port " + server.getAddress().getPort() + " (" + engine.scheme() + ")");
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
     }
     
     public void stop() {
         server.stop(0);
+        transferServer.stop();
+        uploadSessions.shutdown();
+        relays.shutdown();
+        fileSharer.shutdown();
+        if (compression != null) {
+            compression.shutdown();
+        }
         executorService.shutdown();
+        try {
+            scratch.close();
+        } catch (IOException e) {
+            System.err.println("Error removing temporary files: " + e.getMessage());
+        }
         System.out.println("API server stopped");
     }
     
+    /**
+     * Upload response with the share code and the checksums of the stored content, so the
+     * client can check the server received exactly what it sent.
+     */
+    private static String shareJson(int port, BlobStore.Blob blob) {
+        StringBuilder json = new StringBuilder("{\"port\": ").append(port);
+        if (blob != null) {
+            json.append(", \"sha256\": \"").append(blob.getHash()).append('"');
+            if (blob.getCrc32c() != Checksums.UNKNOWN_CRC32C) {
+                json.append(", \"crc32c\": \"").append(Checksums.crc32cHex(blob.getCrc32c())).append('"');
+            }
+        }
+        return json.append('}').toString();
+    }
+    
     private class CORSHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -64,7 +359,7 @@ public class FileController {
             String origin = exchange.getRequestHeaders().getFirst("Origin");
             
             // Allow only same-origin requests
-            if (origin != null && origin.equals("http://" + exchange.getLocalAddress().getHostName() + ":" + exchange.getLocalAddress().getPort())) {
+            if (origin != null && origin.equals(engine.scheme() + "://" + exchange.getLocalAddress().getHostName() + ":" + exchange.getLocalAddress().getPort())) {
             headers.add("Access-Control-Allow-Origin", origin);
             headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
             headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
@@ -75,15 +370,18 @@ public class FileController {
             return;
             }
             
-            String response = "Not Found";
-            exchange.sendResponseHeaders(404, response.getBytes().length);
+            exchange.sendResponseHeaders(404, NOT_FOUND.length);
             try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
+            os.write(NOT_FOUND);
             }
         }
     }
     
     private class HealthHandler implements HttpHandler {
+        // The same for every check, so it is only built once
+        private final byte[] response = ("{\"status\":\"ok\",\"message\":\"ShareIO service is running\""
+                + (cluster != null ? ",\"node\":\"" + cluster.getSelfId() + "\"" : "") + "}").getBytes(StandardCharsets.UTF_8);
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
@@ -96,18 +394,98 @@ public class FileController {
             }
             
             if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
-                String response = "Method Not Allowed";
-                exchange.sendResponseHeaders(405, response.getBytes().length);
+                exchange.sendResponseHeaders(405, METHOD_NOT_ALLOWED.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    os.write(METHOD_NOT_ALLOWED);
+                }
+                return;
+            }
+            
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
+    }
+    
+    private boolean isAdmin(HttpExchange exchange) {
+        return ClientAddresses.contains(adminAddresses, exchange.getRemoteAddress().getAddress());
+    }
+    
+    /**
+     * Prometheus scrape endpoint, for the admin addresses only.
+     */
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!isAdmin(exchange)) {
+                MultipartFormUtils.respond(exchange, 403, "Forbidden: Metrics are only served to admin addresses");
+                return;
+            }
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                MultipartFormUtils.respond(exchange, 405, METHOD_NOT_ALLOWED);
+                return;
+            }
+            
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    /**
+     * Shows and changes the download bandwidth limits. Only reachable from the admin
+     * addresses (filetogo.admin.addresses, this host by default), e.g. PUT /limits?global=104857600&client=10485760&share=0 (bytes per second,
+     * 0 for unlimited, limits left out stay as they are).
+     */
+    private class LimitsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!isAdmin(exchange)) {
+                MultipartFormUtils.respond(exchange, 403, "Forbidden: Limits can only be changed from admin addresses");
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            if (method.equalsIgnoreCase("PUT") || method.equalsIgnoreCase("POST")) {
+                Map<String, String> params = QueryParams.parse(exchange.getRequestURI().getRawQuery());
+                try {
+                    bandwidth.setRates(rate(params, "global", bandwidth.getGlobalRate()),
+                            rate(params, "client", bandwidth.getClientRate()),
+                            rate(params, "share", bandwidth.getShareRate()));
+                } catch (IllegalArgumentException e) {
+                    MultipartFormUtils.respond(exchange, 400, "Bad Request: " + e.getMessage());
+                    return;
                 }
+                System.out.println("Bandwidth limits changed to global=" + bandwidth.getGlobalRate()
+                        + " client=" + bandwidth.getClientRate() + " share=" + bandwidth.getShareRate() + " bytes/s");
+            } else if (!method.equalsIgnoreCase("GET")) {
+                MultipartFormUtils.respond(exchange, 405, METHOD_NOT_ALLOWED);
                 return;
             }
             
-            String response = "{\"status\":\"ok\",\"message\":\"ShareIO service is running\"}";
-            exchange.sendResponseHeaders(200, response.getBytes().length);
+            byte[] body = ("{\"global\": " + bandwidth.getGlobalRate()
+                    + ", \"client\": " + bandwidth.getClientRate()
+                    + ", \"share\": " + bandwidth.getShareRate()
+                    + ", \"activeTransfers\": " + bandwidth.getActiveFlows() + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
+                os.write(body);
+            }
+        }
+        
+        private long rate(Map<String, String> params, String name, long current) {
+            String value = params.get(name);
+            if (value == null) {
+                return current;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + " rate: " + value);
             }
         }
     }
@@ -122,10 +500,9 @@ public class FileController {
             headers.add("Access-Control-Allow-Origin", "*");
             
             if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-                String response = "Method Not Allowed";
-                exchange.sendResponseHeaders(405, response.getBytes().length);
+                exchange.sendResponseHeaders(405, METHOD_NOT_ALLOWED.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    os.write(METHOD_NOT_ALLOWED);
                 }
                 return;
             }
@@ -133,17 +510,25 @@ public class FileController {
             Headers requestHeaders = exchange.getRequestHeaders();
             String contentType = requestHeaders.getFirst("Content-Type");
             
+            // An optional sha256 query parameter is checked against the upload. It is never
+            // enough on its own: a hash would let anyone share stored content, even content
+            // that was only shared with a password
+            Map<String, String> params = QueryParams.parse(exchange.getRequestURI().getRawQuery());
+            String expectedHash = params.get("sha256");
+            if (expectedHash != null && !HashUtils.isSha256(expectedHash)) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: sha256 must be 64 hex digits");
+                return;
+            }
+            
             if (contentType == null || !contentType.startsWith("multipart/form-data")) {
-                String response = "Bad Request: Content-Type must be multipart/form-data";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
+                exchange.sendResponseHeaders(400, NOT_MULTIPART.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    os.write(NOT_MULTIPART);
                 }
                 return;
             }
             
             try {
-                System.out.println("Request Headers: " + requestHeaders);
                 /**
                  * here we get the boundary part
                  * which is like: boundary=----WebKitFormBoundaryKzmxgAa2mIAnqOMJ
@@ -152,34 +537,61 @@ public class FileController {
                 String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
 
                 /**
-                 * we get the boundary and then
-                 * we convert it to bytes
-                 * we use the multipart parser to parse the request body
-                 * and extract the file content
-                 * we then save the file to the upload directory
-                 * and offer the file to the FileSharer
-                 * which will return a port number
-                 * we then start the file server on that port
-                 * and return the port number to the client
+                 * we stream the request body through the multipart parser
+                 * the file part is written straight to the upload directory
+                 * while small fields like the password are kept in memory
+                 * we then offer the stored file to the FileSharer
+                 * which will return a share code
+                 * the transfer server serves it from then on
+                 * and we return the code to the client
                  * as a JSON response
                  */
                 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();
+                List<FormPart> allParts;
+                try {
+                    MultipartStreamParser parser = new MultipartStreamParser(exchange.getRequestBody(), boundary, scratch.getDir(), blobStore, maxBundleFiles);
+                    allParts = parser.parseAll();
+                } catch (IllegalArgumentException e) {
+                    MultipartFormUtils.respond(exchange, 400, "Bad Request: " + e.getMessage());
+                    return;
+                }
+                
+                // Every "file" part is shared, other uploaded files are dropped
+                List<FormPart> fileParts = new ArrayList<>();
+                Map<String, FormPart> parts = new HashMap<>();
+                for (FormPart part : allParts) {
+                    if (part.storedFile == null) {
+                        parts.put(part.name, part);
+                    } else if (part.name.equals("file")) {
+                        fileParts.add(part);
+                    } else {
+                        blobStore.discard(part.storedFile);
+                    }
+                }
                 
-                MultipartParser parser = new MultipartParser(requestData, boundary);
-                Map<String, FormPart> parts = parser.parseParts();
+                if (fileParts.size() > 1) {
+                    shareBundle(exchange, fileParts, parts, expectedHash);
+                    return;
+                }
                 
                 // Use utility to extract file with validation
                 FormPart filePart;
                 try {
+                    if (fileParts.size() == 1) {
+                        parts.put("file", fileParts.get(0));
+                    }
                     filePart = MultipartFormUtils.extractRequiredFile(parts, "file");
                 } catch (IllegalArgumentException e) {
                     MultipartFormUtils.respond(exchange, 400, "Bad Request: " + e.getMessage());
                     return;
                 }
                 
+                if (expectedHash != null && !expectedHash.equalsIgnoreCase(filePart.sha256)) {
+                    blobStore.discard(filePart.storedFile);
+                    MultipartFormUtils.respond(exchange, 400, "Bad Request: File content does not match sha256");
+                    return;
+                }
+                
                 // Extract optional password field
                 String password = MultipartFormUtils.extractFieldAsString(parts, "password");
                 
@@ -190,44 +602,380 @@ public class FileController {
                     System.out.println("No password provided");
                 }
                 
-                String filename = filePart.filename;
-                if (filename == null || filename.trim().isEmpty()) {
-                    filename = "unnamed-file";
-                }
-                
-                String uniqueFilename = UUID.randomUUID().toString() + "_" + new File(filename).getName();
-                String filePath = uploadDir + File.separator + uniqueFilename;
-                
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(filePart.content);
-                }
+                // Identical content is stored once, this upload just takes another reference
+                BlobStore.Blob blob = blobStore.store(filePart.storedFile, filePart.sha256, filePart.crc32c);
+                System.out.println("Stored '" + filePart.filename + "' (" + filePart.size + " bytes) as blob " + blob.getHash());
                 
                 // Offer file with password if provided
+                String filename = UploadUtils.sanitizeFileName(filePart.filename);
                 int port;
                 if (password != null && !password.trim().isEmpty()) {
-                    port = fileSharer.offerFile(filePath, password);
+                    port = fileSharer.offerBlob(blob, filename, filePart.contentType, password);
                     System.out.println("File offered with password protection on port: " + port);
                 } else {
-                    port = fileSharer.offerFile(filePath);
+                    port = fileSharer.offerBlob(blob, filename, filePart.contentType, null);
                     System.out.println("File offered without password on port: " + port);
                 }
                 
-                new Thread(() -> fileSharer.startFileServer(port)).start();
-                
-                String jsonResponse = "{\"port\": " + port + "}";
+                byte[] jsonResponse = shareJson(port, blob).getBytes(StandardCharsets.UTF_8);
                 headers.add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+                exchange.sendResponseHeaders(200, jsonResponse.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(jsonResponse.getBytes());
+                    os.write(jsonResponse);
                 }
                 
             } catch (Exception e) {
                 System.err.println("Error processing file upload: " + e.getMessage());
-                String response = "Server error: " + e.getMessage();
-                exchange.sendResponseHeaders(500, response.getBytes().length);
+                byte[] response = ("Server error: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(500, response.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    os.write(response);
+                }
+            }
+        }
+        
+        /**
+         * Shares several uploaded files under one code. File names may carry a relative
+         * path ("docs/a.txt"), which is kept as the file's place in the bundle.
+         */
+        private void shareBundle(HttpExchange exchange, List<FormPart> fileParts, Map<String, FormPart> fields, String expectedHash) throws IOException {
+            List<String> paths = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            String error = null;
+            if (expectedHash != null) {
+                error = "sha256 can only be checked for a single file";
+            }
+            for (FormPart part : fileParts) {
+                String path = UploadUtils.sanitizeRelativePath(part.filename);
+                if (error == null && !seen.add(path)) {
+                    error = "Duplicate file path " + path;
+                }
+                paths.add(path);
+            }
+            if (error != null) {
+                fileParts.forEach(part -> blobStore.discard(part.storedFile));
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: " + error);
+                return;
+            }
+            
+            String password = MultipartFormUtils.extractFieldAsString(fields, "password");
+            if (password != null && password.trim().isEmpty()) {
+                password = null;
+            }
+            
+            List<FileSharer.FileInfo> members = new ArrayList<>();
+            try {
+                for (int i = 0; i < fileParts.size(); i++) {
+                    FormPart part = fileParts.get(i);
+                    BlobStore.Blob blob = blobStore.store(part.storedFile, part.sha256, part.crc32c);
+                    members.add(new FileSharer.FileInfo(blob, paths.get(i), part.contentType, null, Long.MAX_VALUE, 0));
+                }
+            } catch (IOException | RuntimeException e) {
+                members.forEach(member -> member.getBlob().release());
+                fileParts.subList(members.size(), fileParts.size()).forEach(part -> blobStore.discard(part.storedFile));
+                throw e;
+            }
+            
+            // The bundle owns the blob references from here on
+            int port = fileSharer.offerBundle(bundleName(fields, paths), members, password);
+            System.out.println("Bundle of " + members.size() + " files offered on port: " + port);
+            
+            byte[] jsonResponse = ("{\"port\": " + port + ", \"files\": " + members.size() + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, jsonResponse.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(jsonResponse);
+            }
+        }
+        
+        /**
+         * The "name" field if one was sent, otherwise the directory all files are in.
+         */
+        private String bundleName(Map<String, FormPart> fields, List<String> paths) {
+            String name = MultipartFormUtils.extractFieldAsString(fields, "name");
+            if (name != null && !name.trim().isEmpty()) {
+                return UploadUtils.sanitizeFileName(name);
+            }
+            int slash = paths.get(0).indexOf('/');
+            if (slash > 0) {
+                String directory = paths.get(0).substring(0, slash + 1);
+                if (paths.stream().allMatch(path -> path.startsWith(directory))) {
+                    return paths.get(0).substring(0, slash);
+                }
+            }
+            return "bundle";
+        }
+    }
+    
+    /**
+     * Chunked, resumable uploads:
+     *   POST   /uploads?filename=a.bin&size=123[&chunkSize=n][&pass=p]  create a session
+     *   PUT    /uploads/{id}/chunks/{index}                              upload one chunk, in any order
+     *   GET    /uploads/{id}                                             which chunks are still missing
+     *   POST   /uploads/{id}/commit                                      share the file, returns its code
+     *   DELETE /uploads/{id}                                             abort the session
+     */
+    private class UploadSessionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            
+            String method = exchange.getRequestMethod().toUpperCase();
+            String[] segments = exchange.getRequestURI().getPath().substring("/uploads".length()).split("/");
+            // segments[0] is always empty because the remaining path starts with '/'
+            
+            try {
+                if (segments.length <= 1) {
+                    if (method.equals("POST")) {
+                        createSession(exchange);
+                    } else {
+                        MultipartFormUtils.respond(exchange, 405, METHOD_NOT_ALLOWED);
+                    }
+                    return;
+                }
+                
+                // Sessions live on the node that created them
+                String owner = cluster != null ? cluster.idOwner(segments[1]) : null;
+                if (owner != null && !owner.equals(cluster.getSelfId())) {
+                    nodeProxy.forward(exchange, owner);
+                    return;
+                }
+                
+                UploadSession session = uploadSessions.get(segments[1]);
+                if (session == null) {
+                    MultipartFormUtils.respond(exchange, 404, "Not Found: Unknown upload session");
+                    return;
+                }
+                
+                if (segments.length == 2 && method.equals("GET")) {
+                    sendStatus(exchange, session);
+                } else if (segments.length == 2 && method.equals("DELETE")) {
+                    uploadSessions.abort(session.getId());
+                    exchange.sendResponseHeaders(204, -1);
+                    exchange.close();
+                } else if (segments.length == 4 && segments[2].equals("chunks") && method.equals("PUT")) {
+                    // The session reserved the chunk's space, what it fills on disk is given back
+                    admission.releaseSession(session.writeChunk(Integer.parseInt(segments[3]), exchange.getRequestBody()));
+                    sendJson(exchange, 200, "{\"received\": " + session.receivedCount()
+                            + ", \"chunkCount\": " + session.getChunkCount() + "}");
+                } else if (segments.length == 3 && segments[2].equals("commit") && method.equals("POST")) {
+                    int port = uploadSessions.commit(session);
+                    System.out.println("Upload session " + session.getId() + " committed on port: " + port);
+                    FileSharer.FileInfo committed = fileSharer.getFileInfo(port);
+                    sendJson(exchange, 200, shareJson(port, committed != null ? committed.getBlob() : null));
+                } else {
+                    MultipartFormUtils.respond(exchange, 405, METHOD_NOT_ALLOWED);
                 }
+            } catch (NumberFormatException e) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: Invalid number");
+            } catch (IllegalArgumentException e) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                MultipartFormUtils.respond(exchange, 409, "Conflict: " + e.getMessage());
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Error processing upload session: " + e.getMessage());
+                MultipartFormUtils.respond(exchange, 500, "Server error: " + e.getMessage());
+            }
+        }
+        
+        private void createSession(HttpExchange exchange) throws IOException {
+            Map<String, String> params = QueryParams.parse(exchange.getRequestURI().getRawQuery());
+            String size = params.get("size");
+            if (size == null) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: size is required");
+                return;
+            }
+            
+            String chunkSize = params.get("chunkSize");
+            String password = params.get("pass");
+            if (password != null && password.trim().isEmpty()) {
+                password = null;
+            }
+            
+            long sessionSize = Long.parseLong(size);
+            int sessionChunkSize = chunkSize != null ? Integer.parseInt(chunkSize) : UploadSessionManager.DEFAULT_CHUNK_SIZE;
+            // The chunks come one request at a time, so the whole file is reserved up front,
+            // once the session is known to be valid
+            uploadSessions.validate(sessionSize, sessionChunkSize);
+            if (sessionSize > 0 && !admission.reserveSession(sessionSize)) {
+                exchange.getResponseHeaders().add("Retry-After", "30");
+                MultipartFormUtils.respond(exchange, 503, "Service Unavailable: Not enough disk space");
+                return;
+            }
+            UploadSession session;
+            try {
+                session = uploadSessions.create(params.get("filename"), sessionSize, sessionChunkSize, password);
+            } catch (IOException | RuntimeException e) {
+                admission.releaseSession(Math.max(sessionSize, 0));
+                throw e;
+            }
+            System.out.println("Upload session " + session.getId() + " created for " + session.getSize() + " bytes");
+            
+            sendJson(exchange, 201, "{\"sessionId\": \"" + session.getId() + "\""
+                    + ", \"chunkSize\": " + session.getChunkSize()
+                    + ", \"chunkCount\": " + session.getChunkCount() + "}");
+        }
+        
+        private void sendStatus(HttpExchange exchange, UploadSession session) throws IOException {
+            BitSet received = session.receivedChunks();
+            StringBuilder missing = new StringBuilder();
+            for (int i = received.nextClearBit(0); i < session.getChunkCount(); i = received.nextClearBit(i + 1)) {
+                if (missing.length() > 0) {
+                    missing.append(", ");
+                }
+                missing.append(i);
+            }
+            
+            sendJson(exchange, 200, "{\"sessionId\": \"" + session.getId() + "\""
+                    + ", \"size\": " + session.getSize()
+                    + ", \"chunkSize\": " + session.getChunkSize()
+                    + ", \"chunkCount\": " + session.getChunkCount()
+                    + ", \"received\": " + received.cardinality()
+                    + ", \"missing\": [" + missing + "]}");
+        }
+        
+        private void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    /**
+     * Live relays: POST /relay?filename=&size=&pass= creates one and answers its code
+     * and sender token, PUT /relay/{code} streams the file to whoever downloads that code
+     * and only completes once the receiver got all of it, DELETE /relay/{code} cancels
+     * it. Both take the sender token in the X-Relay-Token header.
+     */
+    private class RelayHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            String method = exchange.getRequestMethod().toUpperCase();
+            String[] segments = exchange.getRequestURI().getPath().substring("/relay".length()).split("/");
+            
+            try {
+                if (segments.length <= 1) {
+                    if (method.equals("POST")) {
+                        createRelay(exchange);
+                    } else {
+                        MultipartFormUtils.respond(exchange, 405, METHOD_NOT_ALLOWED);
+                    }
+                    return;
+                }
+                
+                int code = Integer.parseInt(segments[1]);
+                // Relays live on the node that owns their code, like shares
+                if (cluster != null && !cluster.isLocal(code) && cluster.owner(code) != null) {
+                    nodeProxy.forward(exchange, cluster.owner(code));
+                    return;
+                }
+                LiveRelay relay = relays.get(code);
+                if (relay == null || segments.length > 2) {
+                    MultipartFormUtils.respond(exchange, 404, "Not Found: Unknown live relay");
+                    return;
+                }
+                
+                if (!relay.isSender(exchange.getRequestHeaders().getFirst("X-Relay-Token"))) {
+                    MultipartFormUtils.respond(exchange, 403, "Forbidden: Missing or wrong relay token");
+                    return;
+                }
+                if (method.equals("PUT")) {
+                    receive(exchange, relay);
+                } else if (method.equals("DELETE")) {
+                    relays.abort(relay, "The sender cancelled it");
+                    exchange.sendResponseHeaders(204, -1);
+                    exchange.close();
+                } else {
+                    MultipartFormUtils.respond(exchange, 405, METHOD_NOT_ALLOWED);
+                }
+            } catch (NumberFormatException e) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: Invalid number");
+            } catch (IllegalStateException e) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                MultipartFormUtils.respond(exchange, 503, "Service Unavailable: " + e.getMessage());
+            }
+        }
+        
+        private void createRelay(HttpExchange exchange) throws IOException {
+            Map<String, String> params = QueryParams.parse(exchange.getRequestURI().getRawQuery());
+            String size = params.get("size");
+            long declared = size != null ? Long.parseLong(size) : -1;
+            if (size != null && declared < 0) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: size must not be negative");
+                return;
+            }
+            String password = params.get("pass");
+            if (password != null && password.trim().isEmpty()) {
+                password = null;
+            }
+            
+            LiveRelay relay = relays.create(clients.resolve(exchange), params.get("filename"), declared, password);
+            if (relay == null) {
+                exchange.getResponseHeaders().add("Retry-After", "30");
+                MultipartFormUtils.respond(exchange, 429, "Too Many Requests: Too many live relays from this client");
+                return;
+            }
+            System.out.println("Live relay " + relay.getCode() + " created for '" + relay.getFilename() + "'"
+                    + (declared >= 0 ? " (" + declared + " bytes)" : ""));
+            sendJson(exchange, 201, "{\"port\": " + relay.getCode() + ", \"token\": \"" + relay.getSenderToken() + "\"}");
+        }
+        
+        /**
+         * Pipes the request body into the relay, waiting for the receiver whenever its
+         * buffer is full.
+         */
+        private void receive(HttpExchange exchange, LiveRelay relay) throws IOException {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (relay.getSize() >= 0 && contentLength != null && Long.parseLong(contentLength.trim()) != relay.getSize()) {
+                MultipartFormUtils.respond(exchange, 400, "Bad Request: Content-Length differs from the size given when the relay was created");
+                return;
+            }
+            if (!relay.attachSender()) {
+                MultipartFormUtils.respond(exchange, 409, "Conflict: This live relay already has a sender");
+                return;
+            }
+            
+            long received = 0;
+            try {
+                byte[] buffer = BufferPool.acquire();
+                try (InputStream in = exchange.getRequestBody()) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        relay.write(buffer, 0, n);
+                        received += n;
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+                if (relay.getSize() >= 0 && received != relay.getSize()) {
+                    relays.abort(relay, "The sender sent " + received + " of " + relay.getSize() + " bytes");
+                    MultipartFormUtils.respond(exchange, 400, "Bad Request: Expected " + relay.getSize() + " bytes, got " + received);
+                    return;
+                }
+                relay.finish();
+                relay.awaitDelivered();
+            } catch (IOException e) {
+                relays.abort(relay, "The sender disconnected");
+                System.err.println("Live relay " + relay.getCode() + " failed: " + e.getMessage());
+                // Tell the client not to send the rest of a body we are not going to read
+                exchange.getResponseHeaders().add("Connection", "close");
+                MultipartFormUtils.respond(exchange, 410, "Gone: " + e.getMessage());
+                return;
+            }
+            sendJson(exchange, 200, "{\"port\": " + relay.getCode() + ", \"bytes\": " + received + "}");
+        }
+        
+        private void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
             }
         }
     }
@@ -239,16 +987,19 @@ public class FileController {
             headers.add("Access-Control-Allow-Origin", "*");
             
             if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
-                String response = "Method Not Allowed";
-                exchange.sendResponseHeaders(405, response.getBytes().length);
+                exchange.sendResponseHeaders(405, METHOD_NOT_ALLOWED.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    os.write(METHOD_NOT_ALLOWED);
                 }
                 return;
             }
             
+            // /download/{code}, and for bundles /download/{code}/files[/{path in the bundle}]
             String path = exchange.getRequestURI().getPath();
-            String portStr = path.substring(path.lastIndexOf('/') + 1);
+            String[] segments = path.substring(path.indexOf("/download") + "/download".length()).split("/", 4);
+            String portStr = segments.length > 1 ? segments[1] : "";
+            String view = segments.length > 2 ? segments[2] : null;
+            String memberPath = segments.length > 3 ? segments[3] : null;
             
             // Extract password from query parameters
             String query = exchange.getRequestURI().getQuery();
@@ -271,97 +1022,479 @@ public class FileController {
             try {
                 int port = Integer.parseInt(portStr);
                 
+                // Shares live on the node that owns their code
+                if (cluster != null && !cluster.isLocal(port) && cluster.owner(port) != null) {
+                    nodeProxy.forward(exchange, cluster.owner(port));
+                    return;
+                }
+                
+                LiveRelay relay = relays.get(port);
+                if (relay != null) {
+                    sendRelay(exchange, relay, clientPassword);
+                    return;
+                }
+                
                 // Check if file exists on the port
-                if (fileSharer.getFileInfo(port) == null) {
-                    String response = "Not Found: File not available on this port";
-                    exchange.sendResponseHeaders(404, response.getBytes().length);
+                FileSharer.FileInfo fileInfo = fileSharer.getFileInfo(port);
+                if (fileInfo == null) {
+                    exchange.sendResponseHeaders(404, SHARE_NOT_FOUND.length);
                     try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
+                        os.write(SHARE_NOT_FOUND);
                     }
                     return;
                 }
                 
-                // Simple password validation at HTTP level
-                String requiredPassword = fileSharer.getFilePassword(port);
-                
-                if (requiredPassword != null) {
-                    // File has a password - validate it
-                    if (clientPassword == null || !requiredPassword.equals(clientPassword)) {
-                        String response = "Unauthorized: Invalid or missing password";
+                if (fileInfo.hasPassword()) {
+                    FileSharer.PasswordCheck check = fileSharer.checkPassword(port, clientPassword, clients.resolve(exchange));
+                    if (check == FileSharer.PasswordCheck.THROTTLED) {
+                        headers.add("Retry-After", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(fileSharer.getPasswordLockoutMillis())));
+                        MultipartFormUtils.respond(exchange, 429, "Too Many Requests: Too many password attempts, try again later");
+                        return;
+                    }
+                    if (check != FileSharer.PasswordCheck.GRANTED) {
                         headers.add("Content-Type", "text/plain");
-                        exchange.sendResponseHeaders(401, response.getBytes().length);
+                        exchange.sendResponseHeaders(401, UNAUTHORIZED.length);
                         try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(response.getBytes());
+                            os.write(UNAUTHORIZED);
                         }
                         return;
                     }
                 }
-                // If file has no password or password matches, proceed with download
-                
-                // Connect to socket and download file (no password exchange needed)
-                try (Socket socket = new Socket("localhost", port);
-                     InputStream socketInput = socket.getInputStream()) {
-
-                    File tempFile = File.createTempFile("download-", ".tmp");
-                    String filename = "downloaded-file"; // Default filename
-                    
-                    try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        
-                        // Read filename header
-                        ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-                        int b;
-                        while ((b = socketInput.read()) != -1) {
-                            if (b == '\n') break;
-                            headerBaos.write(b);
-                        }
-                        
-                        String headerLine = headerBaos.toString().trim();
-                        
-                        // Parse filename from header
-                        if (headerLine.startsWith("Filename: ")) {
-                            filename = headerLine.substring("Filename: ".length());
-                        }
-                        
-                        // Read file content
-                        while ((bytesRead = socketInput.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
-                        }
-                    }
-                    
-                    headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
-                    headers.add("Content-Type", "application/octet-stream");
-                    
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    try (OutputStream os = exchange.getResponseBody();
-                         FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
-                    }
-                    
-                    tempFile.delete();
-                    
-                } catch (IOException e) {
-                    System.err.println("Error downloading file from peer: " + e.getMessage());
-                    String response = "Error downloading file: " + e.getMessage();
+                // If file has no password or password matches, proceed with download.
+                // Everything sent from here on is shaped, archives and compressed streams too.
+                BandwidthShaper.Flow flow = bandwidth.open(clients.resolve(exchange), port, fileInfo.getSize());
+                exchange.setStreams(null, flow.shape(exchange.getResponseBody()));
+                // A share that reached its download limit stays until the transfers still sending it end
+                if (!fileSharer.beginTransfer(fileInfo)) {
+                    flow.close();
                     headers.add("Content-Type", "text/plain");
-                    exchange.sendResponseHeaders(500, response.getBytes().length);
+                    exchange.sendResponseHeaders(404, SHARE_NOT_FOUND.length);
                     try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
+                        os.write(SHARE_NOT_FOUND);
                     }
+                    return;
+                }
+                try {
+                    sendShare(exchange, port, fileInfo, view, memberPath);
+                } finally {
+                    fileSharer.endTransfer(fileInfo);
+                    flow.close();
                 }
                 
             } catch (NumberFormatException e) {
-                String response = "Bad Request: Invalid port number";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
+                exchange.sendResponseHeaders(400, INVALID_PORT.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    os.write(INVALID_PORT);
                 }
             }
         }
+        
+        /**
+         * Sends the share, one file of a bundle, a bundle's listing or a bundle as an archive.
+         */
+        private void sendShare(HttpExchange exchange, int port, FileSharer.FileInfo fileInfo, String view, String memberPath) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            FileSharer.FileInfo target = fileInfo;
+            String filename = fileInfo.getFilename();
+            if (view != null) {
+                if (!view.equals("files") || !fileInfo.isBundle()) {
+                    MultipartFormUtils.respond(exchange, 404, "Not Found: No such resource for this share");
+                    return;
+                }
+                if (memberPath == null || memberPath.isEmpty()) {
+                    sendListing(exchange, fileInfo);
+                    return;
+                }
+                target = fileInfo.getMember(memberPath);
+                if (target == null) {
+                    MultipartFormUtils.respond(exchange, 404, "Not Found: No file " + memberPath + " in this bundle");
+                    return;
+                }
+                filename = memberPath.substring(memberPath.lastIndexOf('/') + 1);
+            } else if (fileInfo.isBundle()) {
+                sendArchive(exchange, port, fileInfo);
+                return;
+            }
+            
+            // Serve the stored upload directly, its size is known up front
+            File file;
+            try {
+                file = fetch(target);
+            } catch (FileNotFoundException e) {
+                // Opening it fails below and answers 404
+                file = new File(target.getFilePath());
+            } catch (IOException e) {
+                System.err.println("Error fetching shared file: " + e.getMessage());
+                MultipartFormUtils.respond(exchange, 503, "Service Unavailable: File storage can't be reached, try again later");
+                return;
+            }
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                System.err.println("Error opening shared file: " + e.getMessage());
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(404, SHARE_GONE.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(SHARE_GONE);
+                }
+                return;
+            }
+            
+            try (FileChannel source = channel) {
+                long sent = sendFile(exchange, target, filename, source);
+                // Single files of a bundle don't count, only the whole archive does
+                if (target == fileInfo && sent == source.size()) {
+                    fileSharer.recordDownload(port, fileInfo);
+                } else if (target == fileInfo && sent > 0) {
+                    // Ranges count once they add up to the whole file
+                    fileSharer.recordPartial(port, fileInfo, sent);
+                }
+            } catch (IOException e) {
+                dropConnection(exchange, "Error sending file to client", e);
+            }
+        }
+        
+        /**
+         * Streams a live relay from its sender. A relay can only be read once, so range
+         * requests, like a client probing for the size, are answered without a body and
+         * leave the relay for the real download.
+         */
+        private void sendRelay(HttpExchange exchange, LiveRelay relay, String clientPassword) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            FileSharer.PasswordCheck check = relays.checkPassword(relay, clientPassword, clients.resolve(exchange));
+            if (check == FileSharer.PasswordCheck.THROTTLED) {
+                headers.add("Retry-After", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(fileSharer.getPasswordLockoutMillis())));
+                MultipartFormUtils.respond(exchange, 429, "Too Many Requests: Too many password attempts, try again later");
+                return;
+            }
+            if (check != FileSharer.PasswordCheck.GRANTED) {
+                MultipartFormUtils.respond(exchange, 401, UNAUTHORIZED);
+                return;
+            }
+            headers.add("Content-Disposition", "attachment; filename=\"" + relay.getFilename() + "\"");
+            headers.add("Cache-Control", "no-store");
+            if (exchange.getRequestHeaders().containsKey("Range")) {
+                headers.add("Content-Range", "bytes */" + (relay.getSize() >= 0 ? relay.getSize() : "*"));
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            if (!relay.attachReceiver()) {
+                MultipartFormUtils.respond(exchange, 409, "Conflict: This live share is already being downloaded");
+                return;
+            }
+            
+            long size = relay.getSize();
+            BandwidthShaper.Flow flow = bandwidth.open(clients.resolve(exchange), relay.getCode(),
+                    size >= 0 ? size : Long.MAX_VALUE);
+            boolean delivered = false;
+            try {
+                headers.add("Content-Type", "application/octet-stream");
+                // Without a declared size the body is sent chunked until the sender is done
+                exchange.sendResponseHeaders(200, size > 0 ? size : size == 0 ? -1 : 0);
+                byte[] buffer = BufferPool.acquire();
+                try (OutputStream os = flow.shape(exchange.getResponseBody())) {
+                    int n;
+                    while ((n = relay.read(buffer, 0, buffer.length)) != -1) {
+                        os.write(buffer, 0, n);
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+                relay.delivered();
+                delivered = true;
+                System.out.println("Live relay " + relay.getCode() + " delivered " + relay.getTransferred() + " bytes");
+            } catch (IOException e) {
+                relay.abort("The receiver disconnected");
+                dropConnection(exchange, "Error relaying to client", e);
+            } finally {
+                flow.close();
+                relays.finish(relay, delivered);
+            }
+        }
+        
+        /**
+         * Lists the files of a bundle as JSON.
+         */
+        private void sendListing(HttpExchange exchange, FileSharer.FileInfo bundle) throws IOException {
+            StringBuilder json = new StringBuilder("{\"name\": ").append(jsonString(bundle.getFilename()))
+                    .append(", \"size\": ").append(bundle.getSize())
+                    .append(", \"files\": [");
+            List<FileSharer.FileInfo> members = bundle.getMembers();
+            for (int i = 0; i < members.size(); i++) {
+                FileSharer.FileInfo member = members.get(i);
+                json.append(i > 0 ? ", " : "")
+                        .append("{\"path\": ").append(jsonString(member.getFilename()))
+                        .append(", \"size\": ").append(member.getSize())
+                        .append(", \"sha256\": \"").append(member.getSha256()).append('"');
+                if (member.getCrc32c() != Checksums.UNKNOWN_CRC32C) {
+                    json.append(", \"crc32c\": \"").append(Checksums.crc32cHex(member.getCrc32c())).append('"');
+                }
+                json.append('}');
+            }
+            byte[] body = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+        
+        /**
+         * Streams a bundle as an archive built on the fly, a zip by default or a tar with
+         * ?format=tar. Neither is ever written to disk.
+         */
+        private void sendArchive(HttpExchange exchange, int port, FileSharer.FileInfo bundle) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            boolean tar = "tar".equals(QueryParams.parse(exchange.getRequestURI().getRawQuery()).get("format"));
+            headers.add("Content-Disposition", "attachment; filename=\"" + bundle.getFilename() + (tar ? ".tar" : ".zip") + "\"");
+            headers.add("Content-Type", tar ? "application/x-tar" : "application/zip");
+            headers.add("Last-Modified", httpDate(bundle.getLastModified()));
+            // Archives are built while they are sent, so parts of one can't be served.
+            // A range request gets no body and doesn't count, the client then asks for all of it
+            headers.add("Accept-Ranges", "none");
+            if (exchange.getRequestHeaders().containsKey("Range")) {
+                headers.add("Content-Range", "bytes */" + (tar ? String.valueOf(BundleArchive.tarLength(bundle.getMembers())) : "*"));
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            // Every member is fetched before the headers go out, so missing content still gets a proper error
+            try {
+                for (FileSharer.FileInfo member : bundle.getMembers()) {
+                    fetch(member);
+                }
+            } catch (FileNotFoundException e) {
+                MultipartFormUtils.respond(exchange, 404, SHARE_GONE);
+                return;
+            } catch (IOException e) {
+                System.err.println("Error fetching bundle files: " + e.getMessage());
+                MultipartFormUtils.respond(exchange, 503, "Service Unavailable: File storage can't be reached, try again later");
+                return;
+            }
+            try {
+                // A tar's length is known up front, a zip is sent with chunked encoding
+                exchange.sendResponseHeaders(200, tar ? BundleArchive.tarLength(bundle.getMembers()) : 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    if (tar) {
+                        BundleArchive.writeTar(bundle.getMembers(), os);
+                    } else {
+                        BundleArchive.writeZip(bundle.getMembers(), os);
+                    }
+                }
+                fileSharer.recordDownload(port, bundle);
+            } catch (IOException e) {
+                dropConnection(exchange, "Error sending bundle to client", e);
+            }
+        }
+        
+        /**
+         * Handles a download that failed while its body was sent. Headers are already
+         * sent, all we can do is drop the connection.
+         */
+        private void dropConnection(HttpExchange exchange, String message, IOException e) {
+            System.err.println(message + ": " + e.getMessage());
+            exchange.close();
+        }
+        
+        /**
+         * Returns the file to send, fetched from the storage backend first if only the
+         * backend has the content.
+         */
+        private File fetch(FileSharer.FileInfo fileInfo) throws IOException {
+            BlobStore.Blob blob = fileInfo.getBlob();
+            return blob != null ? blob.fetch() : new File(fileInfo.getFilePath());
+        }
+        
+        private String jsonString(String value) {
+            return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+        
+        /**
+         * Sends the whole file, a single range or several ranges as multipart/byteranges,
+         * depending on the Range and If-Range request headers.
+         *
+         * @return Bytes of the file the response delivered, the whole size for compressed
+         *         responses, or -1 if no range could be satisfied
+         */
+        private long sendFile(HttpExchange exchange, FileSharer.FileInfo fileInfo, String filename, FileChannel source) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            Headers requestHeaders = exchange.getRequestHeaders();
+            long size = source.size();
+            
+            headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+            headers.add("Accept-Ranges", "bytes");
+            headers.add("ETag", fileInfo.getETag());
+            headers.add("Last-Modified", httpDate(fileInfo.getLastModified()));
+            
+            // A stale If-Range validator means the client gets the full, current file
+            List<ByteRange> ranges = null;
+            if (ifRangeMatches(fileInfo, requestHeaders.getFirst("If-Range"))) {
+                ranges = ByteRange.parse(requestHeaders.getFirst("Range"), size);
+            }
+            
+            // Only whole-file responses are compressed, ranges always refer to the stored bytes
+            if (compression != null) {
+                headers.add("Vary", "Accept-Encoding");
+                String encoding = ContentEncoding.negotiate(requestHeaders.getFirst("Accept-Encoding"));
+                if (ranges == null && encoding != null && compression.shouldCompress(fileInfo)) {
+                    sendCompressed(exchange, fileInfo, encoding);
+                    return size;
+                }
+            }
+            
+            addDigests(headers, fileInfo);
+            
+            // Popular files are sent from memory instead of being read from disk again
+            ByteBuffer cached = null;
+            if (hotCache != null && (ranges == null || !ranges.isEmpty())) {
+                cached = hotCache.get(cacheKey(fileInfo), new File(fileInfo.getFilePath()), size);
+            }
+            
+            if (ranges == null) {
+                headers.add("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, size);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    transfer(source, cached, 0, size, os);
+                }
+                return size;
+            }
+            if (ranges.isEmpty()) {
+                headers.add("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return -1;
+            }
+            
+            if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                headers.add("Content-Type", "application/octet-stream");
+                headers.add("Content-Range", range.contentRange(size));
+                exchange.sendResponseHeaders(206, range.length());
+                try (OutputStream os = exchange.getResponseBody()) {
+                    transfer(source, cached, range.start, range.length(), os);
+                }
+            } else {
+                sendMultipartRanges(exchange, ranges, size, source, cached);
+            }
+            
+            long sent = 0;
+            for (ByteRange range : ranges) {
+                sent += range.length();
+            }
+            // Overlapping ranges don't make more than one file's worth
+            return Math.min(sent, size);
+        }
+        
+        /**
+         * Checksums of the whole stored file, computed when it was uploaded. They describe
+         * the full content for ranges too, so a client that fetched the file in pieces can
+         * check the result. Compressed responses don't get them, the encoded bytes differ.
+         */
+        private void addDigests(Headers headers, FileSharer.FileInfo fileInfo) {
+            String sha256 = fileInfo.getSha256();
+            if (sha256 == null) {
+                return;
+            }
+            String sha256Base64 = Checksums.sha256Base64(sha256);
+            headers.add("Repr-Digest", "sha-256=:" + sha256Base64 + ":");
+            String digest = "sha-256=" + sha256Base64;
+            if (fileInfo.getCrc32c() != Checksums.UNKNOWN_CRC32C) {
+                digest += ", crc32c=" + Checksums.crc32cBase64(fileInfo.getCrc32c());
+            }
+            headers.add("Digest", digest);
+        }
+        
+        private void sendCompressed(HttpExchange exchange, FileSharer.FileInfo fileInfo, String encoding) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            // The compressed representation needs a validator of its own
+            String etag = fileInfo.getETag();
+            headers.set("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+            headers.add("Content-Type", "application/octet-stream");
+            headers.add("Content-Encoding", encoding);
+            
+            FileChannel cached = null;
+            File variant = compression.cachedVariant(fileInfo, encoding);
+            if (variant != null) {
+                try {
+                    cached = FileChannel.open(variant.toPath(), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    // Deleted in the meantime, compress again
+                }
+            }
+            
+            if (cached != null) {
+                try (FileChannel source = cached; OutputStream os = exchange.getResponseBody()) {
+                    exchange.sendResponseHeaders(200, source.size());
+                    transfer(source, null, 0, source.size(), os);
+                }
+                return;
+            }
+            
+            // Streamed with chunked encoding, the compressed length isn't known up front
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                compression.compressTo(fileInfo, encoding, os);
+            }
+        }
+        
+        private void sendMultipartRanges(HttpExchange exchange, List<ByteRange> ranges, long size, FileChannel source, ByteBuffer cached) throws IOException {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            byte[][] partHeaders = new byte[ranges.size()][];
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            
+            long length = closing.length;
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                partHeaders[i] = ("\r\n--" + boundary + "\r\n"
+                        + "Content-Type: application/octet-stream\r\n"
+                        + "Content-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                length += partHeaders[i].length + range.length();
+            }
+            
+            exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            exchange.sendResponseHeaders(206, length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    os.write(partHeaders[i]);
+                    transfer(source, cached, ranges.get(i).start, ranges.get(i).length(), os);
+                }
+                os.write(closing);
+            }
+        }
+        
+        private boolean ifRangeMatches(FileSharer.FileInfo fileInfo, String ifRange) {
+            if (ifRange == null) {
+                return true;
+            }
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                // Only strong validators may be used with If-Range
+                return ifRange.equals(fileInfo.getETag());
+            }
+            return ifRange.equals(httpDate(fileInfo.getLastModified()));
+        }
+        
+        /**
+         * Copies a part of the file to the response, from the cached content if there is any.
+         */
+        private void transfer(FileChannel source, ByteBuffer cached, long position, long count, OutputStream os) throws IOException {
+            if (cached != null) {
+                BufferPool.copy(cached, (int) position, (int) count, os);
+            } else {
+                BufferPool.copy(source, position, count, os);
+            }
+        }
+        
+        private String cacheKey(FileSharer.FileInfo fileInfo) {
+            BlobStore.Blob blob = fileInfo.getBlob();
+            // Blobs never change, so every share of the same content uses one entry
+            return blob != null ? blob.getHash() : fileInfo.getFilePath() + "@" + fileInfo.getLastModified();
+        }
+        
+        private String httpDate(long millis) {
+            return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+        }
     }
 }
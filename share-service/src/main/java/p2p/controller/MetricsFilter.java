@@ -0,0 +1,58 @@
+package p2p.controller;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.metrics.Counter;
+import p2p.metrics.CountingInputStream;
+import p2p.metrics.CountingOutputStream;
+import p2p.metrics.Histogram;
+import p2p.metrics.MetricsRegistry;
+
+/**
+ * Records request count by status, latency and body bytes for one route.
+ *
+ * Latency runs until the handler returns, which for downloads means until the last
+ * byte has been handed to the socket.
+ */
+class MetricsFilter extends Filter {
+    private final MetricsRegistry metrics;
+    private final String route;
+    private final Histogram latency;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+
+    MetricsFilter(MetricsRegistry metrics, String route) {
+        this.metrics = metrics;
+        this.route = route;
+        this.latency = metrics.histogram("filetogo_http_request_duration_seconds",
+                "Time spent handling a request, including the body transfer", "route", route);
+        this.bytesIn = metrics.counter("filetogo_http_received_bytes_total",
+                "Request body bytes read", "route", route);
+        this.bytesOut = metrics.counter("filetogo_http_sent_bytes_total",
+                "Response body bytes written", "route", route);
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        exchange.setStreams(new CountingInputStream(exchange.getRequestBody(), bytesIn),
+                new CountingOutputStream(exchange.getResponseBody(), bytesOut));
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            latency.record(System.nanoTime() - start);
+            // -1 means the handler never sent a response
+            int status = exchange.getResponseCode();
+            metrics.counter("filetogo_http_requests_total", "Requests handled, by status code",
+                    "route", route, "code", status == -1 ? "none" : Integer.toString(status)).inc();
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Request metrics for " + route;
+    }
+}
@@ -0,0 +1,139 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.cluster.ClusterRing;
+import p2p.utils.BufferPool;
+import p2p.utils.MultipartFormUtils;
+
+/**
+ * Passes a request on to the node of the cluster that owns its share or upload session
+ * and streams the answer back, so a load balancer can send any request to any node.
+ *
+ * Bodies are streamed in both directions without buffering, range, conditional and
+ * encoding headers go through unchanged, so resumed and compressed downloads behave as
+ * if the client had reached the owner directly. A forwarded request is marked, and a
+ * node never forwards a marked request again, so nodes that disagree about the ring
+ * answer 502 instead of sending a request around in circles.
+ */
+class NodeProxy {
+    static final String FORWARDED_BY = "X-Filetogo-Forwarded-By";
+    // Per connection, or set by the HTTP client itself
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "content-length", "date", "expect", "host",
+            "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade");
+
+    private final ClusterRing cluster;
+    private final HttpClient client;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    NodeProxy(ClusterRing cluster) {
+        this.cluster = cluster;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    /**
+     * Forwards the request to a node and sends back whatever it answers.
+     */
+    void forward(HttpExchange exchange, String nodeId) throws IOException {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        if (requestHeaders.containsKey(FORWARDED_BY)) {
+            failed.increment();
+            MultipartFormUtils.respond(exchange, 502, "Bad Gateway: Cluster nodes disagree about where this request belongs");
+            return;
+        }
+
+        URI base = cluster.address(nodeId);
+        URI uri = URI.create(base.getScheme() + "://" + base.getRawAuthority() + exchange.getRequestURI().getRawPath()
+                + (exchange.getRequestURI().getRawQuery() != null ? "?" + exchange.getRequestURI().getRawQuery() : ""));
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).method(exchange.getRequestMethod(), body(exchange));
+        for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+            if (!HOP_BY_HOP.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                header.getValue().forEach(value -> request.header(header.getKey(), value));
+            }
+        }
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        String forwardedFor = requestHeaders.getFirst("X-Forwarded-For");
+        request.setHeader("X-Forwarded-For", forwardedFor != null ? forwardedFor + ", " + client : client);
+        request.header(FORWARDED_BY, cluster.getSelfId());
+
+        HttpResponse<InputStream> response;
+        try {
+            response = this.client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            failed.increment();
+            System.err.println("Could not reach node " + nodeId + ": " + e.getMessage());
+            MultipartFormUtils.respond(exchange, 502, "Bad Gateway: Node " + nodeId + " can't be reached");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while forwarding to node " + nodeId);
+        }
+        forwarded.increment();
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            // Headers this node set already, like CORS, aren't doubled
+            if (!HOP_BY_HOP.contains(name) && !name.startsWith(":") && !responseHeaders.containsKey(header.getKey())) {
+                responseHeaders.put(header.getKey(), header.getValue());
+            }
+        }
+        int status = response.statusCode();
+        boolean noBody = status == 204 || status == 304 || exchange.getRequestMethod().equalsIgnoreCase("HEAD");
+        // -1 sends no body, 0 sends a chunked one when the owner didn't say how long it is
+        long length = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        if (noBody || (length == 0 && response.headers().firstValue("Content-Length").isPresent())) {
+            length = -1;
+        }
+        try (InputStream in = response.body()) {
+            exchange.sendResponseHeaders(status, length);
+            if (!noBody) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    BufferPool.copy(in, os);
+                }
+            }
+        }
+        exchange.close();
+    }
+
+    long getForwarded() {
+        return forwarded.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    private static HttpRequest.BodyPublisher body(HttpExchange exchange) {
+        String method = exchange.getRequestMethod();
+        if (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD") || method.equalsIgnoreCase("DELETE")) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody);
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return length != null ? HttpRequest.BodyPublishers.fromPublisher(stream, Long.parseLong(length.trim())) : stream;
+        } catch (NumberFormatException e) {
+            return stream;
+        }
+    }
+}
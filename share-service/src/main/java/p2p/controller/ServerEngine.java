@@ -0,0 +1,114 @@
+package p2p.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * How the API server accepts connections. The handlers don't depend on it, they get
+ * the same exchanges either way.
+ *
+ * "http" is plain HTTP, meant to run behind a proxy that terminates TLS. "https"
+ * terminates TLS in this process, so large transfers don't go through an extra hop:
+ * -Dfiletogo.server.engine=https -Dfiletogo.tls.keystore=server.p12
+ * -Dfiletogo.tls.keystore.password=... (PKCS12 or JKS). The JDK server only speaks
+ * HTTP/1.1, so connections offer just that through ALPN, and clients get parallel
+ * streams by opening several kept-alive connections.
+ */
+abstract class ServerEngine {
+
+    /**
+     * The engine selected by filetogo.server.engine, plain HTTP by default.
+     */
+    static ServerEngine fromSystemProperties() {
+        String name = System.getProperty("filetogo.server.engine", "http");
+        switch (name) {
+            case "http":
+                return new Plain();
+            case "https":
+                String keystore = System.getProperty("filetogo.tls.keystore");
+                if (keystore == null) {
+                    throw new IllegalArgumentException("filetogo.server.engine=https needs -Dfiletogo.tls.keystore");
+                }
+                return new Tls(new File(keystore), System.getProperty("filetogo.tls.keystore.password", ""));
+            default:
+                throw new IllegalArgumentException("Unknown server engine: " + name);
+        }
+    }
+
+    abstract HttpServer create(InetSocketAddress address) throws IOException;
+
+    /**
+     * URL scheme clients use to reach the server.
+     */
+    abstract String scheme();
+
+    static class Plain extends ServerEngine {
+        @Override
+        HttpServer create(InetSocketAddress address) throws IOException {
+            return HttpServer.create(address, 0);
+        }
+
+        @Override
+        String scheme() {
+            return "http";
+        }
+    }
+
+    static class Tls extends ServerEngine {
+        private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+        private final SSLContext context;
+
+        Tls(File keystore, String password) {
+            this.context = loadContext(keystore, password.toCharArray());
+        }
+
+        Tls(SSLContext context) {
+            this.context = context;
+        }
+
+        @Override
+        HttpServer create(InetSocketAddress address) throws IOException {
+            HttpsServer server = HttpsServer.create(address, 0);
+            server.setHttpsConfigurator(new HttpsConfigurator(context) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    SSLParameters parameters = context.getDefaultSSLParameters();
+                    parameters.setProtocols(PROTOCOLS);
+                    parameters.setApplicationProtocols(new String[] {"http/1.1"});
+                    params.setSSLParameters(parameters);
+                }
+            });
+            return server;
+        }
+
+        @Override
+        String scheme() {
+            return "https";
+        }
+
+        private static SSLContext loadContext(File keystore, char[] password) {
+            try {
+                KeyStore keys = KeyStore.getInstance(keystore, password);
+                KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keys, password);
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(keyManagers.getKeyManagers(), null, null);
+                return context;
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalArgumentException("Cannot load TLS keystore " + keystore + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package p2p.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.utils.MultipartFormUtils;
+
+/**
+ * Decides whether an upload may start before any of its body is read.
+ *
+ * Every request with a body reserves its Content-Length against a budget of bytes
+ * being uploaded at the same time, and the upload directory must keep a minimum of
+ * free space after all reservations. Each client address may also only run a few
+ * uploads at once. A request that doesn't fit is turned away right away with 503
+ * (server busy or disk low) or 429 (that client has too many uploads running) and a
+ * Retry-After header, instead of filling the disk and slowing everyone else down.
+ *
+ * One instance guards all upload routes so they share the budget. Clients are told apart
+ * by {@link ClientAddresses}, so uploads through a reverse proxy or another cluster node
+ * count against the client, not the proxy. Chunked upload sessions also reserve their
+ * whole size on disk when they are created, as their chunks arrive one request at a time.
+ * Each chunk gives back what it fills, as the disk then holds it, and doesn't reserve
+ * its length a second time.
+ */
+class UploadAdmission {
+    private static final Pattern SESSION_CHUNK = Pattern.compile("/uploads/[^/]+/chunks/[^/]+");
+
+    private final File uploadDir;
+    private final long maxInFlightBytes;
+    private final long minFreeBytes;
+    private final int maxPerClient;
+    private final long unknownLengthBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong sessionBytes = new AtomicLong();
+    private final ConcurrentHashMap<InetAddress, Integer> uploadsPerClient = new ConcurrentHashMap<>();
+    private final LongAdder rejectedBusy = new LongAdder();
+    private final LongAdder rejectedDisk = new LongAdder();
+    private final LongAdder rejectedClient = new LongAdder();
+    private final ClientAddresses clients;
+
+    UploadAdmission(File uploadDir, ClientAddresses clients) {
+        this(uploadDir, clients,
+                Long.getLong("filetogo.admission.max.inflight.bytes", 1024L * 1024 * 1024),
+                Long.getLong("filetogo.admission.min.free.bytes", 512L * 1024 * 1024),
+                Integer.getInteger("filetogo.admission.max.per.client", 4),
+                Long.getLong("filetogo.admission.unknown.length.bytes", 64L * 1024 * 1024));
+    }
+
+    /**
+     * @param maxInFlightBytes Bytes that may be uploading at the same time
+     * @param minFreeBytes Free space the upload directory keeps after all reservations
+     * @param maxPerClient Uploads one client address may run at the same time
+     * @param unknownLengthBytes What a request without Content-Length reserves
+     */
+    UploadAdmission(File uploadDir, ClientAddresses clients, long maxInFlightBytes, long minFreeBytes,
+            int maxPerClient, long unknownLengthBytes) {
+        this.uploadDir = uploadDir;
+        this.clients = clients;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.minFreeBytes = minFreeBytes;
+        this.maxPerClient = maxPerClient;
+        this.unknownLengthBytes = unknownLengthBytes;
+    }
+
+    /**
+     * Wraps a handler so requests with a body are admitted first.
+     */
+    HttpHandler guard(HttpHandler delegate) {
+        return exchange -> handle(exchange, delegate);
+    }
+
+    private void handle(HttpExchange exchange, HttpHandler delegate) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!method.equalsIgnoreCase("POST") && !method.equalsIgnoreCase("PUT")) {
+            delegate.handle(exchange);
+            return;
+        }
+
+        InetAddress client = clients.resolve(exchange);
+        if (!enterClient(client)) {
+            rejectedClient.increment();
+            reject(exchange, 429, "Too Many Requests: Too many uploads from this client", 1);
+            return;
+        }
+        try {
+            long bytes = reservation(exchange);
+            if (!reserve(bytes)) {
+                rejectedBusy.increment();
+                reject(exchange, 503, "Service Unavailable: Too many uploads in progress", 1);
+                return;
+            }
+            try {
+                if (uploadDir.getUsableSpace() - reservedBytes.get() - sessionBytes.get() < minFreeBytes) {
+                    rejectedDisk.increment();
+                    reject(exchange, 503, "Service Unavailable: Not enough disk space", 30);
+                    return;
+                }
+                delegate.handle(exchange);
+            } finally {
+                reservedBytes.addAndGet(-bytes);
+            }
+        } finally {
+            leaveClient(client);
+        }
+    }
+
+    /**
+     * Reserves disk space for a chunked upload session of the given size, until
+     * {@link #releaseSession} gives it back as chunks fill it and when it ends. Its file
+     * is preallocated sparse, so the space would otherwise only be missed once the
+     * chunks fill it.
+     *
+     * @return false if the upload directory can't take the session
+     */
+    boolean reserveSession(long size) {
+        long reserved = sessionBytes.addAndGet(size);
+        if (uploadDir.getUsableSpace() - reservedBytes.get() - reserved < minFreeBytes) {
+            sessionBytes.addAndGet(-size);
+            rejectedDisk.increment();
+            return false;
+        }
+        return true;
+    }
+
+    void releaseSession(long size) {
+        sessionBytes.addAndGet(-size);
+    }
+
+    private long reservation(HttpExchange exchange) {
+        // Covered by the reservation of its session
+        if (exchange.getRequestMethod().equalsIgnoreCase("PUT")
+                && SESSION_CHUNK.matcher(exchange.getRequestURI().getPath()).matches()) {
+            return 0;
+        }
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length == null) {
+            return unknownLengthBytes;
+        }
+        try {
+            // An upload bigger than the whole budget can still run, but only on its own
+            return Math.min(Math.max(Long.parseLong(length.trim()), 0), maxInFlightBytes);
+        } catch (NumberFormatException e) {
+            return unknownLengthBytes;
+        }
+    }
+
+    private boolean reserve(long bytes) {
+        while (true) {
+            long reserved = reservedBytes.get();
+            if (reserved > 0 && reserved + bytes > maxInFlightBytes) {
+                return false;
+            }
+            if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean enterClient(InetAddress client) {
+        boolean[] admitted = new boolean[1];
+        uploadsPerClient.compute(client, (key, count) -> {
+            int current = count == null ? 0 : count;
+            admitted[0] = current < maxPerClient;
+            return admitted[0] ? current + 1 : count;
+        });
+        return admitted[0];
+    }
+
+    private void leaveClient(InetAddress client) {
+        uploadsPerClient.computeIfPresent(client, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static void reject(HttpExchange exchange, int status, String message, int retryAfterSeconds) throws IOException {
+        exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+        // Tell the client not to send the body we are not going to read
+        exchange.getResponseHeaders().add("Connection", "close");
+        MultipartFormUtils.respond(exchange, status, message);
+    }
+
+    long getReservedBytes() {
+        return reservedBytes.get() + sessionBytes.get();
+    }
+
+    long getRejectedBusy() {
+        return rejectedBusy.sum();
+    }
+
+    long getRejectedDisk() {
+        return rejectedDisk.sum();
+    }
+
+    long getRejectedClient() {
+        return rejectedClient.sum();
+    }
+}
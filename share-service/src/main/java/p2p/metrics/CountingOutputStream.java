@@ -0,0 +1,30 @@
+package p2p.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Adds every byte written to a counter.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    private final Counter counter;
+
+    public CountingOutputStream(OutputStream out, Counter counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.inc();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would otherwise write one byte at a time
+        out.write(b, off, len);
+        counter.add(len);
+    }
+}
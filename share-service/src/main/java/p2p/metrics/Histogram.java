@@ -0,0 +1,57 @@
+package p2p.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power-of-two buckets, from 100µs up to about 52s.
+ *
+ * Recording is lock-free: the bucket index is a leading-zero count and the update a
+ * single atomic increment. Anything above the last bound lands in the overflow (+Inf) bucket.
+ */
+public class Histogram {
+    static final long BASE_NANOS = 100_000;
+    static final int BUCKETS = 20;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Smallest i with nanos <= BASE_NANOS << i, or BUCKETS for the overflow bucket.
+     */
+    static int bucketIndex(long nanos) {
+        long scaled = (nanos - 1) / BASE_NANOS;
+        return Math.min(64 - Long.numberOfLeadingZeros(scaled), BUCKETS);
+    }
+
+    /**
+     * Upper bound of bucket {@code index} in seconds.
+     */
+    static String upperBoundSeconds(int index) {
+        return BigDecimal.valueOf(BASE_NANOS << index, 9).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Per-bucket counts, the last element being the overflow bucket.
+     */
+    long[] snapshot() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
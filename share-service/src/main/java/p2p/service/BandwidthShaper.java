@@ -0,0 +1,387 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shapes download bandwidth with token buckets: one for everything the service sends,
+ * one per client address and one per share code.
+ *
+ * Buckets go into debt instead of refusing, so a transfer takes what it is about to send
+ * and then waits until the debt is paid off. Whoever waits on a client or share bucket
+ * waits in arrival order. The global bucket is shared by every transfer, so there the
+ * order is weighted fair queuing (self-clocked): each chunk gets a finish tag of the
+ * flow's previous tag plus the chunk size divided by the flow's weight, and the waiting
+ * chunk with the smallest tag goes first. A flow's weight grows as fewer of its bytes
+ * remain, so a small file gets through right away while multi-GB downloads share the
+ * rest, and a big download speeds up again towards its end.
+ *
+ * Rates are in bytes per second, 0 means unlimited, and can be changed while
+ * transfers are running.
+ */
+public final class BandwidthShaper {
+    // A bucket holds at most this much time worth of tokens, what an idle flow may burst
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // Large writes are split so one of them can't hold the global bucket for long
+    private static final int CHUNK_BYTES = 64 * 1024;
+    // Transfers with at least this much left weigh 1, smaller ones proportionally more
+    private static final long LARGE_TRANSFER_BYTES = 256L * 1024 * 1024;
+    private static final long MAX_WEIGHT = 256;
+
+    private volatile long globalRate;
+    private volatile long clientRate;
+    private volatile long shareRate;
+
+    private final Clock clock;
+    private final TokenBucket global;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, TokenBucket> shares = new ConcurrentHashMap<>();
+
+    // Chunks waiting for the global bucket, guarded by queueLock
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+    private double virtualTime;
+    private long sequence;
+
+    private final AtomicInteger activeFlows = new AtomicInteger();
+    private final LongAdder shapedBytes = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    public BandwidthShaper() {
+        this(Long.getLong("filetogo.bandwidth.global.rate", 0),
+                Long.getLong("filetogo.bandwidth.client.rate", 0),
+                Long.getLong("filetogo.bandwidth.share.rate", 0));
+    }
+
+    /**
+     * @param globalRate Bytes per second for all downloads together
+     * @param clientRate Bytes per second for each client address
+     * @param shareRate Bytes per second for each share code
+     */
+    public BandwidthShaper(long globalRate, long clientRate, long shareRate) {
+        this(globalRate, clientRate, shareRate, new Clock());
+    }
+
+    BandwidthShaper(long globalRate, long clientRate, long shareRate, Clock clock) {
+        this.clock = clock;
+        this.global = new TokenBucket(clock.nanoTime());
+        setRates(globalRate, clientRate, shareRate);
+    }
+
+    /**
+     * Changes the limits, transfers in progress follow the new ones from their next chunk on.
+     */
+    public void setRates(long globalRate, long clientRate, long shareRate) {
+        if (globalRate < 0 || clientRate < 0 || shareRate < 0) {
+            throw new IllegalArgumentException("Rates can't be negative");
+        }
+        this.globalRate = globalRate;
+        this.clientRate = clientRate;
+        this.shareRate = shareRate;
+        // The chunk at the head of the queue may have been waiting for the old rate
+        queueLock.lock();
+        try {
+            Ticket head = queue.peek();
+            if (head != null) {
+                head.turn.signal();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    public long getClientRate() {
+        return clientRate;
+    }
+
+    public long getShareRate() {
+        return shareRate;
+    }
+
+    public int getActiveFlows() {
+        return activeFlows.get();
+    }
+
+    /**
+     * Bytes sent through shaped flows, throttled or not.
+     */
+    public long getShapedBytes() {
+        return shapedBytes.sum();
+    }
+
+    /**
+     * Time transfers spent waiting for tokens, summed over all of them.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.sum();
+    }
+
+    /**
+     * Starts shaping one download. Close the flow once the response is sent.
+     *
+     * @param size Bytes the download is expected to send, which sets its weight
+     */
+    public Flow open(InetAddress client, int code, long size) {
+        TokenBucket clientBucket = clients.compute(client, (key, bucket) -> (bucket != null ? bucket : new TokenBucket(clock.nanoTime())).retain());
+        TokenBucket shareBucket = shares.compute(code, (key, bucket) -> (bucket != null ? bucket : new TokenBucket(clock.nanoTime())).retain());
+        activeFlows.incrementAndGet();
+        return new Flow(client, code, clientBucket, shareBucket, size);
+    }
+
+    /**
+     * @return Nanoseconds spent waiting
+     */
+    private long acquireGlobal(Flow flow, int bytes) throws InterruptedIOException {
+        queueLock.lock();
+        try {
+            Ticket ticket = new Ticket(Math.max(virtualTime, flow.lastTag) + (double) bytes / flow.weight(), sequence++);
+            flow.lastTag = ticket.tag;
+            queue.add(ticket);
+            try {
+                long start = clock.nanoTime();
+                while (true) {
+                    long rate = globalRate;
+                    if (queue.peek() == ticket) {
+                        long wait = global.debtNanos(rate, clock.nanoTime());
+                        if (wait <= 0) {
+                            global.reserve(bytes, rate, clock.nanoTime());
+                            break;
+                        }
+                        clock.await(ticket.turn, wait);
+                    } else {
+                        ticket.turn.await();
+                    }
+                }
+                virtualTime = Math.max(virtualTime, ticket.tag);
+                long waited = clock.nanoTime() - start;
+                throttledNanos.add(waited);
+                return waited;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            } finally {
+                queue.remove(ticket);
+                Ticket next = queue.peek();
+                if (next != null) {
+                    next.turn.signal();
+                }
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void sleep(long nanos) throws InterruptedIOException {
+        try {
+            clock.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * One download being shaped.
+     */
+    public class Flow implements Closeable {
+        private final InetAddress client;
+        private final int code;
+        private final TokenBucket clientBucket;
+        private final TokenBucket shareBucket;
+        private final long size;
+        private long sent;
+        private long waitedNanos;
+        // Finish tag of this flow's last chunk in the global queue, guarded by queueLock
+        private double lastTag;
+        private boolean closed;
+
+        private Flow(InetAddress client, int code, TokenBucket clientBucket, TokenBucket shareBucket, long size) {
+            this.client = client;
+            this.code = code;
+            this.clientBucket = clientBucket;
+            this.shareBucket = shareBucket;
+            this.size = size;
+        }
+
+        /**
+         * Wraps a response stream so every write waits for its share of bandwidth first.
+         */
+        public OutputStream shape(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    for (int i = 0; i < len; i += CHUNK_BYTES) {
+                        int chunk = Math.min(CHUNK_BYTES, len - i);
+                        acquire(chunk);
+                        out.write(b, off + i, chunk);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Waits until the bytes may be sent.
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            long now = clock.nanoTime();
+            // Reserved in both buckets up front, so waiting for one doesn't add to the other
+            long wait = Math.max(shareBucket.reserve(bytes, shareRate, now), clientBucket.reserve(bytes, clientRate, now));
+            if (wait > 0) {
+                throttledNanos.add(wait);
+                waitedNanos += wait;
+                sleep(wait);
+            }
+            if (globalRate > 0) {
+                waitedNanos += acquireGlobal(this, bytes);
+            }
+            sent += bytes;
+            shapedBytes.add(bytes);
+        }
+
+        /**
+         * Time this flow waited for bandwidth so far.
+         */
+        long getWaitedNanos() {
+            return waitedNanos;
+        }
+
+        private long weight() {
+            long remaining = Math.max(size - sent, 1);
+            return Math.max(1, Math.min(MAX_WEIGHT, LARGE_TRANSFER_BYTES / remaining));
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            clients.computeIfPresent(client, (key, bucket) -> bucket.release() ? null : bucket);
+            shares.computeIfPresent(code, (key, bucket) -> bucket.release() ? null : bucket);
+            activeFlows.decrementAndGet();
+        }
+    }
+
+    /**
+     * A chunk waiting in the global queue, ordered by finish tag and then arrival.
+     */
+    private class Ticket implements Comparable<Ticket> {
+        final double tag;
+        final long sequence;
+        // Signalled when this ticket reaches the head of the queue
+        final Condition turn = queueLock.newCondition();
+
+        Ticket(double tag, long sequence) {
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int byTag = Double.compare(tag, other.tag);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Token bucket that may go into debt. The rate is passed in on every call, so a new
+     * limit applies right away.
+     */
+    static class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+        // Flows using the bucket, guarded by the map holding it
+        private int users;
+
+        TokenBucket(long now) {
+            this.refilledAt = now;
+        }
+
+        TokenBucket retain() {
+            users++;
+            return this;
+        }
+
+        /**
+         * @return true if no flow uses the bucket anymore
+         */
+        boolean release() {
+            return --users == 0;
+        }
+
+        /**
+         * Takes the bytes from the bucket.
+         *
+         * @return Nanoseconds to wait before sending them, until the bucket is out of debt
+         */
+        synchronized long reserve(long bytes, long rate, long now) {
+            if (rate <= 0) {
+                tokens = 0;
+                refilledAt = now;
+                return 0;
+            }
+            refill(rate, now);
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        /**
+         * @return Nanoseconds until the bucket is out of debt, 0 if it isn't in debt
+         */
+        synchronized long debtNanos(long rate, long now) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill(rate, now);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+        }
+
+        private void refill(long rate, long now) {
+            double capacity = Math.max(rate * (BURST_NANOS / 1e9), CHUNK_BYTES);
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * (rate / 1e9));
+            refilledAt = now;
+        }
+    }
+
+    /**
+     * Where the shaper reads the time and how it waits, tests replace it to check the
+     * delays without sleeping through them.
+     */
+    static class Clock {
+        long nanoTime() {
+            return System.nanoTime();
+        }
+
+        void sleep(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+
+        /**
+         * Waits until signalled or the time is up, with the condition's lock held.
+         */
+        void await(Condition condition, long nanos) throws InterruptedException {
+            condition.awaitNanos(nanos);
+        }
+    }
+}
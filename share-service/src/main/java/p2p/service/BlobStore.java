@@ -0,0 +1,672 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import p2p.storage.LocalStorageBackend;
+import p2p.storage.PartUploader;
+import p2p.storage.StorageBackend;
+import p2p.utils.BufferPool;
+import p2p.utils.Checksums;
+import p2p.utils.MultipartStreamParser;
+
+/**
+ * Content-addressed storage for shared files.
+ *
+ * Each distinct content is kept once, in a file named after its SHA-256 hash, no matter
+ * how many shares point at it. Blobs are reference counted: storing or acquiring a blob
+ * takes a reference, and the file is deleted when the last reference is released.
+ * New content is moved into place with an atomic rename, so a blob file is always complete.
+ * Files derived from a blob (like compressed variants) are kept next to it as sidecars
+ * and deleted together with it.
+ *
+ * With a remote {@link StorageBackend} the backend holds every blob and the directory
+ * becomes a cache of local copies, bounded by -Dfiletogo.storage.cache.max.bytes and
+ * evicted least recently used first. Uploads are sent to the backend in parts while they
+ * are received, and a blob that isn't cached is fetched with concurrent ranged reads the
+ * first time it is downloaded. Downloads always send a local file, so they keep the
+ * zero-copy paths no matter where the blob is stored.
+ */
+public class BlobStore implements MultipartStreamParser.FileSink {
+    // Uploads go to a key of their own and are copied to their hash once it is known
+    private static final String INCOMING = "incoming/";
+    private static final ExecutorService FETCHES = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final File dir;
+    private final StorageBackend backend;
+    private final long maxCachedBytes;
+    private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final LongAdder dedupHits = new LongAdder();
+    // Blobs whose file is their only copy, cached copies of remote ones are in cachedBytes
+    private final LongAdder localBytes = new LongAdder();
+    // Remote uploads still being received, by the file they are written to
+    private final ConcurrentHashMap<File, Incoming> incoming = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<File>> fetching = new ConcurrentHashMap<>();
+    // Serialize copying a hash to the backend with deleting it there. The requests are
+    // slow, so they run outside compute(), which would block other keys of the map too
+    private final ReentrantLock[] remoteLocks = new ReentrantLock[64];
+    // Remote blobs with a local copy, access-ordered. Guarded by itself and only changed
+    // inside compute() for the blob's key, so a copy is never added and removed at once
+    private final LinkedHashMap<String, Blob> cached = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Incoming {
+        final String key;
+        final PartUploader uploader;
+
+        Incoming(String key, PartUploader uploader) {
+            this.key = key;
+            this.uploader = uploader;
+        }
+    }
+
+    public BlobStore(File dir) {
+        this(dir, new LocalStorageBackend(dir));
+    }
+
+    public BlobStore(File dir, StorageBackend backend) {
+        this(dir, backend, Long.getLong("filetogo.storage.cache.max.bytes", 10L * 1024 * 1024 * 1024));
+    }
+
+    /**
+     * @param dir Blob files, or the cache of them if the backend is remote
+     * @param maxCachedBytes Size the local copies of remote blobs are kept under
+     */
+    public BlobStore(File dir, StorageBackend backend, long maxCachedBytes) {
+        this.dir = dir;
+        this.backend = backend;
+        this.maxCachedBytes = maxCachedBytes;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        for (int i = 0; i < remoteLocks.length; i++) {
+            remoteLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Opens a file an upload is received into. With a remote backend its parts are
+     * sent on while it is written, and {@link #store} completes that upload.
+     */
+    @Override
+    public OutputStream open(File target) throws IOException {
+        String key = INCOMING + UUID.randomUUID();
+        if (backend.localFile(key) != null) {
+            return new FileOutputStream(target);
+        }
+        PartUploader uploader = new PartUploader(backend, key, target);
+        incoming.put(target, new Incoming(key, uploader));
+        return uploader.outputStream();
+    }
+
+    /**
+     * Deletes a received file that won't be stored, and drops what was sent of it.
+     */
+    @Override
+    public void discard(File target) {
+        Incoming upload = incoming.remove(target);
+        if (upload != null) {
+            upload.uploader.abort();
+        }
+        target.delete();
+    }
+
+    /**
+     * Adds a file's content to the store and takes a reference to its blob. The file is
+     * moved into the store, or deleted if a blob with the same content already exists.
+     *
+     * @param file File in the same file system as the store
+     * @param sha256 Hex SHA-256 of the file's content
+     * @param crc32c CRC32C of the file's content
+     */
+    public Blob store(File file, String sha256, long crc32c) throws IOException {
+        String hash = sha256.toLowerCase();
+        File local = backend.localFile(hash);
+        if (local == null) {
+            return storeRemote(file, hash, crc32c);
+        }
+        try {
+            // compute() serializes everything that happens to one hash, including the rename
+            return blobs.compute(hash, (key, blob) -> {
+                if (blob != null) {
+                    file.delete();
+                    reuse(blob, crc32c);
+                    return blob;
+                }
+                try {
+                    Files.move(file.toPath(), local.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                Blob created = new Blob(key, local, local.length(), crc32c, false);
+                localBytes.add(created.size);
+                return created;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Finishes sending the file to the backend (or sends it, if it wasn't received
+     * through {@link #open}) and keeps it as the blob's local copy.
+     */
+    private Blob storeRemote(File file, String hash, long crc32c) throws IOException {
+        Incoming upload = incoming.remove(file);
+        Blob existing = blobs.computeIfPresent(hash, (key, blob) -> {
+            reuse(blob, crc32c);
+            return blob;
+        });
+        if (existing != null) {
+            if (upload != null) {
+                upload.uploader.abort();
+            }
+            file.delete();
+            return existing;
+        }
+
+        String uploadKey = upload != null ? upload.key : INCOMING + UUID.randomUUID();
+        ReentrantLock remoteLock = remoteLock(hash);
+        try {
+            if (upload != null) {
+                upload.uploader.finish(file.length());
+            } else {
+                PartUploader.upload(backend, uploadKey, file);
+            }
+            // Under the hash's lock so the copy can't interleave with a release() deleting
+            // the same content
+            remoteLock.lock();
+            try {
+                if (blobs.get(hash) == null) {
+                    backend.copy(uploadKey, hash);
+                }
+                return publishRemote(file, hash, crc32c);
+            } finally {
+                remoteLock.unlock();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            file.delete();
+            deleteQuietly(uploadKey);
+            trimCache();
+        }
+    }
+
+    /**
+     * Adds a blob whose content was copied to its key in the backend, and keeps the file
+     * as its local copy. Must be called with the hash's remote lock held.
+     */
+    private Blob publishRemote(File file, String hash, long crc32c) {
+        // compute() only for the local rename, so the new copy isn't mistaken for an unreferenced file
+        return blobs.compute(hash, (key, blob) -> {
+            if (blob != null) {
+                reuse(blob, crc32c);
+                return blob;
+            }
+            try {
+                File target = new File(dir, key);
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Blob created = new Blob(key, target, target.length(), crc32c, true);
+                addCached(created);
+                return created;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private ReentrantLock remoteLock(String hash) {
+        return remoteLocks[(hash.hashCode() & Integer.MAX_VALUE) % remoteLocks.length];
+    }
+
+    private void reuse(Blob blob, long crc32c) {
+        blob.references++;
+        // Blobs restored from an older index may not know it yet
+        if (blob.crc32c == Checksums.UNKNOWN_CRC32C) {
+            blob.crc32c = crc32c;
+        }
+        dedupHits.increment();
+    }
+
+    /**
+     * Takes a reference to a blob that is known to be stored, like one a restored share
+     * points at. The size and CRC32C are taken on trust so restoring doesn't touch the
+     * file system or the backend.
+     */
+    public Blob restore(String sha256, long size, long crc32c) {
+        return blobs.compute(sha256.toLowerCase(), (key, blob) -> {
+            if (blob != null) {
+                blob.references++;
+                return blob;
+            }
+            File local = backend.localFile(key);
+            Blob restored = new Blob(key, local != null ? local : new File(dir, key), size, crc32c, local == null);
+            // A remote blob's copy from the last run is still good
+            if (restored.remote && restored.file.isFile()) {
+                addCached(restored);
+            } else if (!restored.remote) {
+                localBytes.add(size);
+            }
+            return restored;
+        });
+    }
+
+    /**
+     * Deletes blob files and sidecars no share refers to, left behind by a crash or by
+     * shares that expired while the server was down. Safe to run while uploads come in.
+     * Remote objects nobody refers to anymore are left to the bucket's lifecycle rules.
+     *
+     * @return Number of files deleted
+     */
+    public int deleteUnreferenced() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int[] deleted = {0};
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            String hash = dot < 0 ? name : name.substring(0, dot);
+            // Checked inside compute() so a concurrent store() of the same content can't lose its file
+            blobs.compute(hash, (key, blob) -> {
+                if (blob == null && file.delete()) {
+                    deleted[0]++;
+                }
+                return blob;
+            });
+        }
+        return deleted[0];
+    }
+
+    public int getBlobCount() {
+        return blobs.size();
+    }
+
+    /**
+     * Uploads that were satisfied by content already in the store.
+     */
+    public long getDedupHits() {
+        return dedupHits.sum();
+    }
+
+    /**
+     * Bytes held by local copies of remote blobs.
+     */
+    public long getCachedBytes() {
+        synchronized (cached) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * Bytes of blob files on the local disk, local blobs and cached copies of remote
+     * ones. Kept as blobs come and go, so reading it never touches the file system.
+     */
+    public long getLocalBytes() {
+        return localBytes.sum() + getCachedBytes();
+    }
+
+    /**
+     * Remote blobs fetched because a download needed them.
+     */
+    public long getFetches() {
+        return fetches.sum();
+    }
+
+    /**
+     * Local copies of remote blobs deleted to stay within the cache size.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private void release(Blob released) {
+        boolean[] deleteRemote = {false};
+        blobs.computeIfPresent(released.hash, (key, blob) -> {
+            if (--blob.references > 0) {
+                return blob;
+            }
+            // Transfers that already opened the file still finish
+            blob.released = true;
+            deleteLocalCopy(blob);
+            deleteRemote[0] = blob.remote;
+            return null;
+        });
+        if (deleteRemote[0]) {
+            ReentrantLock remoteLock = remoteLock(released.hash);
+            remoteLock.lock();
+            try {
+                // The same content may have been stored again since, then its object stays
+                if (!blobs.containsKey(released.hash)) {
+                    deleteQuietly(released.hash);
+                }
+            } finally {
+                remoteLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called inside compute() for the blob's key.
+     */
+    private void deleteLocalCopy(Blob blob) {
+        blob.file.delete();
+        if (!blob.remote) {
+            localBytes.add(-blob.size);
+        }
+        for (String suffix : blob.sidecars) {
+            new File(dir, blob.hash + "." + suffix).delete();
+        }
+        synchronized (cached) {
+            if (cached.remove(blob.hash) != null) {
+                cachedBytes -= blob.size;
+            }
+        }
+    }
+
+    /**
+     * Called inside compute() for the blob's key.
+     */
+    private void addCached(Blob blob) {
+        synchronized (cached) {
+            if (cached.put(blob.hash, blob) == null) {
+                cachedBytes += blob.size;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used local copies until the cache fits, always keeping
+     * the newest one. Must not be called inside compute().
+     */
+    private void trimCache() {
+        while (true) {
+            Blob eldest;
+            synchronized (cached) {
+                if (cachedBytes <= maxCachedBytes || cached.size() <= 1) {
+                    return;
+                }
+                Iterator<Blob> iterator = cached.values().iterator();
+                eldest = iterator.next();
+            }
+            blobs.computeIfPresent(eldest.hash, (key, blob) -> {
+                if (blob == eldest) {
+                    deleteLocalCopy(blob);
+                }
+                return blob;
+            });
+            synchronized (cached) {
+                // Gone from the store meanwhile, it just isn't counted anymore
+                if (cached.get(eldest.hash) == eldest) {
+                    cached.remove(eldest.hash);
+                    cachedBytes -= eldest.size;
+                }
+            }
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Downloads a remote blob into its local file, a part size range per request with
+     * as many requests in flight as uploads use.
+     */
+    private void download(Blob blob) throws IOException {
+        File temp = new File(dir, blob.hash + ".fetching");
+        Semaphore slots = new Semaphore(backend.uploadParallelism());
+        List<Future<?>> ranges = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long offset = 0; offset < blob.size; offset += backend.partSize()) {
+                long start = offset;
+                long length = Math.min(backend.partSize(), blob.size - offset);
+                ranges.add(FETCHES.submit(() -> {
+                    slots.acquire();
+                    try {
+                        readRange(blob.hash, start, length, out);
+                    } finally {
+                        slots.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> range : ranges) {
+                range.get();
+            }
+        } catch (ExecutionException e) {
+            ranges.forEach(range -> range.cancel(true));
+            temp.delete();
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            ranges.forEach(range -> range.cancel(true));
+            temp.delete();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + blob.hash);
+        }
+
+        Blob present = blobs.computeIfPresent(blob.hash, (key, current) -> {
+            if (current == blob) {
+                try {
+                    Files.move(temp.toPath(), blob.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                addCached(blob);
+            }
+            return current;
+        });
+        if (present != blob) {
+            temp.delete();
+            throw new FileNotFoundException("Blob " + blob.hash + " was deleted while it was fetched");
+        }
+        fetches.increment();
+        trimCache();
+    }
+
+    private void readRange(String key, long offset, long length, FileChannel out) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        long position = offset;
+        try (InputStream in = backend.get(key, offset, length)) {
+            int read;
+            while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, offset + length - position))) > 0) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    // Positional, ranges are written from several threads
+                    position += out.write(chunk, position);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        if (position != offset + length) {
+            throw new IOException("Range of " + key + " at " + offset + " ended after " + (position - offset) + " of " + length + " bytes");
+        }
+    }
+
+    private void deleteQuietly(String key) {
+        try {
+            backend.delete(key);
+        } catch (IOException e) {
+            System.err.println("Could not delete stored object " + key + ": " + e.getMessage());
+        }
+    }
+
+    public class Blob {
+        private final String hash;
+        private final File file;
+        private final long size;
+        private final Set<String> sidecars = ConcurrentHashMap.newKeySet();
+        // Only changed inside compute() for this blob's key
+        private int references = 1;
+        private volatile boolean released;
+        private volatile Boolean compressible;
+        private volatile long crc32c;
+        // Whether the backend holds the content and the file is only a cached copy
+        private final boolean remote;
+
+        private Blob(String hash, File file, long size, long crc32c, boolean remote) {
+            this.hash = hash;
+            this.file = file;
+            this.size = size;
+            this.crc32c = crc32c;
+            this.remote = remote;
+        }
+
+        /**
+         * Hex SHA-256 of the content.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * CRC32C of the content, or {@link Checksums#UNKNOWN_CRC32C}.
+         */
+        public long getCrc32c() {
+            return crc32c;
+        }
+
+        /**
+         * Where the content is on local disk. For a remote blob that's a cached copy that
+         * may not be there, use {@link #fetch()} before reading it.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the local file, fetching the content from the backend first if it isn't
+         * cached. Concurrent callers wait for the same fetch.
+         *
+         * @throws FileNotFoundException if the blob has been deleted
+         */
+        public File fetch() throws IOException {
+            if (!remote) {
+                return file;
+            }
+            if (file.isFile()) {
+                synchronized (cached) {
+                    // Marks it as recently used
+                    cached.get(hash);
+                }
+                return file;
+            }
+            if (released) {
+                throw new FileNotFoundException("Blob " + hash + " has been deleted");
+            }
+            CompletableFuture<File> mine = new CompletableFuture<>();
+            CompletableFuture<File> running = fetching.putIfAbsent(hash, mine);
+            if (running == null) {
+                try {
+                    download(this);
+                    mine.complete(file);
+                } catch (IOException | RuntimeException e) {
+                    mine.completeExceptionally(e);
+                } finally {
+                    fetching.remove(hash, mine);
+                }
+                running = mine;
+            }
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    cause = cause.getCause();
+                }
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+
+        /**
+         * True if the content can be read from {@link #getFile()} right away.
+         */
+        public boolean isLocal() {
+            return !remote || file.isFile();
+        }
+
+        /**
+         * Starts fetching the content in the background if it isn't cached.
+         */
+        public void prefetch() {
+            if (!isLocal()) {
+                FETCHES.execute(() -> {
+                    try {
+                        fetch();
+                    } catch (IOException e) {
+                        System.err.println("Could not fetch blob " + hash + ": " + e.getMessage());
+                    }
+                });
+            }
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the file for derived data with the given suffix, which is deleted
+         * together with the blob.
+         */
+        public File sidecar(String suffix) {
+            sidecars.add(suffix);
+            return new File(dir, hash + "." + suffix);
+        }
+
+        /**
+         * True once the last reference is gone and the files have been deleted.
+         */
+        public boolean isReleased() {
+            return released;
+        }
+
+        /**
+         * Whether compressing this content pays off, null until someone has checked.
+         */
+        public Boolean getCompressible() {
+            return compressible;
+        }
+
+        public void setCompressible(boolean compressible) {
+            this.compressible = compressible;
+        }
+
+        /**
+         * Gives up one reference, the blob is deleted once none are left.
+         */
+        public void release() {
+            BlobStore.this.release(this);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package p2p.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import p2p.utils.BufferPool;
+import p2p.utils.ContentEncoding;
+
+/**
+ * Streams the files of a bundle share as one archive, built while it is sent.
+ *
+ * Nothing is written to disk, the members are read from the blob store in order. Each
+ * one is fetched again right before it is read, since a remote blob's cached copy may
+ * have been evicted while earlier members were sent. Zip
+ * is what everyone can open, but its compressed length isn't known before the end.
+ * Tar stores files as they are, so its exact length is known up front and can be sent
+ * as Content-Length.
+ */
+public class BundleArchive {
+    private static final int BLOCK = 512;
+    // Tar readers expect the archive to fill whole records of 20 blocks
+    private static final int RECORD = 20 * BLOCK;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final int FITS = -1;
+    private static final int NEEDS_PAX = -2;
+    // Enough for the longest padding, the end of the archive
+    private static final byte[] ZEROS = new byte[RECORD + 2 * BLOCK];
+
+    private BundleArchive() {
+    }
+
+    /**
+     * Writes the members as a zip file. Content that is already compressed is stored
+     * with the lowest level so it costs no CPU, everything else gets a fast deflate.
+     */
+    public static void writeZip(List<FileSharer.FileInfo> members, OutputStream out) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(nonClosing(out))) {
+            for (FileSharer.FileInfo member : members) {
+                ZipEntry entry = new ZipEntry(member.getFilename());
+                entry.setTime(member.getLastModified());
+                zip.setLevel(isCompressible(member) ? Deflater.BEST_SPEED : Deflater.NO_COMPRESSION);
+                zip.putNextEntry(entry);
+                try (InputStream in = Files.newInputStream(member.getBlob().fetch().toPath())) {
+                    BufferPool.copy(in, zip);
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Exact number of bytes {@link #writeTar} writes for these members.
+     */
+    public static long tarLength(List<FileSharer.FileInfo> members) {
+        long length = 0;
+        for (FileSharer.FileInfo member : members) {
+            byte[] pax = paxRecord(member.getFilename());
+            if (pax != null) {
+                length += BLOCK + padded(pax.length);
+            }
+            length += BLOCK + padded(member.getSize());
+        }
+        length += 2 * BLOCK;
+        return (length + RECORD - 1) / RECORD * RECORD;
+    }
+
+    /**
+     * Writes the members as a POSIX tar file. Paths that don't fit the classic header
+     * get a pax extended header.
+     */
+    public static void writeTar(List<FileSharer.FileInfo> members, OutputStream out) throws IOException {
+        long written = 0;
+        for (FileSharer.FileInfo member : members) {
+            String path = member.getFilename();
+            long mtime = member.getLastModified() / 1000;
+            byte[] pax = paxRecord(path);
+            if (pax != null) {
+                out.write(header("PaxHeaders/" + truncate(path, NAME_LENGTH - 11), pax.length, mtime, (byte) 'x'));
+                out.write(pax);
+                out.write(ZEROS, 0, (int) (padded(pax.length) - pax.length));
+                written += BLOCK + padded(pax.length);
+                path = truncate(path, NAME_LENGTH);
+            }
+            out.write(header(path, member.getSize(), mtime, (byte) '0'));
+
+            // The header promised this many bytes, a shorter file would break the archive
+            try (FileChannel source = FileChannel.open(member.getBlob().fetch().toPath(), StandardOpenOption.READ)) {
+                if (source.size() < member.getSize()) {
+                    throw new IOException("Bundle member " + member.getFilename() + " is shorter than recorded");
+                }
+                // Plain writes, a channel around a shaped stream would pin the virtual thread
+                BufferPool.copy(source, 0, member.getSize(), out);
+            }
+            out.write(ZEROS, 0, (int) (padded(member.getSize()) - member.getSize()));
+            written += BLOCK + padded(member.getSize());
+        }
+        written += 2 * BLOCK;
+        long end = (written + RECORD - 1) / RECORD * RECORD;
+        out.write(ZEROS, 0, (int) (end - written + 2 * BLOCK));
+    }
+
+    private static boolean isCompressible(FileSharer.FileInfo member) {
+        Boolean compressible = member.getBlob().getCompressible();
+        if (compressible != null) {
+            return compressible;
+        }
+        return member.getContentType() == null || !ContentEncoding.isCompressedType(member.getContentType());
+    }
+
+    private static byte[] header(String path, long size, long mtime, byte type) {
+        byte[] header = new byte[BLOCK];
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        int split = splitPoint(name);
+        if (split == NEEDS_PAX) {
+            throw new IllegalArgumentException("Path too long for a tar header: " + path);
+        }
+        if (split == FITS) {
+            System.arraycopy(name, 0, header, 0, name.length);
+        } else {
+            System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+            System.arraycopy(name, 0, header, 345, split);
+        }
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if (size < 1L << 33) {
+            octal(header, 124, 12, size);
+        } else {
+            // Base-256 for sizes of 8 GiB and more, a GNU extension every current tar reads
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(header, 136, 12, mtime);
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // The checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Where to split a path that is too long for the name field into prefix and name.
+     *
+     * @return The index of the separating '/', FITS or NEEDS_PAX
+     */
+    private static int splitPoint(byte[] name) {
+        if (name.length <= NAME_LENGTH) {
+            return FITS;
+        }
+        for (int i = Math.min(name.length - 1, PREFIX_LENGTH); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= NAME_LENGTH) {
+                return i;
+            }
+        }
+        return NEEDS_PAX;
+    }
+
+    /**
+     * The pax record carrying the full path, or null if the classic header can hold it.
+     */
+    private static byte[] paxRecord(String path) {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        if (splitPoint(name) != NEEDS_PAX) {
+            return null;
+        }
+        // "<length> path=<path>\n", where the length counts its own digits too
+        int body = " path=\n".length() + name.length;
+        int length = body + String.valueOf(body).length();
+        if (String.valueOf(length).length() != String.valueOf(body).length()) {
+            length++;
+        }
+        return (length + " path=" + path + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String truncate(String path, int maxBytes) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes) {
+            return path;
+        }
+        // May cut a multi-byte character, the pax header has the real name anyway
+        return new String(bytes, 0, maxBytes, StandardCharsets.US_ASCII).replaceAll("[^ -~]", "_");
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+        Arrays.fill(header, offset, start, (byte) '0');
+        System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, start, digits.length());
+        header[offset + length - 1] = 0;
+    }
+
+    private static long padded(long length) {
+        return (length + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    private static OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+}
@@ -0,0 +1,220 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.BufferPool;
+import p2p.utils.ContentEncoding;
+
+/**
+ * Compressed variants of shared files for downloads that accept gzip or deflate.
+ *
+ * Compression runs on a small pool of its own, so CPU-heavy deflating can't crowd out
+ * the threads handling other requests. The first compressed download of a blob streams
+ * to the client and, at the same time, into a sidecar file next to the blob. Later
+ * downloads send that file as is. Content that is already compressed (by declared
+ * type or magic bytes) or that doesn't shrink enough is sent uncompressed.
+ */
+public class CompressionService {
+    private static final int SNIFF_BYTES = 16;
+    // A variant has to save at least this share of the original size to be kept
+    private static final double MIN_SAVING = 0.1;
+
+    private final ExecutorService pool;
+    private final long minSize;
+    private final Set<File> building = ConcurrentHashMap.newKeySet();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder compressedStreams = new LongAdder();
+
+    public CompressionService() {
+        this(Integer.getInteger("filetogo.compression.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Long.getLong("filetogo.compression.min.bytes", 1024));
+    }
+
+    /**
+     * @param threads Threads compressing at the same time
+     * @param minSize Files smaller than this are never compressed
+     */
+    public CompressionService(int threads, long minSize) {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "compression-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.minSize = minSize;
+    }
+
+    /**
+     * Decides whether a share is worth compressing. The answer is remembered per blob,
+     * so the file is only sniffed once.
+     */
+    public boolean shouldCompress(FileSharer.FileInfo fileInfo) throws IOException {
+        if (fileInfo.getSize() < minSize || ContentEncoding.isCompressedType(fileInfo.getContentType())) {
+            return false;
+        }
+        BlobStore.Blob blob = fileInfo.getBlob();
+        Boolean known = blob != null ? blob.getCompressible() : null;
+        if (known != null) {
+            return known;
+        }
+
+        boolean compressible;
+        try (FileChannel channel = FileChannel.open(new File(fileInfo.getFilePath()).toPath())) {
+            ByteBuffer head = ByteBuffer.allocate(SNIFF_BYTES);
+            while (head.hasRemaining() && channel.read(head) > 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+            compressible = !ContentEncoding.hasCompressedMagic(head.array(), head.position());
+        }
+        if (blob != null) {
+            blob.setCompressible(compressible);
+        }
+        return compressible;
+    }
+
+    /**
+     * Returns the cached variant of a share in the given encoding, or null if there is none yet.
+     */
+    public File cachedVariant(FileSharer.FileInfo fileInfo, String encoding) {
+        BlobStore.Blob blob = fileInfo.getBlob();
+        if (blob == null) {
+            return null;
+        }
+        File variant = blob.sidecar(encoding);
+        if (!variant.isFile()) {
+            return null;
+        }
+        cacheHits.increment();
+        return variant;
+    }
+
+    /**
+     * Compresses a share into {@code out} on the compression pool and waits until it is
+     * done. If nobody else is building this variant, it is cached as well.
+     */
+    public void compressTo(FileSharer.FileInfo fileInfo, String encoding, OutputStream out) throws IOException {
+        Future<?> task = pool.submit(() -> {
+            compress(fileInfo, encoding, out);
+            return null;
+        });
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Downloads served from a cached variant.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Downloads that were compressed while streaming.
+     */
+    public long getCompressedStreams() {
+        return compressedStreams.sum();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void compress(FileSharer.FileInfo fileInfo, String encoding, OutputStream out) throws IOException {
+        compressedStreams.increment();
+        BlobStore.Blob blob = fileInfo.getBlob();
+        File variant = blob != null ? blob.sidecar(encoding) : null;
+        if (variant == null || !building.add(variant)) {
+            try (InputStream in = Files.newInputStream(new File(fileInfo.getFilePath()).toPath());
+                 OutputStream compressed = ContentEncoding.compress(out, encoding)) {
+                BufferPool.copy(in, compressed);
+            }
+            return;
+        }
+
+        File temp = new File(variant.getPath() + ".tmp");
+        try {
+            long compressedSize;
+            try (InputStream in = Files.newInputStream(new File(fileInfo.getFilePath()).toPath());
+                 FileOutputStream cache = new FileOutputStream(temp)) {
+                TeeOutputStream tee = new TeeOutputStream(out, cache);
+                try (OutputStream compressed = ContentEncoding.compress(tee, encoding)) {
+                    BufferPool.copy(in, compressed);
+                }
+                compressedSize = tee.count;
+            }
+
+            if (compressedSize > fileInfo.getSize() * (1 - MIN_SAVING)) {
+                blob.setCompressible(false);
+                return;
+            }
+            Files.move(temp.toPath(), variant.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (blob.isReleased()) {
+                // The blob went away while we were compressing
+                variant.delete();
+            }
+        } finally {
+            temp.delete();
+            building.remove(variant);
+        }
+    }
+
+    /**
+     * Writes to the client and the cache file at once.
+     */
+    private static class TeeOutputStream extends FilterOutputStream {
+        private final OutputStream copy;
+        private long count;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            copy.flush();
+        }
+    }
+}
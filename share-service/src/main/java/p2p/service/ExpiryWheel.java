@@ -0,0 +1,94 @@
+package p2p.service;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel that fires a callback for keys whose deadline has passed.
+ *
+ * Scheduling is O(1): an entry is appended to the slot its deadline hashes to. A single
+ * daemon thread advances one slot per tick and only looks at the entries in that slot,
+ * so the cost of a tick does not depend on how many keys are scheduled in total.
+ * Entries whose deadline is more than one wheel rotation away simply stay in their slot
+ * until a later visit.
+ */
+public class ExpiryWheel<K> {
+    private final Queue<Entry<K>>[] slots;
+    private final long tickMillis;
+    private final Consumer<K> onExpire;
+    private final ScheduledExecutorService ticker;
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ExpiryWheel(int slotCount, long tickMillis, Consumer<K> onExpire) {
+        this.slots = new Queue[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.tickMillis = tickMillis;
+        this.onExpire = onExpire;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "expiry-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules {@code key} to expire at the given time. The callback fires up to one tick
+     * late and should re-check whether the key really expired.
+     */
+    public void schedule(K key, long deadlineMillis) {
+        // Round up so the slot is only visited once the deadline has passed, and never
+        // pick the current slot, which may already have been processed
+        long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, System.currentTimeMillis() / tickMillis + 1);
+        slots[(int) (tick % slots.length)].add(new Entry<>(key, deadlineMillis));
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private void advance() {
+        long nowTick = System.currentTimeMillis() / tickMillis;
+        // Catch up on ticks missed while the thread was delayed, at most one full rotation
+        long from = Math.max(currentTick + 1, nowTick - slots.length + 1);
+        for (long tick = from; tick <= nowTick; tick++) {
+            expireSlot(slots[(int) (tick % slots.length)]);
+        }
+        currentTick = nowTick;
+    }
+
+    private void expireSlot(Queue<Entry<K>> slot) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<K>> it = slot.iterator();
+        while (it.hasNext()) {
+            Entry<K> entry = it.next();
+            if (entry.deadline <= now) {
+                it.remove();
+                try {
+                    onExpire.accept(entry.key);
+                } catch (RuntimeException e) {
+                    System.err.println("Error expiring " + entry.key + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class Entry<K> {
+        final K key;
+        final long deadline;
+
+        Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -1,38 +1,284 @@
 package p2p.service;
 
+import p2p.utils.Checksums;
+import p2p.utils.PasswordHash;
 import p2p.utils.UploadUtils;
 
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
 
 
 public class FileSharer {
+    private static final int MAX_CODE_ATTEMPTS = 1000;
 
     public static class FileInfo {
 
         private String filePath;
-        private String password;
+        private String filename;
+        private String contentType;
+        private BlobStore.Blob blob;
+        private List<FileInfo> members;
+        private Map<String, FileInfo> membersByPath;
+        private PasswordHash password;
+        private long size;
+        private long lastModified;
+        private long expiresAt;
+        private int maxDownloads;
+        private final AtomicInteger downloads = new AtomicInteger();
+        // Last verified password, guarded by the FileInfo itself
+        private byte[] verifiedFingerprint;
+        private long verifiedUntil;
+        // Transfers still sending, bytes of partial responses not yet counted as a download,
+        // and whether the share was removed, also guarded by the FileInfo
+        private int transfers;
+        private long partialBytes;
+        private boolean removed;
 
         public FileInfo(String filePath, String password) {
+            this(filePath, password, Long.MAX_VALUE, 0);
+        }
+
+        public FileInfo(String filePath, String password, long expiresAt, int maxDownloads) {
+            this(filePath, new File(filePath).getName(), null, null, PasswordHash.create(password), expiresAt, maxDownloads);
+        }
+
+        /**
+         * Creates a share of stored content, several shares may point at the same blob.
+         */
+        public FileInfo(BlobStore.Blob blob, String filename, String contentType, String password, long expiresAt, int maxDownloads) {
+            this(blob, filename, contentType, PasswordHash.create(password), expiresAt, maxDownloads);
+        }
+
+        private FileInfo(BlobStore.Blob blob, String filename, String contentType, PasswordHash password, long expiresAt, int maxDownloads) {
+            this(blob.getFile().getPath(), filename, contentType, blob, password, expiresAt, maxDownloads);
+        }
+
+        private FileInfo(String filePath, String filename, String contentType, BlobStore.Blob blob, PasswordHash password, long expiresAt, int maxDownloads) {
+            this(filePath, filename, contentType, blob, password, expiresAt, maxDownloads,
+                    new File(filePath).length(), new File(filePath).lastModified(), 0);
+        }
+
+        /**
+         * Creates a share of several files. Each member is a blob share of its own, named
+         * by its path inside the bundle.
+         */
+        FileInfo(String filename, List<FileInfo> members, PasswordHash password, long expiresAt, int maxDownloads, int downloads) {
+            this(null, filename, null, null, password, expiresAt, maxDownloads,
+                    members.stream().mapToLong(FileInfo::getSize).sum(),
+                    members.stream().mapToLong(FileInfo::getLastModified).max().orElse(0), downloads);
+            this.members = List.copyOf(members);
+            this.membersByPath = new HashMap<>();
+            for (FileInfo member : members) {
+                membersByPath.put(member.filename, member);
+            }
+        }
+
+        /**
+         * Recreates a share from the index without touching the file system.
+         */
+        FileInfo(String filePath, String filename, String contentType, BlobStore.Blob blob, PasswordHash password,
+                 long expiresAt, int maxDownloads, long size, long lastModified, int downloads) {
             this.filePath = filePath;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.blob = blob;
             this.password = password;
+            this.expiresAt = expiresAt;
+            this.maxDownloads = maxDownloads;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.downloads.set(downloads);
         }
 
         public String getFilePath() {
             return filePath;
         }
 
-        public String getPassword() {
+        /**
+         * Name the file is offered under, which for blobs is the uploaded file name.
+         */
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * Media type the uploader declared, null if unknown.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Stored content behind this share, null for shares of a plain file.
+         */
+        public BlobStore.Blob getBlob() {
+            return blob;
+        }
+
+        /**
+         * Hex SHA-256 of the content, null if it isn't known.
+         */
+        public String getSha256() {
+            return blob != null ? blob.getHash() : null;
+        }
+
+        /**
+         * CRC32C of the content, or {@link Checksums#UNKNOWN_CRC32C}.
+         */
+        public long getCrc32c() {
+            return blob != null ? blob.getCrc32c() : Checksums.UNKNOWN_CRC32C;
+        }
+
+        public boolean isBundle() {
+            return members != null;
+        }
+
+        /**
+         * Files of a bundle in the order they were uploaded, null if this share is a single file.
+         */
+        public List<FileInfo> getMembers() {
+            return members;
+        }
+
+        /**
+         * Finds a bundle member by its path, or returns null.
+         */
+        public FileInfo getMember(String path) {
+            return membersByPath != null ? membersByPath.get(path) : null;
+        }
+
+        /**
+         * Salted hash of the share's password, null if the share has none.
+         */
+        public PasswordHash getPasswordHash() {
             return password;
         }
+
+        public boolean hasPassword() {
+            return password != null;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Strong validator for the stored file: its SHA-256, or its size and modification
+         * time for plain files whose content hash isn't known.
+         */
+        public String getETag() {
+            if (blob != null) {
+                return "\"" + blob.getHash() + "\"";
+            }
+            return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * Maximum number of completed downloads before the share is removed, 0 means unlimited.
+         */
+        public int getMaxDownloads() {
+            return maxDownloads;
+        }
+
+        public int getDownloads() {
+            return downloads.get();
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAt || (maxDownloads > 0 && downloads.get() >= maxDownloads);
+        }
     }
 
 
-    private HashMap<Integer, FileInfo> availableFiles;
+    private final ConcurrentHashMap<Integer, FileInfo> availableFiles;
+    private final ExpiryWheel<Integer> expiryWheel;
+    private final long shareTtlMillis;
+    private final int maxDownloads;
+    private final LongAdder completedDownloads = new LongAdder();
+    private final LongAdder expiredShares = new LongAdder();
+    private volatile ShareIndex index;
+    private final long passwordCacheMillis = TimeUnit.SECONDS.toMillis(Long.getLong("filetogo.password.cache.seconds", 300));
+    private final PasswordThrottle passwordThrottle = new PasswordThrottle();
+    // Key for the fingerprints of verified passwords, new on every start
+    private final byte[] fingerprintKey = new byte[32];
+    private volatile IntSupplier codeGenerator = UploadUtils::generateCode;
+    private volatile IntPredicate codeReserved = code -> false;
+
     public FileSharer() {
-        availableFiles = new HashMap<>();
+        this(TimeUnit.MINUTES.toMillis(Long.getLong("filetogo.share.ttl.minutes", 24 * 60)),
+                Integer.getInteger("filetogo.share.max.downloads", 0));
+    }
+
+    /**
+     * @param shareTtlMillis How long a share stays available after it is offered, 0 for no limit
+     * @param maxDownloads Completed downloads after which a share is removed, 0 for unlimited
+     */
+    public FileSharer(long shareTtlMillis, int maxDownloads) {
+        this.availableFiles = new ConcurrentHashMap<>();
+        this.shareTtlMillis = shareTtlMillis;
+        this.maxDownloads = maxDownloads;
+        this.expiryWheel = new ExpiryWheel<>(512, 1000, this::expire);
+        new SecureRandom().nextBytes(fingerprintKey);
+    }
+
+    /**
+     * Loads the shares saved in the index and records every later change in it.
+     * Call this once, before the first share is offered.
+     */
+    public void restore(ShareIndex index, BlobStore blobStore) throws IOException {
+        long start = System.nanoTime();
+        int restored = index.load(blobStore, System.currentTimeMillis(), (code, fileInfo) -> {
+            availableFiles.put(code, fileInfo);
+            if (fileInfo.expiresAt != Long.MAX_VALUE) {
+                expiryWheel.schedule(code, fileInfo.expiresAt);
+            }
+        });
+        index.start(() -> availableFiles);
+        this.index = index;
+        System.out.println("Restored " + restored + " shares in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Replaces where new share codes come from, like a cluster node that may only hand
+     * out the codes it owns.
+     */
+    public void setCodeGenerator(IntSupplier codeGenerator) {
+        this.codeGenerator = codeGenerator;
+    }
+
+    /**
+     * Keeps new shares off codes that are handed out elsewhere, like live relays.
+     */
+    public void setCodeReserved(IntPredicate codeReserved) {
+        this.codeReserved = codeReserved;
+    }
+
+    /**
+     * Whether a share holds the code, also one that has expired but isn't removed yet.
+     */
+    public boolean hasCode(int port) {
+        return availableFiles.containsKey(port);
     }
 
     public int offerFile(String filePath) {
@@ -40,108 +286,297 @@ public class FileSharer {
     }
 
     public int offerFile(String filePath, String password) {
-        int port;
-        while (true) {
-            port = UploadUtils.generateCode();
-            if (!availableFiles.containsKey(port)) {
-                FileInfo info = new FileInfo(filePath, password);
-                availableFiles.put(port, info);
-                return port;
+        return offer(new FileInfo(filePath, password, expiresAt(), maxDownloads));
+    }
+
+    /**
+     * Shares stored content under a new code. The share owns the blob reference it is
+     * given and releases it when the share is removed, also if no code could be assigned.
+     */
+    public int offerBlob(BlobStore.Blob blob, String filename, String password) {
+        return offerBlob(blob, filename, null, password);
+    }
+
+    public int offerBlob(BlobStore.Blob blob, String filename, String contentType, String password) {
+        try {
+            return offer(new FileInfo(blob, filename, contentType, password, expiresAt(), maxDownloads));
+        } catch (RuntimeException e) {
+            blob.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Shares stored content with a password that was hashed beforehand, like when a
+     * chunked upload started.
+     */
+    public int offerBlob(BlobStore.Blob blob, String filename, PasswordHash password) {
+        try {
+            return offer(new FileInfo(blob, filename, null, password, expiresAt(), maxDownloads));
+        } catch (RuntimeException e) {
+            blob.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Shares several stored files under one code. Like with {@link #offerBlob}, the
+     * share owns the blob references of its members.
+     *
+     * @param members Blob shares named by their path inside the bundle
+     */
+    public int offerBundle(String filename, List<FileInfo> members, String password) {
+        try {
+            return offer(new FileInfo(filename, members, PasswordHash.create(password), expiresAt(), maxDownloads, 0));
+        } catch (RuntimeException e) {
+            for (FileInfo member : members) {
+                member.blob.release();
             }
+            throw e;
         }
     }
 
-    public FileInfo getFileInfo(int port) {
-        return availableFiles.get(port);
+    private long expiresAt() {
+        return shareTtlMillis > 0 ? System.currentTimeMillis() + shareTtlMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * @throws IllegalStateException if no free code was found
+     * @throws UncheckedIOException if the share could not be saved in the index
+     */
+    private int offer(FileInfo info) {
+        // putIfAbsent reserves the code atomically, two uploads can never get the same one
+        for (int attempt = 0; attempt < MAX_CODE_ATTEMPTS; attempt++) {
+            int port = codeGenerator.getAsInt();
+            if (availableFiles.putIfAbsent(port, info) == null) {
+                // A relay may have taken the code in the meantime, it checks for shares the same way
+                if (codeReserved.test(port)) {
+                    availableFiles.remove(port, info);
+                    continue;
+                }
+                ShareIndex index = this.index;
+                if (index != null) {
+                    // The code is only handed out once it would survive a restart
+                    try {
+                        index.offered(port, info);
+                    } catch (IOException e) {
+                        availableFiles.remove(port, info);
+                        throw new UncheckedIOException("Could not save share", e);
+                    }
+                }
+                if (info.expiresAt != Long.MAX_VALUE) {
+                    expiryWheel.schedule(port, info.expiresAt);
+                }
+                return port;
+            }
+        }
+        throw new IllegalStateException("No free share code available");
     }
 
-    public String getFilePassword(int port) {
+    /**
+     * Returns the share for a code, or null if there is none or it has expired.
+     */
+    public FileInfo getFileInfo(int port) {
         FileInfo fileInfo = availableFiles.get(port);
-        if (fileInfo == null) {
+        if (fileInfo == null || fileInfo.isExpired(System.currentTimeMillis())) {
             return null;
         }
-        return fileInfo.getPassword();
+        return fileInfo;
     }
 
-    public boolean validatePassword(int port, String providedPassword) {
-        FileInfo fileInfo = availableFiles.get(port);
-        if (fileInfo == null) {
-            return false; // Port not found
+    /**
+     * Starts sending a share. Every transfer that started must be ended with
+     * {@link #endTransfer}, so the file of a share that is removed meanwhile, by its
+     * download limit or its expiry, is only deleted once nothing is reading it anymore.
+     *
+     * @return false if the share was removed and takes no more transfers
+     */
+    public boolean beginTransfer(FileInfo fileInfo) {
+        synchronized (fileInfo) {
+            if (fileInfo.removed) {
+                return false;
+            }
+            fileInfo.transfers++;
+            return true;
         }
-        
-        String requiredPassword = fileInfo.getPassword();
-        
-        // If no password is required
-        if (requiredPassword == null || requiredPassword.isEmpty()) {
-            return providedPassword == null || providedPassword.isEmpty();
+    }
+
+    public void endTransfer(FileInfo fileInfo) {
+        boolean release;
+        synchronized (fileInfo) {
+            release = --fileInfo.transfers == 0 && fileInfo.removed;
+        }
+        if (release) {
+            releaseContent(fileInfo);
         }
-        
-        // If password is required
-        return requiredPassword.equals(providedPassword);
     }
 
-    public void startFileServer(int port) {
-        FileInfo fileInfo = availableFiles.get(port);
-        if (fileInfo == null) {
-            System.err.println("No file associated with port: " + port);
-            return;
+    /**
+     * Counts a completed download. Once the share reaches its download limit it is
+     * removed, and its file deleted when the last transfer still sending it ends.
+     */
+    public void recordDownload(int port, FileInfo fileInfo) {
+        int count = fileInfo.downloads.incrementAndGet();
+        completedDownloads.increment();
+        if (fileInfo.maxDownloads > 0 && count >= fileInfo.maxDownloads) {
+            removeShare(port, fileInfo);
+        } else if (fileInfo.maxDownloads > 0 && index != null) {
+            // Counts only matter for limited shares
+            index.downloaded(port, count);
         }
+    }
 
-        String filePath = fileInfo.getFilePath();
-        if (!new File(filePath).exists()) {
-            System.err.println("File does not exist: " + filePath);
-            return;
+    /**
+     * Counts the bytes of a partial response. Clients that fetch a share in several
+     * ranges, possibly in parallel, make one download each time the ranges add up to
+     * the whole share, whichever range happens to be last.
+     */
+    public void recordPartial(int port, FileInfo fileInfo, long bytes) {
+        int completed = 0;
+        synchronized (fileInfo) {
+            fileInfo.partialBytes += bytes;
+            while (fileInfo.size > 0 && fileInfo.partialBytes >= fileInfo.size) {
+                fileInfo.partialBytes -= fileInfo.size;
+                completed++;
+            }
+        }
+        for (int i = 0; i < completed; i++) {
+            recordDownload(port, fileInfo);
         }
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Serving file '" + new File(filePath).getName() + "' on port " + port);
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("Client connected: " + clientSocket.getInetAddress());
+    }
+
+    public int getShareCount() {
+        return availableFiles.size();
+    }
 
-            new Thread(new FileSenderHandler(clientSocket, fileInfo)).start();
+    public long getCompletedDownloads() {
+        return completedDownloads.sum();
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
+    /**
+     * Shares removed because their time to live ran out.
+     */
+    public long getExpiredShares() {
+        return expiredShares.sum();
+    }
+
+    public void shutdown() {
+        expiryWheel.shutdown();
+        if (index != null) {
+            index.close();
         }
     }
 
-    private static class FileSenderHandler implements Runnable {
-        private final Socket clientSocket;
-        private final FileInfo fileInfo;
+    private void expire(int port) {
+        FileInfo fileInfo = availableFiles.get(port);
+        if (fileInfo != null && fileInfo.isExpired(System.currentTimeMillis())) {
+            System.out.println("Share " + port + " expired");
+            if (removeShare(port, fileInfo)) {
+                expiredShares.increment();
+            }
+        }
+    }
 
-        public FileSenderHandler(Socket clientSocket, FileInfo fileInfo) {
-            this.clientSocket = clientSocket;
-            this.fileInfo = fileInfo;
+    /**
+     * Takes a share out of the registry right away. Its content is released now, or by
+     * the last of the transfers still sending it.
+     *
+     * @return false if the share was already removed
+     */
+    private boolean removeShare(int port, FileInfo fileInfo) {
+        if (!availableFiles.remove(port, fileInfo)) {
+            return false;
+        }
+        if (index != null) {
+            index.removed(port);
+        }
+        boolean release;
+        synchronized (fileInfo) {
+            fileInfo.removed = true;
+            release = fileInfo.transfers == 0;
         }
+        if (release) {
+            releaseContent(fileInfo);
+        }
+        return true;
+    }
 
-        @Override
-        public void run() {
-            try (OutputStream oss = clientSocket.getOutputStream()) {
-                
-                // Send the filename as a header (no password authentication at socket level)
-                String filename = new File(fileInfo.getFilePath()).getName();
-                String header = "Filename: " + filename + "\n";
-                oss.write(header.getBytes());
-                
-                // Send the file content
-                try (FileInputStream fis = new FileInputStream(fileInfo.getFilePath())) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        oss.write(buffer, 0, bytesRead);
-                    }
-                    System.out.println("File '" + filename + "' sent to " + clientSocket.getInetAddress());
-                }
-                
-            } catch (IOException e) {
-                System.err.println("Error sending file to client: " + e.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
-                }
+    private void releaseContent(FileInfo fileInfo) {
+        if (fileInfo.members != null) {
+            for (FileInfo member : fileInfo.members) {
+                member.blob.release();
             }
+        } else if (fileInfo.blob != null) {
+            fileInfo.blob.release();
+        } else {
+            new File(fileInfo.getFilePath()).delete();
         }
     }
 
+    /**
+     * Checks a password a client sent for a share.
+     *
+     * The hash is slow on purpose, so a successful check is remembered for a while and
+     * repeated downloads with the same password skip it. Every other check goes through
+     * the password throttle, which limits the hashes computed per client and locks a
+     * client out of a share after too many wrong passwords. Clients whose password was
+     * verified recently still get in during a lockout.
+     */
+    public PasswordCheck checkPassword(int port, String providedPassword, InetAddress client) {
+        FileInfo fileInfo = getFileInfo(port);
+        if (fileInfo == null) {
+            return PasswordCheck.DENIED;
+        }
+        if (fileInfo.password == null) {
+            return providedPassword == null || providedPassword.isEmpty() ? PasswordCheck.GRANTED : PasswordCheck.DENIED;
+        }
+        if (providedPassword == null || providedPassword.isEmpty()) {
+            return PasswordCheck.DENIED;
+        }
+
+        long now = System.currentTimeMillis();
+        byte[] fingerprint = PasswordHash.fingerprint(fingerprintKey, providedPassword);
+        synchronized (fileInfo) {
+            if (now < fileInfo.verifiedUntil && MessageDigest.isEqual(fingerprint, fileInfo.verifiedFingerprint)) {
+                return PasswordCheck.GRANTED;
+            }
+        }
+        String target = "share:" + port;
+        if (!passwordThrottle.tryCheck(client, target)) {
+            return PasswordCheck.THROTTLED;
+        }
+
+        // Hash outside the lock so checks for the same share don't queue up behind each other
+        if (!fileInfo.password.matches(providedPassword)) {
+            passwordThrottle.failed(client, target);
+            return PasswordCheck.DENIED;
+        }
+        passwordThrottle.succeeded(client, target);
+        synchronized (fileInfo) {
+            fileInfo.verifiedFingerprint = fingerprint;
+            fileInfo.verifiedUntil = now + passwordCacheMillis;
+        }
+        return PasswordCheck.GRANTED;
+    }
+
+    /**
+     * How long a client is kept from checking passwords after too many, at most.
+     */
+    public long getPasswordLockoutMillis() {
+        return passwordThrottle.getPeriodMillis();
+    }
+
+    /**
+     * The throttle share passwords go through, for other password checks to share.
+     */
+    public PasswordThrottle getPasswordThrottle() {
+        return passwordThrottle;
+    }
+
+    public enum PasswordCheck {
+        GRANTED,
+        DENIED,
+        /** Too many password attempts from the client or for the share, the password was not checked */
+        THROTTLED
+    }
 }
@@ -0,0 +1,189 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the content of popular small and medium files in direct (off-heap) buffers.
+ *
+ * Entries are evicted least recently used first once the byte budget is reached. A new
+ * file only gets in if it has been requested more often than the entries it would evict
+ * together (TinyLFU admission), so a burst of one-off downloads can't flush the files everyone
+ * keeps fetching. When several requests miss on the same file at once, one of them
+ * reads it from disk and the others wait for that read.
+ */
+public class HotFileCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+    // Access-ordered, guarded by this
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public HotFileCache() {
+        this(Long.getLong("filetogo.cache.max.bytes", 128L * 1024 * 1024),
+                Long.getLong("filetogo.cache.max.entry.bytes", 16L * 1024 * 1024));
+    }
+
+    /**
+     * @param maxBytes Total size of the cached content
+     * @param maxEntryBytes Larger files are never cached
+     */
+    public HotFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, maxBytes), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the content of a file, from memory if it is cached, otherwise read from disk
+     * and cached if it is popular enough.
+     *
+     * @param key Identifies the content, it must change whenever the content does
+     * @return A read-only buffer with the whole file, or null if the caller should read the file itself
+     */
+    public ByteBuffer get(String key, File file, long size) throws IOException {
+        if (size > maxEntryBytes) {
+            return null;
+        }
+        sketch.increment(key);
+
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached.duplicate();
+            }
+        }
+        misses.increment();
+
+        CompletableFuture<ByteBuffer> pending = loading.get(key);
+        if (pending == null) {
+            if (!admits(key, size)) {
+                rejections.increment();
+                return null;
+            }
+            CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+            pending = loading.putIfAbsent(key, load);
+            if (pending == null) {
+                try {
+                    ByteBuffer content = read(file, size);
+                    insert(key, content);
+                    load.complete(content);
+                    return content.duplicate();
+                } catch (IOException | RuntimeException e) {
+                    load.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    loading.remove(key, load);
+                }
+            }
+        }
+
+        try {
+            return pending.join().duplicate();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Misses that were not cached because the file wasn't popular enough.
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * A file fits if there's room, or if it's requested more often than all the least
+     * recently used entries that would have to go to make room for it.
+     */
+    private synchronized boolean admits(String key, long size) {
+        long needed = usedBytes + size - maxBytes;
+        int frequency = sketch.frequency(key);
+        int victimsFrequency = 0;
+        for (Map.Entry<String, ByteBuffer> victim : entries.entrySet()) {
+            if (needed <= 0) {
+                break;
+            }
+            victimsFrequency += sketch.frequency(victim.getKey());
+            if (victimsFrequency >= frequency) {
+                return false;
+            }
+            needed -= victim.getValue().capacity();
+        }
+        return true;
+    }
+
+    /**
+     * Adds a file that was read from disk, unless the entries changed while it was read
+     * and it's no longer worth what it would evict.
+     */
+    private synchronized void insert(String key, ByteBuffer content) {
+        if (!entries.containsKey(key) && !admits(key, content.capacity())) {
+            rejections.increment();
+            return;
+        }
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (usedBytes + content.capacity() > maxBytes && eldest.hasNext()) {
+            usedBytes -= eldest.next().getValue().capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+        ByteBuffer previous = entries.put(key, content);
+        if (previous != null) {
+            usedBytes -= previous.capacity();
+        }
+        usedBytes += content.capacity();
+    }
+
+    private static ByteBuffer read(File file, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("File is shorter than expected: " + file);
+                }
+            }
+        }
+        return buffer.flip().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,323 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import p2p.utils.PasswordHash;
+
+/**
+ * A one-shot share whose bytes go straight from the sender's upload to the receiver's
+ * download without being stored.
+ *
+ * Both sides meet in a bounded ring buffer: the sender blocks while it is full and the
+ * receiver while it is empty, so a slow receiver slows the sender down instead of the
+ * relay buffering the whole file. Whichever side connects first waits for the other.
+ * If either side goes away, or makes no progress for the idle timeout, the relay is
+ * aborted and the other side gets an error. The ring is only allocated once the sender
+ * starts, and never larger than the declared size.
+ *
+ * The code is short enough to guess, so sending to or cancelling a relay also takes
+ * the random sender token handed out when it was created.
+ */
+public class LiveRelay {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int code;
+    private final String senderToken;
+    private final InetAddress creator;
+    private final String filename;
+    private final PasswordHash password;
+    private final long size;
+    private final int bufferBytes;
+    private final long idleTimeoutNanos;
+    private final long createdAt = System.currentTimeMillis();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Everything below is guarded by lock
+    private byte[] ring;
+    private int head;
+    private int count;
+    private boolean senderAttached;
+    private boolean receiverAttached;
+    private boolean finished;
+    private boolean delivered;
+    private String failure;
+    private long transferred;
+
+    /**
+     * @param size Bytes the sender will send, or -1 if it didn't say
+     */
+    LiveRelay(int code, InetAddress creator, String filename, String password, long size, int bufferBytes, long idleTimeoutMillis) {
+        this.code = code;
+        this.creator = creator;
+        byte[] token = new byte[16];
+        RANDOM.nextBytes(token);
+        this.senderToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        this.filename = filename;
+        this.password = PasswordHash.create(password);
+        this.size = size;
+        this.bufferBytes = bufferBytes;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Secret the sender needs to send to or cancel the relay.
+     */
+    public String getSenderToken() {
+        return senderToken;
+    }
+
+    public boolean isSender(String token) {
+        return token != null && MessageDigest.isEqual(senderToken.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Client that created the relay, for the limit on relays per client.
+     */
+    InetAddress getCreator() {
+        return creator;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return Bytes the sender declared, or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public boolean hasPassword() {
+        return password != null;
+    }
+
+    /**
+     * Checks a password without any throttling, see {@link RelayManager#checkPassword}.
+     */
+    boolean checkPassword(String providedPassword) {
+        if (password == null) {
+            return providedPassword == null || providedPassword.isEmpty();
+        }
+        return providedPassword != null && !providedPassword.isEmpty() && password.matches(providedPassword);
+    }
+
+    /**
+     * Bytes the receiver has taken so far.
+     */
+    public long getTransferred() {
+        lock.lock();
+        try {
+            return transferred;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a sender or receiver is connected, relays nobody uses yet can be expired.
+     */
+    boolean isStarted() {
+        lock.lock();
+        try {
+            return senderAttached || receiverAttached;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if another sender already took the relay, or it was aborted
+     */
+    public boolean attachSender() {
+        lock.lock();
+        try {
+            if (senderAttached || failure != null) {
+                return false;
+            }
+            senderAttached = true;
+            ring = new byte[(int) (size >= 0 ? Math.max(1, Math.min(size, bufferBytes)) : bufferBytes)];
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if another receiver already took the relay, or it was aborted
+     */
+    public boolean attachReceiver() {
+        lock.lock();
+        try {
+            if (receiverAttached || failure != null) {
+                return false;
+            }
+            receiverAttached = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts bytes into the ring, waiting for the receiver to make room.
+     *
+     * @throws IOException if the relay was aborted or the receiver stopped reading
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            while (len > 0) {
+                long deadline = System.nanoTime() + idleTimeoutNanos;
+                while (count == ring.length && failure == null) {
+                    await(notFull, deadline, "Nobody received the data in time");
+                }
+                checkFailure();
+                int tail = (head + count) % ring.length;
+                int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+                System.arraycopy(b, off, ring, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes bytes from the ring, waiting for the sender to put some there.
+     *
+     * @return Bytes read, or -1 once the sender finished and everything was read
+     * @throws IOException if the relay was aborted or the sender stopped sending
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + idleTimeoutNanos;
+            while (count == 0 && !finished && failure == null) {
+                await(notEmpty, deadline, senderAttached ? "The sender stopped sending" : "The sender never started");
+            }
+            checkFailure();
+            if (count == 0) {
+                return -1;
+            }
+            int n = Math.min(len, Math.min(count, ring.length - head));
+            System.arraycopy(ring, head, b, off, n);
+            head = (head + n) % ring.length;
+            count -= n;
+            transferred += n;
+            notFull.signal();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the sender after its last byte.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the receiver once it sent the last byte on.
+     */
+    public void delivered() {
+        lock.lock();
+        try {
+            delivered = true;
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the receiver got everything the sender sent.
+     *
+     * @throws IOException if the relay was aborted or the receiver stopped reading
+     */
+    public void awaitDelivered() throws IOException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + idleTimeoutNanos;
+            long left = count;
+            while (!delivered && failure == null) {
+                await(notFull, deadline, "Nobody received the data in time");
+                if (count < left) {
+                    // Still making progress
+                    deadline = System.nanoTime() + idleTimeoutNanos;
+                    left = count;
+                }
+            }
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the relay for both sides, the first reason given is kept.
+     */
+    public void abort(String reason) {
+        lock.lock();
+        try {
+            if (failure == null && !delivered) {
+                failure = reason;
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void await(Condition condition, long deadline, String timeoutReason) throws IOException {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+            abort(timeoutReason);
+            return;
+        }
+        try {
+            condition.awaitNanos(left);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort("Interrupted");
+            throw new IOException("Interrupted while relaying");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Relay " + code + " aborted: " + failure);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package p2p.service;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many passwords are hashed and how many wrong ones are tolerated.
+ *
+ * Password hashes are slow on purpose, so each client may only have a few of them
+ * computed per period (filetogo.password.client.checks), across everything it asks
+ * for. Wrong passwords are counted per client and target: after
+ * filetogo.password.max.failures of them that client is locked out of the target for
+ * filetogo.password.lockout.seconds, while everyone else can still try. A target only
+ * stops checking passwords for all clients after filetogo.password.target.max.failures
+ * wrong ones, which takes many addresses guessing together.
+ *
+ * Targets are names like "share:54321", so shares and relays with the same code are
+ * counted apart.
+ */
+public class PasswordThrottle {
+    private final int maxClientChecks;
+    private final int maxFailures;
+    private final int maxTargetFailures;
+    private final long periodMillis;
+
+    private final ConcurrentHashMap<InetAddress, Window> checks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> failures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> targetFailures = new ConcurrentHashMap<>();
+    private volatile int sweepAt = 1024;
+
+    public PasswordThrottle() {
+        this(Integer.getInteger("filetogo.password.client.checks", 20),
+                Integer.getInteger("filetogo.password.max.failures", 5),
+                Integer.getInteger("filetogo.password.target.max.failures", 100),
+                TimeUnit.SECONDS.toMillis(Long.getLong("filetogo.password.lockout.seconds", 60)));
+    }
+
+    public PasswordThrottle(int maxClientChecks, int maxFailures, int maxTargetFailures, long periodMillis) {
+        this.maxClientChecks = maxClientChecks;
+        this.maxFailures = maxFailures;
+        this.maxTargetFailures = maxTargetFailures;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Asks to hash a password the client sent for a target, counting it against the
+     * client's checks for the period.
+     *
+     * @return false if the client or target is locked out, or the client used up its checks
+     */
+    public boolean tryCheck(InetAddress client, String target) {
+        long now = System.currentTimeMillis();
+        Window failed = failures.get(failureKey(client, target));
+        if (failed != null && failed.isLocked(now)) {
+            return false;
+        }
+        Window targetFailed = targetFailures.get(target);
+        if (targetFailed != null && targetFailed.isLocked(now)) {
+            return false;
+        }
+        return window(checks, client).count(now, maxClientChecks, periodMillis, false);
+    }
+
+    public void failed(InetAddress client, String target) {
+        long now = System.currentTimeMillis();
+        if (!window(failures, failureKey(client, target)).count(now, maxFailures, periodMillis, true)) {
+            System.out.println("Too many wrong passwords from " + client.getHostAddress() + " for " + target
+                    + ", locked for " + periodMillis + " ms");
+        }
+        if (!window(targetFailures, target).count(now, maxTargetFailures, periodMillis, true)) {
+            System.out.println("Too many wrong passwords for " + target + ", locked for " + periodMillis + " ms");
+        }
+    }
+
+    public void succeeded(InetAddress client, String target) {
+        failures.remove(failureKey(client, target));
+    }
+
+    /**
+     * How long a client waits after being throttled, at most.
+     */
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    private static String failureKey(InetAddress client, String target) {
+        return client.getHostAddress() + " " + target;
+    }
+
+    private <K> Window window(ConcurrentHashMap<K, Window> windows, K key) {
+        if (windows.size() >= sweepAt) {
+            sweep();
+        }
+        return windows.computeIfAbsent(key, k -> new Window());
+    }
+
+    /**
+     * Drops windows that ended, so addresses that came and went don't pile up.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        checks.values().removeIf(window -> window.isOver(now));
+        failures.values().removeIf(window -> window.isOver(now));
+        targetFailures.values().removeIf(window -> window.isOver(now));
+        sweepAt = Math.max(1024, 2 * Math.max(checks.size(), Math.max(failures.size(), targetFailures.size())));
+    }
+
+    /**
+     * Events within one period, and the lockout they led to.
+     */
+    private static class Window {
+        private int count;
+        private long end;
+        private long lockedUntil;
+
+        /**
+         * Counts an event if the limit allows it. With lock set, reaching the limit locks
+         * the window for a period instead of refusing further events.
+         *
+         * @return false if the limit was reached
+         */
+        synchronized boolean count(long now, int limit, long periodMillis, boolean lock) {
+            if (now >= end) {
+                count = 0;
+                end = now + periodMillis;
+            }
+            if (!lock && count >= limit) {
+                return false;
+            }
+            if (++count >= limit && lock) {
+                lockedUntil = now + periodMillis;
+                count = 0;
+                return false;
+            }
+            return true;
+        }
+
+        synchronized boolean isLocked(long now) {
+            return now < lockedUntil;
+        }
+
+        synchronized boolean isOver(long now) {
+            return now >= end && now >= lockedUntil;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package p2p.service;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import p2p.utils.UploadUtils;
+
+/**
+ * Keeps track of live relays, shares that stream from sender to receiver without
+ * being stored (see {@link LiveRelay}).
+ *
+ * Relays use the same codes as stored shares and are downloaded the same way, so a
+ * receiver doesn't need to know which kind it got. A relay is gone once its one
+ * download finished or failed. Relays nobody connected to within the idle timeout
+ * are removed, and only a limited number may exist at once since each holds a buffer
+ * in memory while it runs. Each client may only hold a few of them
+ * (filetogo.relay.max.per.client), so one client can't take them all.
+ */
+public final class RelayManager {
+    private static final int MAX_CODE_ATTEMPTS = 100;
+
+    private final FileSharer fileSharer;
+    private final int bufferBytes;
+    private final int maxRelays;
+    private final int maxPerClient;
+    private final long idleTimeoutMillis;
+    private final ConcurrentHashMap<Integer, LiveRelay> relays = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, Integer> perClient = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cleaner;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder relayedBytes = new LongAdder();
+    private volatile IntSupplier codeGenerator = UploadUtils::generateCode;
+
+    public RelayManager(FileSharer fileSharer) {
+        this(fileSharer,
+                Integer.getInteger("filetogo.relay.buffer.bytes", 4 * 1024 * 1024),
+                Integer.getInteger("filetogo.relay.max", 64),
+                Integer.getInteger("filetogo.relay.max.per.client", 4),
+                TimeUnit.SECONDS.toMillis(Long.getLong("filetogo.relay.idle.seconds", 300)));
+    }
+
+    /**
+     * @param bufferBytes Size of each relay's ring buffer
+     * @param maxRelays Relays that may exist at the same time
+     * @param maxPerClient Relays one client may have at the same time
+     * @param idleTimeoutMillis How long a relay waits for the other side or for progress
+     */
+    public RelayManager(FileSharer fileSharer, int bufferBytes, int maxRelays, int maxPerClient, long idleTimeoutMillis) {
+        this.fileSharer = fileSharer;
+        this.bufferBytes = bufferBytes;
+        this.maxRelays = maxRelays;
+        this.maxPerClient = maxPerClient;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        // Stored shares must not take a code a relay holds
+        fileSharer.setCodeReserved(relays::containsKey);
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "relay-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::removeUnused, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Replaces where new codes come from, like a cluster node that may only hand out the
+     * codes it owns.
+     */
+    public void setCodeGenerator(IntSupplier codeGenerator) {
+        this.codeGenerator = codeGenerator;
+    }
+
+    /**
+     * Creates a relay under a new code, waiting for its sender and receiver.
+     *
+     * @param creator Client asking for the relay
+     * @param size Bytes the sender will send, or -1 if unknown
+     * @return The relay, or null if the client already has as many relays as it may
+     * @throws IllegalStateException if there are too many relays or no free code was found
+     */
+    public LiveRelay create(InetAddress creator, String filename, long size, String password) {
+        if (relays.size() >= maxRelays) {
+            throw new IllegalStateException("Too many live relays, try again later");
+        }
+        boolean[] allowed = new boolean[1];
+        perClient.compute(creator, (c, held) -> {
+            int count = held != null ? held : 0;
+            allowed[0] = count < maxPerClient;
+            return allowed[0] ? count + 1 : held;
+        });
+        if (!allowed[0]) {
+            return null;
+        }
+        String baseName = UploadUtils.sanitizeFileName(filename);
+        for (int attempt = 0; attempt < MAX_CODE_ATTEMPTS; attempt++) {
+            int code = codeGenerator.getAsInt();
+            if (fileSharer.hasCode(code)) {
+                continue;
+            }
+            LiveRelay relay = new LiveRelay(code, creator, baseName, password, size, bufferBytes, idleTimeoutMillis);
+            if (relays.putIfAbsent(code, relay) == null) {
+                // A share may have taken the code in the meantime, it checks for relays the same way
+                if (fileSharer.hasCode(code)) {
+                    relays.remove(code, relay);
+                    continue;
+                }
+                return relay;
+            }
+        }
+        release(creator);
+        throw new IllegalStateException("No free share code available");
+    }
+
+    private void release(InetAddress creator) {
+        perClient.computeIfPresent(creator, (c, held) -> held > 1 ? held - 1 : null);
+    }
+
+    public LiveRelay get(int code) {
+        return relays.get(code);
+    }
+
+    /**
+     * Checks a receiver's password through the same throttle as share passwords.
+     */
+    public FileSharer.PasswordCheck checkPassword(LiveRelay relay, String providedPassword, InetAddress client) {
+        if (!relay.hasPassword()) {
+            return relay.checkPassword(providedPassword) ? FileSharer.PasswordCheck.GRANTED : FileSharer.PasswordCheck.DENIED;
+        }
+        if (providedPassword == null || providedPassword.isEmpty()) {
+            return FileSharer.PasswordCheck.DENIED;
+        }
+        PasswordThrottle throttle = fileSharer.getPasswordThrottle();
+        String target = "relay:" + relay.getCode();
+        if (!throttle.tryCheck(client, target)) {
+            return FileSharer.PasswordCheck.THROTTLED;
+        }
+        if (!relay.checkPassword(providedPassword)) {
+            throttle.failed(client, target);
+            return FileSharer.PasswordCheck.DENIED;
+        }
+        throttle.succeeded(client, target);
+        return FileSharer.PasswordCheck.GRANTED;
+    }
+
+    /**
+     * Removes a relay after its download, counting how it ended.
+     */
+    public void finish(LiveRelay relay, boolean success) {
+        if (relays.remove(relay.getCode(), relay)) {
+            release(relay.getCreator());
+            relayedBytes.add(relay.getTransferred());
+            if (success) {
+                completed.increment();
+            } else {
+                failed.increment();
+            }
+        }
+    }
+
+    public void abort(LiveRelay relay, String reason) {
+        relay.abort(reason);
+        finish(relay, false);
+    }
+
+    public int getRelayCount() {
+        return relays.size();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Bytes delivered by relays that have ended.
+     */
+    public long getRelayedBytes() {
+        return relayedBytes.sum();
+    }
+
+    public void shutdown() {
+        cleaner.shutdownNow();
+        for (LiveRelay relay : relays.values()) {
+            abort(relay, "The server is shutting down");
+        }
+    }
+
+    private void removeUnused() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (LiveRelay relay : relays.values()) {
+            if (relay.getCreatedAt() < cutoff && !relay.isStarted()) {
+                System.out.println("Removing unused live relay " + relay.getCode());
+                abort(relay, "Nobody connected in time");
+            }
+        }
+    }
+}
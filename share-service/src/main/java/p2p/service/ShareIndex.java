@@ -0,0 +1,556 @@
+package p2p.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+import p2p.utils.Checksums;
+import p2p.utils.PasswordHash;
+
+/**
+ * Keeps the share registry on disk so shares survive a restart.
+ *
+ * Every change is appended to a journal. A single writer thread drains all pending
+ * records, writes them with one call and syncs once, so concurrent uploads share the
+ * cost of an fsync. Offers wait until their record is durable, removals and download
+ * counts don't. After a number of records the live shares are written to a snapshot
+ * (temp file plus atomic rename) and the journal is emptied, so loading reads the
+ * live shares plus a bounded tail of history, never the full history.
+ *
+ * Records are framed with their length and a CRC32C. A torn record at the end of the
+ * journal, from a crash in the middle of a write, is cut off when loading.
+ */
+public class ShareIndex {
+    // Version 1 stored share passwords in plain text, 2 stores their hashes, 3 adds bundle
+    // members, 4 adds the CRC32C after every blob hash
+    static final int FORMAT_VERSION = 4;
+    private static final int JOURNAL_MAGIC = 0x46544a4c; // "FTJL"
+    private static final int SNAPSHOT_MAGIC = 0x4654534e; // "FTSN"
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final byte OFFER = 1;
+    private static final byte REMOVE = 2;
+    private static final byte DOWNLOADS = 3;
+
+    private final File journalFile;
+    private final File snapshotFile;
+    private final long snapshotEvery;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private FileChannel journal;
+    private Supplier<Map<Integer, FileSharer.FileInfo>> liveShares;
+    private Thread writer;
+    private long recordsSinceSnapshot;
+    private boolean rewrite;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    public ShareIndex(File dir) {
+        this(dir, Long.getLong("filetogo.index.snapshot.records", 100_000));
+    }
+
+    /**
+     * @param snapshotEvery Journal records after which a new snapshot is written
+     */
+    public ShareIndex(File dir, long snapshotEvery) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        this.journalFile = new File(dir, "shares.journal");
+        this.snapshotFile = new File(dir, "shares.snapshot");
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Reads the snapshot and replays the journal.
+     *
+     * @param blobStore Gets a reference for every blob a live share points at
+     * @param now Shares that expired before this time are dropped
+     * @param restored Called with the code and share of every live share
+     * @return Number of live shares
+     */
+    int load(BlobStore blobStore, long now, BiConsumer<Integer, FileSharer.FileInfo> restored) throws IOException {
+        Map<Integer, Record> records = new HashMap<>();
+        boolean outdated = false;
+        if (snapshotFile.exists()) {
+            ByteBuffer in = map(snapshotFile);
+            int version = readHeader(in, SNAPSHOT_MAGIC, snapshotFile);
+            readRecords(in, version, records);
+            outdated |= version < FORMAT_VERSION;
+        }
+
+        long validLength = HEADER_SIZE;
+        if (journalFile.exists() && journalFile.length() > 0) {
+            ByteBuffer in = map(journalFile);
+            int version = readHeader(in, JOURNAL_MAGIC, journalFile);
+            validLength += readRecords(in, version, records);
+            outdated |= version < FORMAT_VERSION;
+        }
+        recordsSinceSnapshot = 0;
+        // Files in an older format are rewritten as soon as the index starts
+        rewrite = outdated;
+
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (journal.size() < HEADER_SIZE) {
+            journal.truncate(0);
+            journal.write(header(JOURNAL_MAGIC), 0);
+            journal.force(true);
+        } else if (journal.size() > validLength) {
+            System.err.println("Share index: dropping " + (journal.size() - validLength) + " bytes of incomplete journal");
+            journal.truncate(validLength);
+            journal.force(true);
+        }
+        journal.position(validLength);
+
+        int live = 0;
+        Strings strings = new Strings();
+        for (Map.Entry<Integer, Record> entry : records.entrySet()) {
+            Record record = entry.getValue();
+            if (record.expiresAt <= now || (record.maxDownloads > 0 && record.downloads >= record.maxDownloads)) {
+                continue;
+            }
+            restored.accept(entry.getKey(), record.decode(blobStore, strings));
+            live++;
+        }
+        return live;
+    }
+
+    /**
+     * Starts writing changes. Snapshots are taken from the map the supplier returns.
+     */
+    void start(Supplier<Map<Integer, FileSharer.FileInfo>> liveShares) throws IOException {
+        this.liveShares = liveShares;
+        if (rewrite) {
+            snapshot();
+            rewrite = false;
+        }
+        writer = new Thread(this::writeLoop, "share-index");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a new share and waits until the record is on disk.
+     */
+    void offered(int code, FileSharer.FileInfo info) throws IOException {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        append(encodeOffer(code, info), durable);
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the share index", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    void removed(int code) {
+        appendQuietly(encode(REMOVE, code, -1));
+    }
+
+    void downloaded(int code, int downloads) {
+        appendQuietly(encode(DOWNLOADS, code, downloads));
+    }
+
+    /**
+     * Writes what is still queued, takes a final snapshot and closes the journal.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed || writer == null) {
+                return;
+            }
+            closed = true;
+            queue.add(Pending.STOP);
+        }
+        try {
+            writer.join();
+            if (failure == null) {
+                snapshot();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Share index: final snapshot failed: " + e.getMessage());
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing share index: " + e.getMessage());
+        }
+    }
+
+    // Synchronized with close() and write failures so nothing is queued behind the writer's back
+    private synchronized void append(byte[] record, CompletableFuture<Void> durable) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Share index is closed");
+        }
+        queue.add(new Pending(record, durable));
+    }
+
+    private void appendQuietly(byte[] record) {
+        try {
+            append(record, null);
+        } catch (IOException e) {
+            System.err.println("Share index: change not recorded: " + e.getMessage());
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int count = 0;
+            for (Pending pending : batch) {
+                if (pending == Pending.STOP) {
+                    stopping = true;
+                } else {
+                    bytes.writeBytes(pending.record);
+                    count++;
+                }
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+                // One sync for the whole batch
+                journal.force(false);
+                for (Pending pending : batch) {
+                    if (pending.durable != null) {
+                        pending.durable.complete(null);
+                    }
+                }
+                recordsSinceSnapshot += count;
+                if (recordsSinceSnapshot >= snapshotEvery && !stopping) {
+                    snapshot();
+                }
+            } catch (IOException e) {
+                System.err.println("Share index write failed: " + e.getMessage());
+                // Fail this batch and whatever is still queued, new changes are refused from now on
+                synchronized (this) {
+                    failure = e;
+                    queue.drainTo(batch);
+                }
+                for (Pending pending : batch) {
+                    if (pending.durable != null) {
+                        pending.durable.completeExceptionally(e);
+                    }
+                }
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes all live shares to a new snapshot and empties the journal.
+     *
+     * Changes made while the snapshot is written may end up both in the snapshot and in
+     * the journal. That's fine because replaying a record twice has the same effect as
+     * replaying it once: offers and removals set the state, download records carry the
+     * absolute count.
+     */
+    private void snapshot() throws IOException {
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp);
+             BufferedOutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+            out.write(header(SNAPSHOT_MAGIC).array());
+            for (Map.Entry<Integer, FileSharer.FileInfo> entry : liveShares.get().entrySet()) {
+                out.write(encodeOffer(entry.getKey(), entry.getValue()));
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // A crash before this point replays the old journal on top of the new snapshot, which is harmless
+        journal.truncate(HEADER_SIZE);
+        journal.write(header(JOURNAL_MAGIC), 0);
+        journal.force(true);
+        journal.position(HEADER_SIZE);
+        recordsSinceSnapshot = 0;
+    }
+
+    /**
+     * Maps a whole file, which is much faster to parse than a stream.
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Share index file too large: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static ByteBuffer header(int magic) {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(magic).putInt(FORMAT_VERSION).flip();
+    }
+
+    private static int readHeader(ByteBuffer in, int magic, File file) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != magic) {
+            throw new IOException("Not a share index file: " + file);
+        }
+        int version = in.getInt();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported share index version " + version + " in " + file);
+        }
+        return version;
+    }
+
+    /**
+     * Applies records until the end of the buffer or the first damaged record.
+     *
+     * @return Number of bytes in intact records
+     */
+    private static long readRecords(ByteBuffer in, int version, Map<Integer, Record> records) {
+        CRC32C crc = new CRC32C();
+        long valid = 0;
+        while (in.remaining() >= 8) {
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > in.remaining()) {
+                return valid;
+            }
+            int start = in.position();
+            int end = start + length;
+            crc.reset();
+            crc.update(in.limit(end));
+            in.limit(in.capacity()).position(start);
+            if ((int) crc.getValue() != checksum) {
+                return valid;
+            }
+            apply(in, version, records);
+            in.position(end);
+            valid += 8 + length;
+        }
+        return valid;
+    }
+
+    private static void apply(ByteBuffer in, int version, Map<Integer, Record> records) {
+        byte type = in.get();
+        int code = in.getInt();
+        if (type == OFFER) {
+            // Only what decides whether the share is still live is read here, the rest is
+            // decoded once at the end and only for shares that survive
+            Record record = new Record(in, in.position(), version);
+            record.expiresAt = in.getLong();
+            record.maxDownloads = in.getInt();
+            record.downloads = in.getInt();
+            records.put(code, record);
+        } else if (type == REMOVE) {
+            records.remove(code);
+        } else if (type == DOWNLOADS) {
+            Record record = records.get(code);
+            if (record != null) {
+                record.downloads = in.getInt();
+            }
+        }
+    }
+
+    private static byte[] encodeOffer(int code, FileSharer.FileInfo info) {
+        BlobStore.Blob blob = info.getBlob();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(OFFER);
+            out.writeInt(code);
+            out.writeLong(info.getExpiresAt());
+            out.writeInt(info.getMaxDownloads());
+            out.writeInt(info.getDownloads());
+            out.writeLong(info.getSize());
+            out.writeLong(info.getLastModified());
+            if (blob != null) {
+                out.writeByte(1);
+                out.write(HexFormat.of().parseHex(blob.getHash()));
+                out.writeLong(blob.getCrc32c());
+            } else {
+                out.writeByte(0);
+            }
+            // Blob paths follow from the hash, only plain files need theirs
+            writeString(out, blob != null ? null : info.getFilePath());
+            writeString(out, info.getFilename());
+            writeString(out, info.getContentType());
+            writeString(out, info.hasPassword() ? info.getPasswordHash().encode() : null);
+            List<FileSharer.FileInfo> members = info.isBundle() ? info.getMembers() : List.of();
+            out.writeInt(members.size());
+            for (FileSharer.FileInfo member : members) {
+                out.writeLong(member.getSize());
+                out.writeLong(member.getLastModified());
+                out.write(HexFormat.of().parseHex(member.getBlob().getHash()));
+                out.writeLong(member.getBlob().getCrc32c());
+                writeString(out, member.getFilename());
+                writeString(out, member.getContentType());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encode(byte type, int code, int value) {
+        ByteBuffer payload = ByteBuffer.allocate(value >= 0 ? 9 : 5).put(type).putInt(code);
+        if (value >= 0) {
+            payload.putInt(value);
+        }
+        return frame(payload.array());
+    }
+
+    private static byte[] frame(byte[] payload) {
+        if (payload.length > MAX_RECORD_SIZE) {
+            // It could be written but never read back, which would also lose every later record
+            throw new IllegalArgumentException("Share too large for the share index");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Decodes strings from records. Values that repeat across many records, like content
+     * types, can be shared instead of allocated again for every record.
+     */
+    private static class Strings {
+        private final Map<String, String> shared = new HashMap<>();
+        private byte[] scratch = new byte[256];
+
+        String read(ByteBuffer in, boolean share) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            in.get(scratch, 0, length);
+            String value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            return share ? shared.computeIfAbsent(value, v -> v) : value;
+        }
+    }
+
+    /**
+     * A share as stored in the index.
+     */
+    private static class Record {
+        final ByteBuffer source;
+        final int offset;
+        final int version;
+        long expiresAt;
+        int maxDownloads;
+        int downloads;
+
+        Record(ByteBuffer source, int offset, int version) {
+            this.source = source;
+            this.offset = offset;
+            this.version = version;
+        }
+
+        FileSharer.FileInfo decode(BlobStore blobStore, Strings strings) {
+            // Skip expiresAt, maxDownloads and downloads, those may have changed since
+            ByteBuffer in = source.position(offset + 16);
+            long size = in.getLong();
+            long lastModified = in.getLong();
+            String blobHash = null;
+            long crc32c = Checksums.UNKNOWN_CRC32C;
+            if (in.get() != 0) {
+                byte[] hash = new byte[32];
+                in.get(hash);
+                blobHash = HexFormat.of().formatHex(hash);
+                crc32c = readCrc32c(in);
+            }
+            String filePath = strings.read(in, false);
+            String filename = strings.read(in, false);
+            String contentType = strings.read(in, true);
+            String password = strings.read(in, false);
+            PasswordHash passwordHash = password == null ? null
+                    : version < 2 ? PasswordHash.create(password) : PasswordHash.parse(password);
+
+            int memberCount = version >= 3 ? in.getInt() : 0;
+            if (memberCount > 0) {
+                List<FileSharer.FileInfo> members = new ArrayList<>(memberCount);
+                for (int i = 0; i < memberCount; i++) {
+                    long memberSize = in.getLong();
+                    long memberModified = in.getLong();
+                    byte[] hash = new byte[32];
+                    in.get(hash);
+                    long memberCrc32c = readCrc32c(in);
+                    String path = strings.read(in, false);
+                    String memberType = strings.read(in, true);
+                    BlobStore.Blob memberBlob = blobStore.restore(HexFormat.of().formatHex(hash), memberSize, memberCrc32c);
+                    members.add(new FileSharer.FileInfo(memberBlob.getFile().getPath(), path, memberType, memberBlob, null,
+                            Long.MAX_VALUE, 0, memberSize, memberModified, 0));
+                }
+                return new FileSharer.FileInfo(filename, members, passwordHash, expiresAt, maxDownloads, downloads);
+            }
+
+            BlobStore.Blob blob = blobHash != null ? blobStore.restore(blobHash, size, crc32c) : null;
+            if (blob != null) {
+                filePath = blob.getFile().getPath();
+            }
+            return new FileSharer.FileInfo(filePath, filename, contentType, blob, passwordHash,
+                    expiresAt, maxDownloads, size, lastModified, downloads);
+        }
+
+        private long readCrc32c(ByteBuffer in) {
+            return version >= 4 ? in.getLong() : Checksums.UNKNOWN_CRC32C;
+        }
+    }
+
+    private static class Pending {
+        static final Pending STOP = new Pending(null, null);
+
+        final byte[] record;
+        final CompletableFuture<Void> durable;
+
+        Pending(byte[] record, CompletableFuture<Void> durable) {
+            this.record = record;
+            this.durable = durable;
+        }
+    }
+}
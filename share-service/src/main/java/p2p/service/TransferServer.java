@@ -0,0 +1,376 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single-port transfer endpoint that serves every shared file.
+ *
+ * One selector thread multiplexes all peer connections. A peer sends one request line
+ * with the share code and an optional password ("54321 secret\n"), receives a
+ * "Filename: ...\n" header and then the raw file bytes, which are pushed with
+ * FileChannel.transferTo as the socket becomes writable. Shares stay available after
+ * a transfer, so the same code can be fetched again until it expires.
+ *
+ * The protocol has no TLS, so passwords cross the network in plain text, and none of
+ * the HTTP side's limits apply. It is meant for peers on the same host or a trusted
+ * network, and only listens where it's told to.
+ *
+ * Passwords are hashed on a few worker threads (filetogo.transfer.password.threads)
+ * while the connection waits without interest, so a slow hash never stalls the other
+ * transfers. The worker hands the result back to the selector thread.
+ *
+ * A peer that doesn't finish its request line within filetogo.transfer.request.timeout.millis
+ * is disconnected, the selector wakes up at least once a second to look for them.
+ */
+public class TransferServer {
+    private static final int MAX_REQUEST_LINE = 1024;
+
+    private final FileSharer fileSharer;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final LongAdder bytesSent = new LongAdder();
+    private final ExecutorService passwordWorkers;
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final long requestTimeoutMillis = Long.getLong("filetogo.transfer.request.timeout.millis", 10_000);
+    private final long sweepIntervalMillis = Math.max(1, Math.min(1000, requestTimeoutMillis));
+    private long lastSweep = System.currentTimeMillis();
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    public TransferServer(FileSharer fileSharer, InetSocketAddress address) throws IOException {
+        this.fileSharer = fileSharer;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.passwordWorkers = Executors.newFixedThreadPool(
+                Integer.getInteger("filetogo.transfer.password.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                r -> {
+                    Thread thread = new Thread(r, "transfer-password");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * File bytes pushed to peers so far, headers not included.
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public void start() {
+        running = true;
+        selectorThread = new Thread(this::runLoop, "transfer-server");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        System.out.println("Transfer server started on " + serverChannel.socket().getInetAddress().getHostAddress() + ":" + getPort());
+    }
+
+    public void stop() {
+        running = false;
+        passwordWorkers.shutdownNow();
+        selector.wakeup();
+        try {
+            if (selectorThread != null) {
+                selectorThread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing transfer server: " + e.getMessage());
+        }
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                selector.select(sweepIntervalMillis);
+            } catch (IOException e) {
+                System.err.println("Transfer server select failed: " + e.getMessage());
+                return;
+            }
+
+            Runnable completion;
+            while ((completion = completions.poll()) != null) {
+                completion.run();
+            }
+            closeIdleConnections();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        readRequest(key);
+                    } else if (key.isWritable()) {
+                        writeResponse(key);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Transfer connection error: " + e.getMessage());
+                    closeQuietly(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, new Transfer());
+    }
+
+    /**
+     * Closes connections still waiting for their request line after the timeout.
+     * Transfers that are hashing a password or sending are left alone.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < sweepIntervalMillis) {
+            return;
+        }
+        lastSweep = now;
+        long cutoff = now - requestTimeoutMillis;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Transfer
+                    && !((Transfer) key.attachment()).requested
+                    && ((Transfer) key.attachment()).acceptedAt < cutoff) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private void readRequest(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Transfer transfer = (Transfer) key.attachment();
+
+        if (client.read(transfer.request) == -1) {
+            closeQuietly(key);
+            return;
+        }
+
+        String line = transfer.requestLine();
+        if (line == null) {
+            if (!transfer.request.hasRemaining()) {
+                transfer.requested = true;
+                transfer.fail("Request line too long");
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+
+        transfer.requested = true;
+        open(key, transfer, line);
+    }
+
+    private void open(SelectionKey key, Transfer transfer, String line) throws IOException {
+        String[] tokens = line.trim().split(" ", 2);
+        int code;
+        try {
+            code = Integer.parseInt(tokens[0]);
+        } catch (NumberFormatException e) {
+            transfer.fail("Invalid share code");
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        FileSharer.FileInfo fileInfo = fileSharer.getFileInfo(code);
+        if (fileInfo == null) {
+            transfer.fail("No file associated with code " + code);
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        String password = tokens.length > 1 ? tokens[1] : null;
+        if (!fileInfo.hasPassword()) {
+            open(transfer, code, fileInfo, fileSharer.checkPassword(code, password, peer(key)));
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        // Nothing to select until the hash is done
+        key.interestOps(0);
+        try {
+            passwordWorkers.execute(() -> {
+                FileSharer.PasswordCheck check = fileSharer.checkPassword(code, password, peer(key));
+                completions.add(() -> {
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    try {
+                        open(transfer, code, fileInfo, check);
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    } catch (IOException e) {
+                        System.err.println("Transfer connection error: " + e.getMessage());
+                        closeQuietly(key);
+                    }
+                });
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(key);
+        }
+    }
+
+    private void open(Transfer transfer, int code, FileSharer.FileInfo fileInfo, FileSharer.PasswordCheck check) throws IOException {
+        if (check == FileSharer.PasswordCheck.THROTTLED) {
+            transfer.fail("Too many password attempts, try again later");
+            return;
+        }
+        if (check != FileSharer.PasswordCheck.GRANTED) {
+            transfer.fail("Invalid or missing password");
+            return;
+        }
+
+        if (fileInfo.isBundle()) {
+            transfer.fail("Bundles can only be downloaded over HTTP");
+            return;
+        }
+
+        // The selector thread can't wait for the storage backend, the client retries once it's fetched
+        BlobStore.Blob blob = fileInfo.getBlob();
+        if (blob != null && !blob.isLocal()) {
+            blob.prefetch();
+            transfer.fail("File is being fetched from storage, try again shortly");
+            return;
+        }
+
+        File file = new File(fileInfo.getFilePath());
+        if (!file.exists()) {
+            transfer.fail("File no longer available");
+            return;
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        // Ended when the connection closes, see closeQuietly
+        if (!fileSharer.beginTransfer(fileInfo)) {
+            channel.close();
+            transfer.fail("No file associated with code " + code);
+            return;
+        }
+        transfer.code = code;
+        transfer.fileInfo = fileInfo;
+        transfer.file = channel;
+        transfer.remaining = transfer.file.size();
+        transfer.header = ByteBuffer.wrap(("Filename: " + fileInfo.getFilename() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static InetAddress peer(SelectionKey key) {
+        return ((SocketChannel) key.channel()).socket().getInetAddress();
+    }
+
+    private void writeResponse(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Transfer transfer = (Transfer) key.attachment();
+
+        if (transfer.header.hasRemaining()) {
+            client.write(transfer.header);
+            if (transfer.header.hasRemaining()) {
+                return;
+            }
+        }
+
+        while (transfer.remaining > 0) {
+            long sent = transfer.file.transferTo(transfer.position, transfer.remaining, client);
+            if (sent == 0) {
+                // Socket buffer is full, wait for the next writable event
+                return;
+            }
+            transfer.position += sent;
+            transfer.remaining -= sent;
+            bytesSent.add(sent);
+        }
+
+        if (transfer.fileInfo != null) {
+            fileSharer.recordDownload(transfer.code, transfer.fileInfo);
+        }
+        closeQuietly(key);
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        key.cancel();
+        Object attachment = key.attachment();
+        if (attachment instanceof Transfer && ((Transfer) attachment).fileInfo != null) {
+            Transfer transfer = (Transfer) attachment;
+            fileSharer.endTransfer(transfer.fileInfo);
+            transfer.fileInfo = null;
+        }
+        try {
+            if (attachment instanceof Transfer && ((Transfer) attachment).file != null) {
+                ((Transfer) attachment).file.close();
+            }
+            if (key.channel() != serverChannel) {
+                key.channel().close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing transfer connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Per-connection state, only touched by the selector thread.
+     */
+    private static class Transfer {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LINE);
+        final long acceptedAt = System.currentTimeMillis();
+        // Whether the request line is complete, or rejected for being too long
+        boolean requested;
+        ByteBuffer header;
+        int code;
+        FileSharer.FileInfo fileInfo;
+        FileChannel file;
+        long position;
+        long remaining;
+
+        String requestLine() {
+            for (int i = 0; i < request.position(); i++) {
+                if (request.get(i) == '\n') {
+                    return new String(request.array(), 0, i, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        void fail(String message) {
+            header = ByteBuffer.wrap(("Error: " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
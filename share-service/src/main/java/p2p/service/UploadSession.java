@@ -0,0 +1,255 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import p2p.utils.BufferPool;
+import p2p.utils.PasswordHash;
+
+/**
+ * A chunked upload in progress.
+ *
+ * The target file is preallocated to its final size when the session is created and
+ * every chunk is written at its own offset with positional FileChannel writes, so chunks
+ * can arrive in any order and several of them can be written at the same time.
+ * A bitmap records which chunks are complete.
+ *
+ * Chunk writes share a read lock and committing takes the write lock, so a commit
+ * never starts while a chunk is half written and no chunk is accepted once it has.
+ */
+public class UploadSession {
+
+    private final String id;
+    private final String filename;
+    private final PasswordHash password;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final File file;
+    private final FileChannel channel;
+    private final BitSet received;
+    // Chunks written at least once and the bytes still to come, guarded by received.
+    // Disk space is only used up the first time a chunk of the sparse file is written
+    private final BitSet filled;
+    private long unfilledBytes;
+    private final ReentrantReadWriteLock writes = new ReentrantReadWriteLock();
+    // Set under the write lock, or by abort() which doesn't wait for writes in progress
+    private volatile boolean closed;
+    private volatile long lastActivity;
+
+    UploadSession(String id, String filename, PasswordHash password, long size, int chunkSize, File file) throws IOException {
+        this.id = id;
+        this.filename = filename;
+        this.password = password;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.file = file;
+        this.received = new BitSet(chunkCount);
+        this.filled = new BitSet(chunkCount);
+        this.unfilledBytes = size;
+        this.lastActivity = System.currentTimeMillis();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public PasswordHash getPasswordHash() {
+        return password;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Returns the exact number of bytes chunk {@code index} must contain.
+     */
+    public long chunkLength(int index) {
+        long start = (long) index * chunkSize;
+        return Math.min(chunkSize, size - start);
+    }
+
+    /**
+     * Writes one chunk at its offset in the file and marks it as received.
+     *
+     * @return Bytes of the file this write filled for the first time, 0 for a chunk
+     *         written before or once the session ended
+     * @throws IllegalArgumentException if the index is out of range or the body has the wrong length
+     * @throws IllegalStateException if the session is being committed or has ended
+     */
+    public long writeChunk(int index, InputStream body) throws IOException {
+        if (index < 0 || index >= chunkCount) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        if (!writes.readLock().tryLock()) {
+            throw new IllegalStateException("Upload session is being committed");
+        }
+        try {
+            if (closed) {
+                throw new IllegalStateException("Upload session is no longer active");
+            }
+            return write(index, body);
+        } finally {
+            writes.readLock().unlock();
+        }
+    }
+
+    private long write(int index, InputStream body) throws IOException {
+        lastActivity = System.currentTimeMillis();
+
+        long position = (long) index * chunkSize;
+        long expected = chunkLength(index);
+        long written = 0;
+
+        // A chunk being rewritten is incomplete until the new copy is fully on disk
+        synchronized (received) {
+            received.clear(index);
+        }
+
+        byte[] bytes = BufferPool.acquire();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int read;
+            while ((read = body.read(bytes)) != -1) {
+                if (written + read > expected) {
+                    throw new IllegalArgumentException("Chunk " + index + " must be " + expected + " bytes");
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, position + written);
+                }
+            }
+        } finally {
+            BufferPool.release(bytes);
+        }
+        if (written != expected) {
+            throw new IllegalArgumentException("Chunk " + index + " must be " + expected + " bytes, got " + written);
+        }
+
+        lastActivity = System.currentTimeMillis();
+        synchronized (received) {
+            received.set(index);
+            if (filled.get(index) || unfilledBytes < expected) {
+                return 0;
+            }
+            filled.set(index);
+            unfilledBytes -= expected;
+            return expected;
+        }
+    }
+
+    /**
+     * Bytes of the file no chunk has been written to yet. Once taken, writes no longer
+     * report what they fill, so every byte is handed out once.
+     */
+    long takeUnfilledBytes() {
+        synchronized (received) {
+            long unfilled = unfilledBytes;
+            unfilledBytes = 0;
+            return unfilled;
+        }
+    }
+
+    public int receivedCount() {
+        synchronized (received) {
+            return received.cardinality();
+        }
+    }
+
+    public boolean isComplete() {
+        return receivedCount() == chunkCount;
+    }
+
+    /**
+     * Returns a copy of the received-chunk bitmap.
+     */
+    public BitSet receivedChunks() {
+        synchronized (received) {
+            return (BitSet) received.clone();
+        }
+    }
+
+    /**
+     * Stops accepting chunks, unless one is being written right now.
+     *
+     * @return false if a chunk is being written or the session was already closed
+     */
+    boolean close() {
+        if (!writes.writeLock().tryLock()) {
+            return false;
+        }
+        try {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            return true;
+        } finally {
+            writes.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Accepts chunks again after {@link #close}, when the commit turned out to be early.
+     */
+    void reopen() {
+        writes.writeLock().lock();
+        try {
+            closed = false;
+        } finally {
+            writes.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the written chunks to disk and closes the file.
+     */
+    void finish() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    void abort() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing upload session file: " + e.getMessage());
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,177 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+
+import p2p.utils.Checksums;
+import p2p.utils.PasswordHash;
+import p2p.utils.UploadUtils;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Keeps track of chunked upload sessions and turns completed ones into shares.
+ *
+ * A session's file lives in the upload directory with a ".part" suffix until it is
+ * committed. Only then is it hashed, moved into the {@link BlobStore} and shared, so a
+ * share code never points at an incomplete file. Sessions without activity for longer
+ * than the idle timeout are aborted and their files deleted.
+ */
+public class UploadSessionManager {
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    private final FileSharer fileSharer;
+    private final BlobStore blobStore;
+    private final File uploadDir;
+    private final long idleTimeoutMillis;
+    private final long maxSessionBytes = Long.getLong("filetogo.upload.session.max.bytes", 16L * 1024 * 1024 * 1024);
+    private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cleaner;
+    private volatile String idPrefix = "";
+    private volatile LongConsumer onSessionEnd = size -> { };
+
+    public UploadSessionManager(FileSharer fileSharer, BlobStore blobStore, File uploadDir) {
+        this.fileSharer = fileSharer;
+        this.blobStore = blobStore;
+        this.uploadDir = uploadDir;
+        this.idleTimeoutMillis = TimeUnit.MINUTES.toMillis(Long.getLong("filetogo.upload.session.idle.minutes", 60));
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upload-session-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::abortIdleSessions, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Puts a prefix in front of new session IDs, like the cluster node that owns them.
+     */
+    public void setIdPrefix(String idPrefix) {
+        this.idPrefix = idPrefix;
+    }
+
+    /**
+     * Called with the bytes of a session no chunk filled yet once it is committed,
+     * aborted or expired, like to give back disk space reserved for it. What chunks
+     * filled is reported by {@link UploadSession#writeChunk}.
+     */
+    public void setOnSessionEnd(LongConsumer onSessionEnd) {
+        this.onSessionEnd = onSessionEnd;
+    }
+
+    /**
+     * Creates a session and preallocates its file. The password is only kept hashed
+     * while the chunks come in.
+     *
+     * @throws IllegalArgumentException if the size or chunk size is invalid
+     */
+    public UploadSession create(String filename, long size, int chunkSize, String password) throws IOException {
+        validate(size, chunkSize);
+
+        String baseName = UploadUtils.sanitizeFileName(filename);
+        String id = idPrefix + UUID.randomUUID();
+        File file = new File(uploadDir, id + "_" + baseName + PART_SUFFIX);
+        UploadSession session = new UploadSession(id, baseName, PasswordHash.create(password), size, chunkSize, file);
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * Checks the size and chunk size of a session before anything is set aside for it.
+     *
+     * @throws IllegalArgumentException if the size or chunk size is invalid
+     */
+    public void validate(long size, int chunkSize) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        if (size > maxSessionBytes) {
+            throw new IllegalArgumentException("size must be at most " + maxSessionBytes);
+        }
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        if ((size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks, use a larger chunkSize");
+        }
+    }
+
+    public UploadSession get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Finishes a complete session and offers its file for download.
+     *
+     * @return The share code of the committed file
+     * @throws IllegalStateException if chunks are missing or being written, or the session is already committed
+     */
+    public int commit(UploadSession session) throws IOException {
+        // From here on chunks are turned away, so the file can't change under the checksums
+        if (!session.close()) {
+            throw new IllegalStateException("Chunks are still being written, or the session is already being committed");
+        }
+        int missing = session.getChunkCount() - session.receivedCount();
+        if (missing > 0) {
+            session.reopen();
+            throw new IllegalStateException(missing + " chunks are still missing");
+        }
+        if (!sessions.remove(session.getId(), session)) {
+            throw new IllegalStateException("Upload session is no longer active");
+        }
+
+        // Chunks arrive out of order, so unlike a streamed upload the checksums need their own pass
+        BlobStore.Blob blob;
+        try {
+            session.finish();
+            Checksums checksums = Checksums.of(session.getFile());
+            blob = blobStore.store(session.getFile(), checksums.sha256(), checksums.crc32c());
+        } catch (IOException e) {
+            session.abort();
+            throw e;
+        } finally {
+            onSessionEnd.accept(session.takeUnfilledBytes());
+        }
+        return fileSharer.offerBlob(blob, session.getFilename(), session.getPasswordHash());
+    }
+
+    public boolean abort(String id) {
+        UploadSession session = sessions.remove(id);
+        if (session == null) {
+            return false;
+        }
+        session.abort();
+        onSessionEnd.accept(session.takeUnfilledBytes());
+        return true;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public void shutdown() {
+        cleaner.shutdownNow();
+        for (String id : sessions.keySet()) {
+            abort(id);
+        }
+    }
+
+    void abortIdleSessions() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (UploadSession session : sessions.values()) {
+            if (session.getLastActivity() < cutoff && sessions.remove(session.getId(), session)) {
+                System.out.println("Aborting idle upload session " + session.getId());
+                session.abort();
+                onSessionEnd.accept(session.takeUnfilledBytes());
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package p2p.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Keeps every object as a file named after its key in one directory, which is how shares
+ * were always stored. Parts are copied into a hidden temporary file that is renamed into
+ * place when the upload completes.
+ */
+public class LocalStorageBackend implements StorageBackend {
+    private static final long PART_SIZE = 64L * 1024 * 1024;
+
+    private final File dir;
+
+    public LocalStorageBackend(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+    }
+
+    @Override
+    public File localFile(String key) {
+        return new File(dir, key);
+    }
+
+    @Override
+    public MultipartUpload startUpload(String key) throws IOException {
+        File target = localFile(key);
+        target.getParentFile().mkdirs();
+        File temp = new File(target.getParentFile(), "." + target.getName() + "." + UUID.randomUUID() + ".upload");
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new MultipartUpload() {
+            @Override
+            public void putPart(int partNumber, File file, long offset, long length) throws IOException {
+                // Parts are cut at the part size, so a part's place in the object follows from its number
+                long position = (partNumber - 1) * PART_SIZE;
+                try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    source.position(offset);
+                    long copied = 0;
+                    while (copied < length) {
+                        // Positional, so parts can be copied from several threads
+                        long n = channel.transferFrom(source, position + copied, length - copied);
+                        if (n <= 0) {
+                            throw new IOException("Part " + partNumber + " ends before its length");
+                        }
+                        copied += n;
+                    }
+                }
+            }
+
+            @Override
+            public void complete() throws IOException {
+                channel.close();
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Deleted below either way
+                }
+                temp.delete();
+            }
+        };
+    }
+
+    @Override
+    public long partSize() {
+        return PART_SIZE;
+    }
+
+    @Override
+    public int uploadParallelism() {
+        return 1;
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(localFile(key).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("No object " + key);
+        }
+        channel.position(offset);
+        return new RegionInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public long stat(String key) {
+        File file = localFile(key);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public void delete(String key) {
+        localFile(key).delete();
+    }
+
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        File target = localFile(targetKey);
+        target.getParentFile().mkdirs();
+        Files.copy(localFile(sourceKey).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Ends after a number of bytes of the underlying stream.
+     */
+    static class RegionInputStream extends java.io.FilterInputStream {
+        private long remaining;
+
+        RegionInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package p2p.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends a local file to a backend as a multipart upload, cutting off parts and sending
+ * them concurrently while the file is still being written.
+ *
+ * By the time the last byte of an upload has arrived, all but the last part are usually
+ * in the backend already, so storing a file costs little more than receiving it. Parts
+ * are read back from the local file rather than buffered, which keeps memory flat no
+ * matter how many uploads are in flight.
+ */
+public class PartUploader {
+    // Part uploads block on the network, not the CPU
+    private static final ExecutorService PARTS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final StorageBackend.MultipartUpload upload;
+    private final File file;
+    private final long partSize;
+    private final Semaphore slots;
+    private final List<Future<?>> parts = new ArrayList<>();
+    private long submitted;
+    private int partCount;
+
+    public PartUploader(StorageBackend backend, String key, File file) throws IOException {
+        this.upload = backend.startUpload(key);
+        this.file = file;
+        this.partSize = backend.partSize();
+        this.slots = new Semaphore(backend.uploadParallelism());
+    }
+
+    /**
+     * Uploads a complete file.
+     */
+    public static void upload(StorageBackend backend, String key, File file) throws IOException {
+        PartUploader uploader = new PartUploader(backend, key, file);
+        uploader.finish(file.length());
+    }
+
+    /**
+     * Opens the file for writing, every part that fills up is sent right away.
+     */
+    public OutputStream outputStream() throws FileNotFoundException {
+        return new FileOutputStream(file) {
+            private long written;
+
+            @Override
+            public void write(int b) throws IOException {
+                super.write(b);
+                written++;
+                submitFullParts(written);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                written += len;
+                submitFullParts(written);
+            }
+        };
+    }
+
+    /**
+     * Sends the rest of the file and completes the upload once every part is in.
+     * The upload is aborted if a part fails.
+     *
+     * @param length Final length of the file
+     */
+    public void finish(long length) throws IOException {
+        submitFullParts(length);
+        // An empty file is still one (empty) part
+        if (length > submitted || partCount == 0) {
+            submit(length - submitted);
+        }
+        try {
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } catch (ExecutionException e) {
+            abort();
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading parts");
+        }
+        try {
+            upload.complete();
+        } catch (IOException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops sending parts and drops the ones already sent.
+     */
+    public void abort() {
+        for (Future<?> part : parts) {
+            part.cancel(true);
+        }
+        upload.abort();
+    }
+
+    private void submitFullParts(long length) {
+        while (length - submitted >= partSize) {
+            submit(partSize);
+        }
+    }
+
+    private void submit(long length) {
+        long offset = submitted;
+        int partNumber = ++partCount;
+        submitted += length;
+        parts.add(PARTS.submit(() -> {
+            slots.acquire();
+            try {
+                upload.putPart(partNumber, file, offset, length);
+            } finally {
+                slots.release();
+            }
+            return null;
+        }));
+    }
+}
@@ -0,0 +1,319 @@
+package p2p.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps objects in a bucket of an S3-compatible object store (AWS S3, MinIO, Ceph and
+ * the like), spoken to over plain HTTP with Signature Version 4.
+ *
+ * Buckets are addressed path-style (endpoint/bucket/key), which every S3-compatible
+ * store accepts. Requests that can be repeated safely are retried on connection errors
+ * and 5xx answers, with a short backoff.
+ */
+public class S3StorageBackend implements StorageBackend {
+    static final long DEFAULT_PART_SIZE = 16L * 1024 * 1024;
+    // S3 refuses parts below 5 MiB (except the last) and single copies above 5 GiB
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final int ATTEMPTS = 3;
+
+    private final HttpClient client;
+    private final URI endpoint;
+    private final String bucket;
+    private final String prefix;
+    private final long partSize;
+    private final int uploadParallelism;
+    private final SigV4Signer signer;
+
+    /**
+     * @param endpoint Like http://127.0.0.1:9000 or https://s3.eu-central-1.amazonaws.com
+     * @param prefix Put in front of every key, may be empty
+     */
+    public S3StorageBackend(URI endpoint, String bucket, String region, String accessKey, String secretKey,
+            String prefix, long partSize, int uploadParallelism) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("S3 parts must be at least " + MIN_PART_SIZE + " bytes");
+        }
+        this.endpoint = endpoint;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.partSize = partSize;
+        this.uploadParallelism = Math.max(1, uploadParallelism);
+        this.signer = new SigV4Signer(region, accessKey, secretKey);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    public long partSize() {
+        return partSize;
+    }
+
+    @Override
+    public int uploadParallelism() {
+        return uploadParallelism;
+    }
+
+    // Not retried: if only the response got lost, a retry would start a second upload nobody aborts
+    @Override
+    public MultipartUpload startUpload(String key) throws IOException {
+        HttpResponse<String> response = send("POST", key, "uploads", Map.of(), HttpRequest.BodyPublishers.noBody(), false);
+        String uploadId = xmlValue(response.body(), "UploadId");
+        if (uploadId == null) {
+            throw new IOException("S3 didn't return an upload id for " + key);
+        }
+        String uploadQuery = "uploadId=" + SigV4Signer.encode(uploadId, false);
+        // ETags by part number, the completion has to list them in order
+        ConcurrentSkipListMap<Integer, String> etags = new ConcurrentSkipListMap<>();
+
+        return new MultipartUpload() {
+            @Override
+            public void putPart(int partNumber, File file, long offset, long length) throws IOException {
+                HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+                        HttpRequest.BodyPublishers.ofInputStream(() -> openRegion(file, offset, length)), length);
+                HttpResponse<String> response = send("PUT", key, "partNumber=" + partNumber + "&" + uploadQuery,
+                        Map.of(), body, true);
+                String etag = response.headers().firstValue("ETag").orElse(null);
+                if (etag == null) {
+                    throw new IOException("S3 didn't return an ETag for part " + partNumber + " of " + key);
+                }
+                etags.put(partNumber, etag);
+            }
+
+            @Override
+            public void complete() throws IOException {
+                StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+                for (Map.Entry<Integer, String> part : etags.entrySet()) {
+                    xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><ETag>")
+                            .append(part.getValue().replace("\"", "&quot;")).append("</ETag></Part>");
+                }
+                xml.append("</CompleteMultipartUpload>");
+                HttpResponse<String> response = send("POST", key, uploadQuery, Map.of("content-type", "application/xml"),
+                        HttpRequest.BodyPublishers.ofString(xml.toString()), false);
+                // Completion can fail after a 200 was sent, the error is then in the body
+                checkBody(response, "complete upload of " + key);
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    send("DELETE", key, uploadQuery, Map.of(), HttpRequest.BodyPublishers.noBody(), true);
+                } catch (IOException e) {
+                    // A bucket lifecycle rule cleans up uploads nobody completes
+                    System.err.println("Could not abort S3 upload of " + key + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        HttpRequest request = signed("GET", key, null,
+                Map.of("range", "bytes=" + offset + "-" + (offset + length - 1)), HttpRequest.BodyPublishers.noBody());
+        for (int attempt = 1; ; attempt++) {
+            HttpResponse<InputStream> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                backOff(attempt);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + key);
+            }
+            int status = response.statusCode();
+            if (status == 200 || status == 206) {
+                return response.body();
+            }
+            String body = new String(response.body().readAllBytes(), StandardCharsets.UTF_8);
+            if (status == 404) {
+                throw new FileNotFoundException("No object " + key);
+            }
+            if (status < 500 || attempt == ATTEMPTS) {
+                throw failure("GET " + key, status, body);
+            }
+            backOff(attempt);
+        }
+    }
+
+    @Override
+    public long stat(String key) throws IOException {
+        HttpResponse<String> response = send("HEAD", key, null, Map.of(), HttpRequest.BodyPublishers.noBody(), true, 404);
+        if (response.statusCode() == 404) {
+            return -1;
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        send("DELETE", key, null, Map.of(), HttpRequest.BodyPublishers.noBody(), true, 404);
+    }
+
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        long size = stat(sourceKey);
+        if (size < 0) {
+            throw new FileNotFoundException("No object " + sourceKey);
+        }
+        String source = "/" + bucket + "/" + SigV4Signer.encode(prefix + sourceKey, true);
+        if (size <= MAX_COPY_SIZE) {
+            HttpResponse<String> response = send("PUT", targetKey, null, Map.of("x-amz-copy-source", source),
+                    HttpRequest.BodyPublishers.noBody(), true);
+            checkBody(response, "copy " + sourceKey + " to " + targetKey);
+            return;
+        }
+
+        // Larger objects are copied range by range as the parts of a new upload, started without retries like in startUpload
+        HttpResponse<String> started = send("POST", targetKey, "uploads", Map.of(), HttpRequest.BodyPublishers.noBody(), false);
+        String uploadId = xmlValue(started.body(), "UploadId");
+        if (uploadId == null) {
+            throw new IOException("S3 didn't return an upload id for " + targetKey);
+        }
+        String uploadQuery = "uploadId=" + SigV4Signer.encode(uploadId, false);
+        try {
+            StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+            int partNumber = 0;
+            for (long offset = 0; offset < size; offset += partSize) {
+                partNumber++;
+                long end = Math.min(offset + partSize, size) - 1;
+                HttpResponse<String> part = send("PUT", targetKey, "partNumber=" + partNumber + "&" + uploadQuery,
+                        Map.of("x-amz-copy-source", source, "x-amz-copy-source-range", "bytes=" + offset + "-" + end),
+                        HttpRequest.BodyPublishers.noBody(), true);
+                checkBody(part, "copy part " + partNumber + " of " + sourceKey);
+                xml.append("<Part><PartNumber>").append(partNumber).append("</PartNumber><ETag>")
+                        .append(xmlValue(part.body(), "ETag")).append("</ETag></Part>");
+            }
+            xml.append("</CompleteMultipartUpload>");
+            HttpResponse<String> response = send("POST", targetKey, uploadQuery, Map.of("content-type", "application/xml"),
+                    HttpRequest.BodyPublishers.ofString(xml.toString()), false);
+            checkBody(response, "complete copy of " + sourceKey);
+        } catch (IOException | RuntimeException e) {
+            send("DELETE", targetKey, uploadQuery, Map.of(), HttpRequest.BodyPublishers.noBody(), true);
+            throw e;
+        }
+    }
+
+    private HttpResponse<String> send(String method, String key, String query, Map<String, String> headers,
+            HttpRequest.BodyPublisher body, boolean retry, int... allowedStatuses) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            HttpRequest request = signed(method, key, query, headers, body);
+            HttpResponse<String> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                if (!retry || attempt == ATTEMPTS) {
+                    throw e;
+                }
+                backOff(attempt);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during " + method + " " + key);
+            }
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                return response;
+            }
+            for (int allowed : allowedStatuses) {
+                if (status == allowed) {
+                    return response;
+                }
+            }
+            if (status < 500 || !retry || attempt == ATTEMPTS) {
+                throw failure(method + " " + key, status, response.body());
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Builds a request for an object, signed for the current time.
+     *
+     * @param query Already encoded query string, or null
+     */
+    private HttpRequest signed(String method, String key, String query, Map<String, String> headers,
+            HttpRequest.BodyPublisher body) {
+        String path = endpoint.getRawPath().replaceAll("/$", "") + "/" + bucket + "/" + SigV4Signer.encode(prefix + key, true);
+        URI uri = URI.create(endpoint.getScheme() + "://" + endpoint.getRawAuthority() + path
+                + (query != null ? "?" + query : ""));
+        Map<String, String> all = new TreeMap<>(headers);
+        all.putAll(signer.sign(method, uri, headers, Instant.now()));
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .method(method, body);
+        all.forEach(builder::header);
+        return builder.build();
+    }
+
+    private static InputStream openRegion(File file, long offset, long length) {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            channel.position(offset);
+            return new LocalStorageBackend.RegionInputStream(Channels.newInputStream(channel), length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void checkBody(HttpResponse<String> response, String what) throws IOException {
+        if (response.body().contains("<Error>")) {
+            throw failure(what, response.statusCode(), response.body());
+        }
+    }
+
+    private static IOException failure(String what, int status, String body) {
+        String code = xmlValue(body, "Code");
+        String message = xmlValue(body, "Message");
+        return new IOException("S3 " + what + " failed with status " + status
+                + (code != null ? ": " + code : "") + (message != null ? " (" + message + ")" : ""));
+    }
+
+    /**
+     * Text of the first element with the given name, which is all the answers we read need.
+     */
+    private static String xmlValue(String xml, String element) {
+        if (xml == null) {
+            return null;
+        }
+        int start = xml.indexOf("<" + element + ">");
+        int end = xml.indexOf("</" + element + ">", start);
+        if (start < 0 || end < 0) {
+            return null;
+        }
+        return xml.substring(start + element.length() + 2, end).replace("&quot;", "\"").replace("&amp;", "&");
+    }
+
+    private static void backOff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(100L << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrying");
+        }
+    }
+}
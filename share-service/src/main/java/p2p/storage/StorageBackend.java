@@ -0,0 +1,117 @@
+package p2p.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Where stored content lives for good, addressed by key.
+ *
+ * Objects are written in numbered parts that may be sent concurrently and only become
+ * visible once the upload completes, read back by byte range, and deleted by key. The
+ * local disk backend keeps objects as files in one directory, the S3 backend keeps them
+ * in a bucket of any S3-compatible object store, so capacity isn't bound to one node's
+ * disk and content survives the node.
+ */
+public interface StorageBackend {
+
+    /**
+     * Starts writing an object. Nothing is visible under the key until
+     * {@link MultipartUpload#complete()}.
+     */
+    MultipartUpload startUpload(String key) throws IOException;
+
+    /**
+     * Size uploads should cut their parts at, only the last part may be smaller.
+     */
+    long partSize();
+
+    /**
+     * How many parts of one upload should be in flight at the same time.
+     */
+    int uploadParallelism();
+
+    /**
+     * Reads part of an object.
+     *
+     * @throws java.io.FileNotFoundException if there is no object with this key
+     */
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    /**
+     * @return Size of the object, or -1 if there is none with this key
+     */
+    long stat(String key) throws IOException;
+
+    /**
+     * Deletes an object, deleting one that doesn't exist is not an error.
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Copies an object to another key without sending its content through this node.
+     */
+    void copy(String sourceKey, String targetKey) throws IOException;
+
+    /**
+     * Returns the object as a local file for backends that keep objects as files, which
+     * the store then moves content into and serves without copying.
+     *
+     * @return The file, or null if objects aren't local files
+     */
+    default File localFile(String key) {
+        return null;
+    }
+
+    interface MultipartUpload {
+        /**
+         * Sends one part, read from a region of a local file. Parts may be sent in any
+         * order and from several threads.
+         *
+         * @param partNumber 1-based position of the part in the object
+         */
+        void putPart(int partNumber, File file, long offset, long length) throws IOException;
+
+        /**
+         * Makes the object visible from the parts sent so far.
+         */
+        void complete() throws IOException;
+
+        /**
+         * Drops the parts sent so far, never throws.
+         */
+        void abort();
+    }
+
+    /**
+     * Creates the backend selected with -Dfiletogo.storage, local (the default) or s3.
+     *
+     * @param localDir Directory the local backend keeps its objects in
+     */
+    static StorageBackend fromSystemProperties(File localDir) {
+        String storage = System.getProperty("filetogo.storage", "local");
+        if (storage.equalsIgnoreCase("local")) {
+            return new LocalStorageBackend(localDir);
+        }
+        if (!storage.equalsIgnoreCase("s3")) {
+            throw new IllegalArgumentException("Unknown storage backend: " + storage);
+        }
+        String endpoint = System.getProperty("filetogo.s3.endpoint");
+        String bucket = System.getProperty("filetogo.s3.bucket");
+        if (endpoint == null || bucket == null) {
+            throw new IllegalArgumentException("-Dfiletogo.storage=s3 needs -Dfiletogo.s3.endpoint and -Dfiletogo.s3.bucket");
+        }
+        String accessKey = System.getProperty("filetogo.s3.access.key", System.getenv("AWS_ACCESS_KEY_ID"));
+        String secretKey = System.getProperty("filetogo.s3.secret.key", System.getenv("AWS_SECRET_ACCESS_KEY"));
+        if (accessKey == null || secretKey == null) {
+            throw new IllegalArgumentException("-Dfiletogo.storage=s3 needs credentials, -Dfiletogo.s3.access.key and "
+                    + "-Dfiletogo.s3.secret.key or AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY");
+        }
+        return new S3StorageBackend(URI.create(endpoint), bucket,
+                System.getProperty("filetogo.s3.region", "us-east-1"), accessKey, secretKey,
+                System.getProperty("filetogo.s3.prefix", ""),
+                Long.getLong("filetogo.s3.part.bytes", S3StorageBackend.DEFAULT_PART_SIZE),
+                Integer.getInteger("filetogo.s3.upload.parallelism", 4));
+    }
+}
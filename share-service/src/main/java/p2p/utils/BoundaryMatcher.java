@@ -0,0 +1,57 @@
+package p2p.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level substring search using the Boyer-Moore-Horspool algorithm.
+ *
+ * The skip table is computed once per pattern, so a matcher built for a multipart
+ * boundary can be reused for every scan of the same request. Searches work on raw
+ * bytes and return offsets into the caller's array, nothing is decoded or copied.
+ */
+public final class BoundaryMatcher {
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+
+    public BoundaryMatcher(byte[] pattern) {
+        if (pattern == null || pattern.length == 0) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+
+        int last = pattern.length - 1;
+        java.util.Arrays.fill(skip, pattern.length);
+        for (int i = 0; i < last; i++) {
+            skip[pattern[i] & 0xff] = last - i;
+        }
+    }
+
+    public BoundaryMatcher(String pattern) {
+        this(pattern.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Finds the first occurrence of the pattern that lies completely inside data[from, to).
+     *
+     * @return offset of the match in data, or -1 if there is none
+     */
+    public int indexOf(byte[] data, int from, int to) {
+        int last = pattern.length - 1;
+        int i = from;
+        while (i <= to - pattern.length) {
+            int j = last;
+            while (data[i + j] == pattern[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += skip[data[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+}
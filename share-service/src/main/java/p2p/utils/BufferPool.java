@@ -0,0 +1,135 @@
+package p2p.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copy buffers shared by every transfer path, so a download or upload doesn't allocate
+ * a fresh buffer per request and large transfers don't keep the collector busy.
+ *
+ * The buffers are heap arrays rather than direct buffers: the HTTP server's streams only
+ * take byte arrays, so a direct buffer would cost an extra copy on every write. They are
+ * sized for large sequential reads and writes (filetogo.buffer.bytes, 256 KiB by default)
+ * and at most filetogo.buffer.pool.max of them are kept while idle. When the pool is
+ * empty a new buffer is allocated, and a buffer released into a full pool is dropped.
+ */
+public final class BufferPool {
+    public static final int BUFFER_BYTES = Integer.getInteger("filetogo.buffer.bytes", 256 * 1024);
+    private static final int MAX_POOLED = Integer.getInteger("filetogo.buffer.pool.max", 64);
+
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(Math.max(1, MAX_POOLED));
+    private static final LongAdder ALLOCATED = new LongAdder();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a buffer of {@link #BUFFER_BYTES}, give it back with {@link #release}.
+     */
+    public static byte[] acquire() {
+        byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            ALLOCATED.increment();
+            buffer = new byte[BUFFER_BYTES];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must not be used afterwards.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer != null && buffer.length == BUFFER_BYTES) {
+            POOL.offer(buffer);
+        }
+    }
+
+    /**
+     * Buffers allocated because the pool was empty.
+     */
+    public static long getAllocated() {
+        return ALLOCATED.sum();
+    }
+
+    /**
+     * Buffers waiting in the pool.
+     */
+    public static int getPooled() {
+        return POOL.size();
+    }
+
+    /**
+     * Copies a stream to its end.
+     *
+     * @return Bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Copies part of a file, without going through a channel on the output side. Writes
+     * to Channels.newChannel streams hold a monitor, which pins a virtual thread when the
+     * write blocks, like for a shaped download.
+     *
+     * @throws EOFException if the file ends before count bytes were read
+     */
+    public static void copy(FileChannel source, long position, long count, OutputStream out) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long end = position + count;
+            while (position < end) {
+                wrapped.clear().limit((int) Math.min(buffer.length, end - position));
+                int read = source.read(wrapped, position);
+                if (read < 0) {
+                    throw new EOFException("File got shorter while sending it");
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Copies part of a buffer, like a mapped file held in the cache. Reads are absolute,
+     * so the buffer can be shared by concurrent transfers.
+     */
+    public static void copy(ByteBuffer source, int position, int count, OutputStream out) throws IOException {
+        if (source.hasArray()) {
+            out.write(source.array(), source.arrayOffset() + position, count);
+            return;
+        }
+        byte[] buffer = acquire();
+        try {
+            int end = position + count;
+            while (position < end) {
+                int n = Math.min(buffer.length, end - position);
+                source.get(position, buffer, 0, n);
+                out.write(buffer, 0, n);
+                position += n;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package p2p.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * SHA-256 and CRC32C of content, updated as it is written so no second pass over the
+ * file is needed. Both run on hardware instructions on current CPUs, the SHA-256 is what
+ * clients verify against, the CRC32C is a cheap check for tools that only want that.
+ */
+public class Checksums {
+    /** Stands for a CRC32C that isn't known, like for shares stored by older versions. */
+    public static final long UNKNOWN_CRC32C = -1;
+
+    private final MessageDigest sha256 = HashUtils.newSha256();
+    private final CRC32C crc32c = new CRC32C();
+    private String sha256Hex;
+
+    public void update(byte[] b, int off, int len) {
+        sha256.update(b, off, len);
+        crc32c.update(b, off, len);
+    }
+
+    /**
+     * Finishes the SHA-256, no more updates may follow.
+     *
+     * @return Lowercase hex SHA-256
+     */
+    public String sha256() {
+        if (sha256Hex == null) {
+            sha256Hex = HexFormat.of().formatHex(sha256.digest());
+        }
+        return sha256Hex;
+    }
+
+    public long crc32c() {
+        return crc32c.getValue();
+    }
+
+    /**
+     * Reads a whole file, for content that wasn't written in order.
+     */
+    public static Checksums of(File file) throws IOException {
+        Checksums checksums = new Checksums();
+        byte[] buffer = BufferPool.acquire();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checksums.update(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return checksums;
+    }
+
+    /**
+     * Eight hex digits, the way the CRC32C appears in JSON responses.
+     */
+    public static String crc32cHex(long crc32c) {
+        return HexFormat.of().toHexDigits((int) crc32c);
+    }
+
+    /**
+     * Base64 of the hex SHA-256, the way HTTP digest fields carry it.
+     */
+    public static String sha256Base64(String sha256Hex) {
+        return Base64.getEncoder().encodeToString(HexFormat.of().parseHex(sha256Hex));
+    }
+
+    /**
+     * Base64 of the big-endian CRC32C, the way HTTP digest fields carry it.
+     */
+    public static String crc32cBase64(long crc32c) {
+        byte[] bytes = {(byte) (crc32c >>> 24), (byte) (crc32c >>> 16), (byte) (crc32c >>> 8), (byte) crc32c};
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,169 @@
+package p2p.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ContentEncoding {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Leading bytes of formats that are compressed already. */
+    private static final byte[][] COMPRESSED_MAGIC = {
+            {0x1f, (byte) 0x8b},                                  // gzip
+            {'P', 'K', 0x03, 0x04},                               // zip, jar, docx, apk
+            {(byte) 0x89, 'P', 'N', 'G'},                         // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},              // jpeg
+            {'G', 'I', 'F', '8'},                                 // gif
+            {'7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c},     // 7z
+            {'R', 'a', 'r', '!'},                                 // rar
+            {(byte) 0xfd, '7', 'z', 'X', 'Z', 0x00},              // xz
+            {'B', 'Z', 'h'},                                      // bzip2
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},               // zstd
+            {'O', 'g', 'g', 'S'},                                 // ogg
+            {'f', 'L', 'a', 'C'},                                 // flac
+            {'I', 'D', '3'},                                      // mp3
+    };
+
+    /**
+     * Picks gzip or deflate from an Accept-Encoding header.
+     *
+     * @return The encoding with the highest q-value (gzip on a tie), or null if neither is acceptable
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String token : acceptEncoding.split(",")) {
+            String[] params = token.trim().split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        // An explicit entry wins over the wildcard
+        gzip = gzip >= 0 ? gzip : Math.max(any, 0);
+        deflate = deflate >= 0 ? deflate : Math.max(any, 0);
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Returns true for media types whose content is compressed already.
+     */
+    public static boolean isCompressedType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/")) {
+            return !type.equals("image/svg+xml") && !type.equals("image/bmp");
+        }
+        return type.startsWith("video/")
+                || type.startsWith("audio/")
+                || type.equals("application/zip")
+                || type.equals("application/gzip")
+                || type.equals("application/x-gzip")
+                || type.equals("application/x-7z-compressed")
+                || type.equals("application/vnd.rar")
+                || type.equals("application/x-rar-compressed")
+                || type.equals("application/x-bzip2")
+                || type.equals("application/x-xz")
+                || type.equals("application/zstd")
+                || type.equals("application/java-archive");
+    }
+
+    /**
+     * Returns true if the first bytes of a file identify a compressed format.
+     */
+    public static boolean hasCompressedMagic(byte[] head, int length) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(head, length, magic, 0)) {
+                return true;
+            }
+        }
+        // ISO media (mp4, mov, heic) and RIFF containers (webp, avi) are matched at an offset
+        return startsWith(head, length, "ftyp".getBytes(StandardCharsets.US_ASCII), 4)
+                || (startsWith(head, length, "RIFF".getBytes(StandardCharsets.US_ASCII), 0)
+                        && !startsWith(head, length, "WAVE".getBytes(StandardCharsets.US_ASCII), 8));
+    }
+
+    /**
+     * Wraps a stream in a compressor for the given encoding. Closing the result writes
+     * the trailer and frees the compressor, but leaves the underlying stream open.
+     */
+    public static OutputStream compress(OutputStream out, String encoding) throws IOException {
+        OutputStream target = new NonClosingOutputStream(out);
+        if (encoding.equals(GZIP)) {
+            return new GZIPOutputStream(target, BUFFER_SIZE);
+        }
+        if (encoding.equals(DEFLATE)) {
+            // HTTP "deflate" is the zlib format, which is what Deflater writes by default
+            return new DeflaterOutputStream(target, new Deflater(), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic, int offset) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -41,10 +41,18 @@ public class MultipartFormUtils {
      * @param message Response message
      */
     public static void respond(com.sun.net.httpserver.HttpExchange exchange, int statusCode, String message) {
+        respond(exchange, statusCode, message.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Like {@link #respond(com.sun.net.httpserver.HttpExchange, int, String)}, for bodies
+     * encoded ahead of time.
+     */
+    public static void respond(com.sun.net.httpserver.HttpExchange exchange, int statusCode, byte[] body) {
         try {
-            exchange.sendResponseHeaders(statusCode, message.getBytes().length);
+            exchange.sendResponseHeaders(statusCode, body.length);
             try (java.io.OutputStream os = exchange.getResponseBody()) {
-                os.write(message.getBytes());
+                os.write(body);
             }
         } catch (java.io.IOException e) {
             System.err.println("Error sending response: " + e.getMessage());
@@ -1,9 +1,15 @@
 package p2p.utils;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 public class MultipartParser {
+    private static final BoundaryMatcher CRLF = new BoundaryMatcher("\r\n");
+    private static final BoundaryMatcher HEADER_END = new BoundaryMatcher("\r\n\r\n");
+    
     private final byte[] data;
     private final String boundary;
     
@@ -14,6 +20,7 @@ public class MultipartParser {
     
     /**
      * Parses multipart form data and returns a map of form parts.
+     * Part contents are read-only views into the original data, nothing is copied.
      * 
      * @return Map where key is the form field name and value is the FormPart
      */
@@ -21,21 +28,27 @@ public class MultipartParser {
         Map<String, FormPart> parts = new HashMap<>();
         
         try {
-            String dataAsString = new String(data);
-            String boundaryDelimiter = "--" + boundary;
+            BoundaryMatcher firstDelimiter = new BoundaryMatcher("--" + boundary);
+            BoundaryMatcher delimiter = new BoundaryMatcher("\r\n--" + boundary);
             
-            // Split by boundary
-            String[] segments = dataAsString.split(boundaryDelimiter);
+            int start = firstDelimiter.indexOf(data, 0, data.length);
+            if (start == -1) {
+                return parts;
+            }
             
-            for (String segment : segments) {
-                if (segment.trim().isEmpty() || segment.trim().equals("--")) {
-                    continue;
+            int pos = start + firstDelimiter.length();
+            while (pos + 2 <= data.length && !(data[pos] == '-' && data[pos + 1] == '-')) {
+                // The line break in front of the next boundary belongs to the delimiter
+                int next = delimiter.indexOf(data, pos, data.length);
+                if (next == -1) {
+                    break;
                 }
                 
-                FormPart part = parseSegment(segment.getBytes());
+                FormPart part = parseSegment(pos, next);
                 if (part != null && part.name != null) {
                     parts.put(part.name, part);
                 }
+                pos = next + delimiter.length();
             }
         } catch (Exception e) {
             System.err.println("Error parsing multipart data: " + e.getMessage());
@@ -54,25 +67,26 @@ public class MultipartParser {
         
         for (FormPart part : parts.values()) {
             if (part.filename != null) {
-                return new ParseResult(part.filename, part.contentType, part.content);
+                return new ParseResult(part.filename, part.contentType, part.toByteArray());
             }
         }
         
         return null;
     }
     
-    private FormPart parseSegment(byte[] segmentData) {
+    private FormPart parseSegment(int from, int to) {
         try {
-            String segmentAsString = new String(segmentData);
-            
             // Find the end of headers
-            String headerEndMarker = "\r\n\r\n";
-            int headerEnd = segmentAsString.indexOf(headerEndMarker);
+            int headerEnd = HEADER_END.indexOf(data, from, to);
             if (headerEnd == -1) {
                 return null;
             }
             
-            String headers = segmentAsString.substring(0, headerEnd);
+            // Skip the rest of the boundary line
+            int headerStart = CRLF.indexOf(data, from, headerEnd + CRLF.length()) + CRLF.length();
+            String headers = headerStart < headerEnd
+                    ? new String(data, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8) + "\r\n"
+                    : "";
             
             // Extract name from Content-Disposition
             String name = extractHeaderValue(headers, "name=\"", "\"");
@@ -89,17 +103,9 @@ public class MultipartParser {
                 contentType = filename != null ? "application/octet-stream" : "text/plain";
             }
             
-            // Extract content
-            int contentStart = headerEnd + headerEndMarker.length();
-            byte[] content = new byte[segmentData.length - contentStart];
-            System.arraycopy(segmentData, contentStart, content, 0, content.length);
-            
-            // Remove trailing \r\n if present
-            if (content.length >= 2 && content[content.length - 2] == '\r' && content[content.length - 1] == '\n') {
-                byte[] trimmed = new byte[content.length - 2];
-                System.arraycopy(content, 0, trimmed, 0, trimmed.length);
-                content = trimmed;
-            }
+            // Content is a view of the original bytes up to the next delimiter
+            int contentStart = headerEnd + HEADER_END.length();
+            ByteBuffer content = ByteBuffer.wrap(data, contentStart, to - contentStart).slice().asReadOnlyBuffer();
             
             return new FormPart(name, filename, contentType, content);
             
@@ -109,7 +115,7 @@ public class MultipartParser {
         }
     }
     
-    private String extractHeaderValue(String headers, String startMarker, String endMarker) {
+    static String extractHeaderValue(String headers, String startMarker, String endMarker) {
         int start = headers.indexOf(startMarker);
         if (start == -1) {
             return null;
@@ -128,20 +134,65 @@ public class MultipartParser {
         public final String name;
         public final String filename;
         public final String contentType;
-        public final byte[] content;
+        public final ByteBuffer content;
+        public final File storedFile;
+        public final long size;
+        /** Hex SHA-256 of a streamed file part, computed while it was written. */
+        public final String sha256;
+        /** CRC32C of a streamed file part, or {@link Checksums#UNKNOWN_CRC32C}. */
+        public final long crc32c;
         
-        public FormPart(String name, String filename, String contentType, byte[] content) {
+        public FormPart(String name, String filename, String contentType, ByteBuffer content) {
             this.name = name;
             this.filename = filename;
             this.contentType = contentType;
             this.content = content;
+            this.storedFile = null;
+            this.size = content.remaining();
+            this.sha256 = null;
+            this.crc32c = Checksums.UNKNOWN_CRC32C;
+        }
+        
+        public FormPart(String name, String filename, String contentType, byte[] content) {
+            this(name, filename, contentType, ByteBuffer.wrap(content).asReadOnlyBuffer());
+        }
+        
+        /**
+         * Creates a part whose content was streamed to disk instead of kept in memory.
+         */
+        public FormPart(String name, String filename, String contentType, File storedFile, long size) {
+            this(name, filename, contentType, storedFile, size, null, Checksums.UNKNOWN_CRC32C);
+        }
+        
+        public FormPart(String name, String filename, String contentType, File storedFile, long size,
+                String sha256, long crc32c) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.content = null;
+            this.storedFile = storedFile;
+            this.size = size;
+            this.sha256 = sha256;
+            this.crc32c = crc32c;
         }
         
         /**
          * Returns the content as text (useful for form fields).
          */
         public String asText() {
-            return new String(content).trim();
+            return content != null ? StandardCharsets.UTF_8.decode(content.duplicate()).toString().trim() : "";
+        }
+        
+        /**
+         * Copies the in-memory content into a new array.
+         */
+        public byte[] toByteArray() {
+            if (content == null) {
+                return new byte[0];
+            }
+            byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            return bytes;
         }
         
         /**
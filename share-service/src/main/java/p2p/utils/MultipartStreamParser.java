@@ -0,0 +1,292 @@
+package p2p.utils;
+
+import p2p.utils.MultipartParser.FormPart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Incremental multipart/form-data parser that reads straight from the request stream.
+ *
+ * Unlike {@link MultipartParser}, the body is never held in memory: boundaries are
+ * scanned inside a fixed-size buffer, file parts are written directly into the upload
+ * directory and only small form fields (like "password") are kept as byte arrays.
+ * Memory use per request is therefore bounded by the buffer size, not the file size.
+ * File parts are hashed with SHA-256 as they are written, so no second pass is needed.
+ * A {@link FileSink} can take file parts over as they are written, like to send them on
+ * to remote storage while the rest of the body is still arriving.
+ */
+public class MultipartStreamParser {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_FIELD_SIZE = 64 * 1024;
+    private static final BoundaryMatcher CRLF = new BoundaryMatcher("\r\n");
+    private static final BoundaryMatcher HEADER_END = new BoundaryMatcher("\r\n\r\n");
+
+    private final InputStream input;
+    private final BoundaryMatcher delimiter;
+    private final File uploadDir;
+    private final FileSink sink;
+    private final int maxFiles;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final List<File> storedFiles = new ArrayList<>();
+    private int pos;
+    private int limit;
+
+    /**
+     * Where file parts are written, by default straight into their file.
+     */
+    public interface FileSink {
+        OutputStream open(File target) throws IOException;
+
+        /**
+         * Throws away a file part that isn't going to be used.
+         */
+        default void discard(File target) {
+            target.delete();
+        }
+    }
+
+    public MultipartStreamParser(InputStream input, String boundary, File uploadDir) {
+        this(input, boundary, uploadDir, FileOutputStream::new);
+    }
+
+    public MultipartStreamParser(InputStream input, String boundary, File uploadDir, FileSink sink) {
+        this(input, boundary, uploadDir, sink, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxFiles Most file parts the body may have, checked as soon as one more
+     *                 starts so a body with too many isn't stored first
+     */
+    public MultipartStreamParser(InputStream input, String boundary, File uploadDir, FileSink sink, int maxFiles) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        this.input = input;
+        this.delimiter = new BoundaryMatcher("\r\n--" + boundary);
+        this.uploadDir = uploadDir;
+        this.sink = sink;
+        this.maxFiles = maxFiles;
+
+        // The first boundary is not preceded by a line break, seed one so every
+        // boundary can be matched with the same delimiter.
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Parses the whole stream, storing file parts in the upload directory.
+     * If parsing fails, every file written so far is deleted again.
+     *
+     * @return Map where key is the form field name and value is the FormPart
+     * @throws IllegalArgumentException if the body is not valid multipart data
+     * @throws IOException if reading the request or writing a file fails
+     */
+    public Map<String, FormPart> parseParts() throws IOException {
+        Map<String, FormPart> parts = new HashMap<>();
+        for (FormPart part : parseAll()) {
+            // A repeated field name keeps its last part
+            FormPart previous = parts.put(part.name, part);
+            if (previous != null && previous.storedFile != null) {
+                sink.discard(previous.storedFile);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Parses the whole stream like {@link #parseParts()}, but keeps every part in the
+     * order it was sent, including several parts with the same field name.
+     */
+    public List<FormPart> parseAll() throws IOException {
+        try {
+            return readParts();
+        } catch (IOException | RuntimeException e) {
+            for (File file : storedFiles) {
+                sink.discard(file);
+            }
+            throw e;
+        }
+    }
+
+    private List<FormPart> readParts() throws IOException {
+        List<FormPart> parts = new ArrayList<>();
+
+        // Discard the preamble up to the first boundary
+        if (!copyUntilDelimiter(OutputStream.nullOutputStream(), Long.MAX_VALUE)) {
+            throw new IllegalArgumentException("Multipart boundary not found");
+        }
+
+        while (true) {
+            if (!ensure(2)) {
+                throw new IllegalArgumentException("Unexpected end of multipart body");
+            }
+            if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+                // Closing boundary, the epilogue is ignored
+                return parts;
+            }
+
+            String headers = readHeaders();
+            String name = MultipartParser.extractHeaderValue(headers, "name=\"", "\"");
+            String filename = MultipartParser.extractHeaderValue(headers, "filename=\"", "\"");
+            String contentType = MultipartParser.extractHeaderValue(headers, "Content-Type: ", "\r\n");
+            if (contentType == null) {
+                contentType = filename != null ? "application/octet-stream" : "text/plain";
+            }
+
+            FormPart part;
+            if (name == null) {
+                // Parts without a name can't be addressed, skip their content
+                skipPart();
+                continue;
+            } else if (filename != null) {
+                if (storedFiles.size() >= maxFiles) {
+                    throw new IllegalArgumentException("A request can hold at most " + maxFiles + " files");
+                }
+                part = readFilePart(name, filename, contentType);
+            } else {
+                part = readFieldPart(name, contentType);
+            }
+
+            parts.add(part);
+        }
+    }
+
+    private String readHeaders() throws IOException {
+        // pos is at the line break that ends the boundary line
+        int end;
+        while ((end = HEADER_END.indexOf(buffer, pos, limit)) < 0) {
+            if (limit - pos > MAX_HEADER_SIZE || !fill()) {
+                throw new IllegalArgumentException("Malformed multipart part headers");
+            }
+        }
+
+        // Anything left on the boundary line is transport padding
+        int start = CRLF.indexOf(buffer, pos, end + CRLF.length()) + CRLF.length();
+        String headers = start < end ? new String(buffer, start, end - start, StandardCharsets.UTF_8) : "";
+        pos = end + HEADER_END.length();
+        return headers + "\r\n";
+    }
+
+    private FormPart readFilePart(String name, String filename, String contentType) throws IOException {
+        File target = new File(uploadDir, UUID.randomUUID().toString() + "_" + UploadUtils.sanitizeFileName(filename));
+        storedFiles.add(target);
+
+        long size;
+        Checksums checksums;
+        try (HashingOutputStream out = new HashingOutputStream(sink.open(target))) {
+            if (!copyUntilDelimiter(out, Long.MAX_VALUE)) {
+                throw new IllegalArgumentException("Unexpected end of multipart body");
+            }
+            size = out.count;
+            checksums = out.checksums;
+        }
+        return new FormPart(name, filename, contentType, target, size, checksums.sha256(), checksums.crc32c());
+    }
+
+    private FormPart readFieldPart(String name, String contentType) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        if (!copyUntilDelimiter(value, MAX_FIELD_SIZE)) {
+            throw new IllegalArgumentException("Unexpected end of multipart body");
+        }
+        return new FormPart(name, null, contentType, value.toByteArray());
+    }
+
+    private void skipPart() throws IOException {
+        if (!copyUntilDelimiter(OutputStream.nullOutputStream(), Long.MAX_VALUE)) {
+            throw new IllegalArgumentException("Unexpected end of multipart body");
+        }
+    }
+
+    /**
+     * Writes bytes to the sink until the next delimiter and consumes the delimiter.
+     * Only the tail that could still be the start of a delimiter is kept back in the buffer.
+     *
+     * @return false if the stream ended before a delimiter was found
+     */
+    private boolean copyUntilDelimiter(OutputStream sink, long maxBytes) throws IOException {
+        long written = 0;
+        while (true) {
+            int match = delimiter.indexOf(buffer, pos, limit);
+            int safeEnd = match >= 0 ? match : Math.max(pos, limit - (delimiter.length() - 1));
+
+            int length = safeEnd - pos;
+            if (length > 0) {
+                written += length;
+                if (written > maxBytes) {
+                    throw new IllegalArgumentException("Form field exceeds " + maxBytes + " bytes");
+                }
+                sink.write(buffer, pos, length);
+                pos = safeEnd;
+            }
+
+            if (match >= 0) {
+                pos = match + delimiter.length();
+                return true;
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves unread bytes to the front of the buffer and reads more data behind them.
+     *
+     * @return false if the stream is exhausted or the buffer is full
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buffer.length) {
+            return false;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private static class HashingOutputStream extends java.io.FilterOutputStream {
+        private final Checksums checksums = new Checksums();
+        private long count;
+
+        HashingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            checksums.update(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package p2p.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 hash of a share password, so passwords are never kept in plain text.
+ *
+ * Encoded as "pbkdf2-sha256$iterations$salt$hash" with base64 salt and hash. The
+ * iteration count is stored with every hash, so raising filetogo.password.iterations
+ * only affects passwords set afterwards.
+ */
+public final class PasswordHash {
+    public static final int DEFAULT_ITERATIONS = 210_000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Hashes a password with a new random salt.
+     *
+     * @return The hash, or null if the password is null or empty
+     */
+    public static PasswordHash create(String password) {
+        return create(password, Integer.getInteger("filetogo.password.iterations", DEFAULT_ITERATIONS));
+    }
+
+    public static PasswordHash create(String password, int iterations) {
+        if (password == null || password.isEmpty()) {
+            return null;
+        }
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new PasswordHash(iterations, salt, derive(password, salt, iterations));
+    }
+
+    /**
+     * Reads a hash written by {@link #encode()}.
+     */
+    public static PasswordHash parse(String encoded) {
+        String[] fields = encoded.split("\\$");
+        if (fields.length != 4 || !fields[0].equals(PREFIX)) {
+            throw new IllegalArgumentException("Not a password hash");
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        return new PasswordHash(Integer.parseInt(fields[1]), base64.decode(fields[2]), base64.decode(fields[3]));
+    }
+
+    public String encode() {
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+    /**
+     * Checks a password against the hash. This is deliberately slow, the comparison
+     * itself takes the same time wherever the first difference is.
+     */
+    public boolean matches(String password) {
+        if (password == null || password.isEmpty()) {
+            return false;
+        }
+        return MessageDigest.isEqual(hash, derive(password, salt, iterations));
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Fast, keyed fingerprint of a password, for remembering that it was verified
+     * without keeping the password itself around.
+     */
+    public static byte[] fingerprint(byte[] key, String password) {
+        MessageDigest digest = HashUtils.newSha256();
+        digest.update(key);
+        return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,31 @@
+package p2p.utils;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class QueryParams {
+
+    /**
+     * Parses a raw (still encoded) query string into a map of decoded parameters.
+     * Parameters without a value map to an empty string, repeated names keep the first value.
+     *
+     * @param rawQuery The query from URI.getRawQuery(), may be null
+     * @return Map of parameter names to values
+     */
+    public static Map<String, String> parse(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            String name = URLDecoder.decode(eq == -1 ? param : param.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq == -1 ? "" : URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+            params.putIfAbsent(name, value);
+        }
+        return params;
+    }
+}
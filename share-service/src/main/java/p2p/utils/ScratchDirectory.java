@@ -0,0 +1,112 @@
+package p2p.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory for the temporary files of one server run, like uploads still being
+ * received, inside a directory that several runs may share.
+ *
+ * The run holds a lock on a file in its directory for as long as it lives. A directory
+ * whose lock can be taken belongs to a run that ended, so its files are leftovers. The
+ * files of runs that are still going are never touched, even if they share the data
+ * directory.
+ */
+public final class ScratchDirectory implements Closeable {
+    private static final String LOCK_FILE = ".lock";
+    // Never opened by the cleanup: closing any channel to a file drops every lock this JVM holds on it
+    private static final Set<File> OWN = ConcurrentHashMap.newKeySet();
+
+    private final File dir;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    private ScratchDirectory(File dir, FileChannel lockChannel, FileLock lock) {
+        this.dir = dir;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Creates a new directory for this run under parent and locks it.
+     */
+    public static ScratchDirectory create(File parent) throws IOException {
+        File dir = new File(parent, UUID.randomUUID().toString());
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        OWN.add(dir.getAbsoluteFile());
+        return new ScratchDirectory(dir, channel, channel.lock());
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Deletes the directories under parent whose run has ended.
+     *
+     * @return Number of temporary files deleted
+     */
+    public static int deleteAbandoned(File parent) {
+        File[] dirs = parent.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File dir : dirs) {
+            if (OWN.contains(dir.getAbsoluteFile())) {
+                continue;
+            }
+            File lockFile = new File(dir, LOCK_FILE);
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.tryLock()) {
+                if (lock == null) {
+                    continue;
+                }
+                deleted += deleteFiles(dir);
+            } catch (IOException e) {
+                System.err.println("Could not clean up " + dir + ": " + e.getMessage());
+                continue;
+            }
+            lockFile.delete();
+            dir.delete();
+        }
+        return deleted;
+    }
+
+    private static int deleteFiles(File dir) {
+        int deleted = 0;
+        File[] files = dir.listFiles((d, name) -> !name.equals(LOCK_FILE));
+        if (files != null) {
+            for (File file : files) {
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes what is left in the directory and gives it up.
+     */
+    @Override
+    public void close() throws IOException {
+        deleteFiles(dir);
+        lock.release();
+        lockChannel.close();
+        new File(dir, LOCK_FILE).delete();
+        dir.delete();
+        OWN.remove(dir.getAbsoluteFile());
+    }
+}
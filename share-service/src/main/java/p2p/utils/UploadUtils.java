@@ -1,15 +1,46 @@
 package p2p.utils;
 
+import java.io.File;
 import java.util.Random;
 
 public class UploadUtils {
+    // Share codes are taken from the dynamic port range, the end is exclusive
+    public static final int DYNAMIC_STARTING_PORT = 49152;
+    public static final int DYNAMIC_ENDING_PORT = 65535;
 
     public static Integer generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535;
-
         Random random = new Random();
         return random.nextInt(DYNAMIC_ENDING_PORT-DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
     }
 
+    /**
+     * Reduces a client supplied file name to a bare name that is safe to store and
+     * to put in a Content-Disposition header.
+     */
+    public static String sanitizeFileName(String filename) {
+        String baseName = filename == null ? "" : new File(filename).getName().replaceAll("[\\\\\"\\p{Cntrl}]", "_");
+        return baseName.trim().isEmpty() ? "unnamed-file" : baseName;
+    }
+
+    /**
+     * Reduces a client supplied relative path, like "photos/2024/a.jpg" from a directory
+     * upload, to safe segments joined with '/'. Empty, "." and ".." segments are dropped,
+     * so the path never leads outside the directory it is extracted into.
+     */
+    public static String sanitizeRelativePath(String path) {
+        StringBuilder result = new StringBuilder();
+        if (path != null) {
+            for (String segment : path.split("[/\\\\]")) {
+                if (segment.trim().isEmpty() || segment.equals(".") || segment.equals("..")) {
+                    continue;
+                }
+                if (result.length() > 0) {
+                    result.append('/');
+                }
+                result.append(segment.replaceAll("[\"\\p{Cntrl}]", "_"));
+            }
+        }
+        return result.length() == 0 ? "unnamed-file" : result.toString();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package p2p.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.UploadUtils;
+
+public class ClusterRingTest {
+
+    @Test
+    public void splitsCodesEvenlyAndMovesFewWhenANodeJoins() {
+        Map<String, URI> nodes = new LinkedHashMap<>();
+        for (int i = 1; i <= 3; i++) {
+            nodes.put("node" + i, URI.create("http://127.0.0.1:808" + i));
+        }
+        ClusterRing first = new ClusterRing("node1", nodes);
+        ClusterRing second = new ClusterRing("node2", nodes);
+
+        int codes = UploadUtils.DYNAMIC_ENDING_PORT - UploadUtils.DYNAMIC_STARTING_PORT;
+        int total = 0;
+        for (String id : nodes.keySet()) {
+            int owned = new ClusterRing(id, nodes).getLocalCodeCount();
+            assertTrue(owned > codes / 5, id + " owns only " + owned + " codes");
+            total += owned;
+        }
+        assertEquals(codes, total);
+
+        // Every node agrees on the owner, and only hands out its own codes
+        for (int i = 0; i < 1000; i++) {
+            int code = first.randomLocalCode();
+            assertTrue(first.isLocal(code));
+            assertEquals("node1", second.owner(code));
+        }
+        assertNull(first.owner(UploadUtils.DYNAMIC_STARTING_PORT - 1));
+        assertEquals("node2", first.idOwner(second.idPrefix() + "a1b2"));
+        assertNull(first.idOwner("a1b2-c3d4"));
+
+        // A fourth node takes about a quarter of the codes, all from the others
+        nodes.put("node4", URI.create("http://127.0.0.1:8084"));
+        ClusterRing grown = new ClusterRing("node4", nodes);
+        int moved = 0;
+        for (int code = UploadUtils.DYNAMIC_STARTING_PORT; code < UploadUtils.DYNAMIC_ENDING_PORT; code++) {
+            if (!first.owner(code).equals(grown.owner(code))) {
+                assertEquals("node4", grown.owner(code));
+                moved++;
+            }
+        }
+        assertTrue(moved > codes / 8 && moved < codes * 3 / 8, moved + " codes moved");
+    }
+}
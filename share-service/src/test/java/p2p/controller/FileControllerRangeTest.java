@@ -0,0 +1,187 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileControllerRangeTest {
+
+    private static final String BOUNDARY = "----FileToGoTestBoundary";
+
+    @TempDir
+    Path dir;
+
+    private final byte[] content = new byte[10_000];
+    private final HttpClient client = HttpClient.newHttpClient();
+    private FileController controller;
+    private String downloadUrl;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        new Random(5).nextBytes(content);
+        String previousDataDir = System.getProperty("filetogo.data.dir");
+        System.setProperty("filetogo.data.dir", dir.resolve("data").toString());
+        try {
+            controller = new FileController(0, 0, new ServerEngine.Plain());
+        } finally {
+            if (previousDataDir == null) {
+                System.clearProperty("filetogo.data.dir");
+            } else {
+                System.setProperty("filetogo.data.dir", previousDataDir);
+            }
+        }
+        controller.start();
+
+        String baseUrl = "http://localhost:" + controller.getPort();
+        HttpResponse<String> uploaded = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(multipartBody(content)))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, uploaded.statusCode());
+        Matcher code = Pattern.compile("\"port\"\\s*:\\s*(\\d+)").matcher(uploaded.body());
+        assertTrue(code.find(), uploaded.body());
+        downloadUrl = baseUrl + "/download/" + code.group(1);
+    }
+
+    @AfterEach
+    public void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void sendsSuffixAndOpenEndedRanges() throws Exception {
+        HttpResponse<byte[]> suffix = get("Range", "bytes=-100");
+        assertEquals(206, suffix.statusCode());
+        assertEquals("bytes 9900-9999/10000", suffix.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 9900, 10_000), suffix.body());
+
+        HttpResponse<byte[]> openEnded = get("Range", "bytes=4000-");
+        assertEquals(206, openEnded.statusCode());
+        assertEquals("bytes 4000-9999/10000", openEnded.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 4000, 10_000), openEnded.body());
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRange() throws Exception {
+        HttpResponse<byte[]> response = get("Range", "bytes=10000-");
+        assertEquals(416, response.statusCode());
+        assertEquals("bytes */10000", response.headers().firstValue("Content-Range").orElse(null));
+        assertEquals(0, response.body().length);
+    }
+
+    @Test
+    public void sendsWholeFileForTooManyRanges() throws Exception {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 16; i++) {
+            header.append(',').append(i * 100).append('-').append(i * 100 + 9);
+        }
+        HttpResponse<byte[]> response = get("Range", header.toString());
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(content, response.body());
+    }
+
+    @Test
+    public void sendsWholeFileForStaleOrWeakIfRange() throws Exception {
+        HttpResponse<byte[]> full = get("Accept-Encoding", "identity");
+        String etag = full.headers().firstValue("ETag").orElseThrow();
+        String lastModified = full.headers().firstValue("Last-Modified").orElseThrow();
+
+        assertEquals(206, get("Range", "bytes=0-99", "If-Range", etag).statusCode());
+        assertEquals(206, get("Range", "bytes=0-99", "If-Range", lastModified).statusCode());
+
+        HttpResponse<byte[]> stale = get("Range", "bytes=0-99", "If-Range", "\"stale\"");
+        assertEquals(200, stale.statusCode());
+        assertArrayEquals(content, stale.body());
+        HttpResponse<byte[]> staleDate = get("Range", "bytes=0-99", "If-Range", "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertEquals(200, staleDate.statusCode());
+        // Weak validators never match, not even the file's own tag
+        HttpResponse<byte[]> weak = get("Range", "bytes=0-99", "If-Range", "W/" + etag);
+        assertEquals(200, weak.statusCode());
+        assertArrayEquals(content, weak.body());
+    }
+
+    @Test
+    public void multipartBodyHasAnnouncedLength() throws Exception {
+        URI uri = URI.create(downloadUrl);
+        byte[] response;
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + uri.getPath() + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Range: bytes=0-9, 5000-5099, -20\r\n"
+                    + "Accept-Encoding: identity\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            response = readAll(socket.getInputStream());
+        }
+
+        String text = new String(response, StandardCharsets.ISO_8859_1);
+        int headerEnd = text.indexOf("\r\n\r\n");
+        String head = text.substring(0, headerEnd);
+        assertTrue(head.startsWith("HTTP/1.1 206"), head);
+        Matcher length = Pattern.compile("(?i)content-length: *(\\d+)").matcher(head);
+        assertTrue(length.find(), head);
+        Matcher boundary = Pattern.compile("(?i)content-type: *multipart/byteranges; *boundary=(\\S+)").matcher(head);
+        assertTrue(boundary.find(), head);
+
+        String body = text.substring(headerEnd + 4);
+        assertEquals(Long.parseLong(length.group(1)), (long) body.length());
+        assertTrue(body.endsWith("\r\n--" + boundary.group(1) + "--\r\n"), body);
+        assertPart(body, "bytes 0-9/10000", 0, 10);
+        assertPart(body, "bytes 5000-5099/10000", 5000, 5100);
+        assertPart(body, "bytes 9980-9999/10000", 9980, 10_000);
+    }
+
+    private void assertPart(String body, String contentRange, int from, int to) {
+        String header = "Content-Range: " + contentRange + "\r\n\r\n";
+        int start = body.indexOf(header);
+        assertTrue(start >= 0, "No part for " + contentRange);
+        start += header.length();
+        byte[] part = body.substring(start, start + to - from).getBytes(StandardCharsets.ISO_8859_1);
+        assertArrayEquals(Arrays.copyOfRange(content, from, to), part);
+    }
+
+    private HttpResponse<byte[]> get(String... headers) throws Exception {
+        return client.send(HttpRequest.newBuilder(URI.create(downloadUrl))
+                .header("Accept-Encoding", "identity")
+                .headers(headers)
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] multipartBody(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(content);
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ServerEngineTest {
+
+    private static final String BOUNDARY = "----FileToGoTestBoundary";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void uploadsAndDownloadsOverTls() throws Exception {
+        KeyStore keys = KeyStore.getInstance(selfSignedKeystore(), PASSWORD);
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keys);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        byte[] content = new byte[200_000];
+        new Random(11).nextBytes(content);
+
+        String previousDataDir = System.getProperty("filetogo.data.dir");
+        System.setProperty("filetogo.data.dir", dir.resolve("data").toString());
+        FileController controller;
+        try {
+            controller = new FileController(0, 0, new ServerEngine.Tls(serverContext));
+        } finally {
+            if (previousDataDir == null) {
+                System.clearProperty("filetogo.data.dir");
+            } else {
+                System.setProperty("filetogo.data.dir", previousDataDir);
+            }
+        }
+        controller.start();
+        try {
+            HttpClient client = HttpClient.newBuilder().sslContext(clientContext).build();
+            String baseUrl = "https://localhost:" + controller.getPort();
+
+            HttpResponse<String> uploaded = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+                    .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(multipartBody(content)))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, uploaded.statusCode());
+            Matcher code = Pattern.compile("\"port\"\\s*:\\s*(\\d+)").matcher(uploaded.body());
+            assertTrue(code.find(), uploaded.body());
+
+            HttpResponse<byte[]> downloaded = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/download/" + code.group(1)))
+                    .header("Accept-Encoding", "identity")
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, downloaded.statusCode());
+            assertArrayEquals(content, downloaded.body());
+            assertEquals("TLSv1.3", downloaded.sslSession().get().getProtocol());
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private File selfSignedKeystore() throws Exception {
+        File keystore = dir.resolve("server.p12").toFile();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-validity", "1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keystore.getPath(), "-storepass", new String(PASSWORD))
+                .inheritIO().start();
+        assertEquals(0, process.waitFor(), "keytool exit code");
+        return keystore;
+    }
+
+    private static byte[] multipartBody(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(content);
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+
+import org.junit.jupiter.api.Test;
+
+public class BandwidthShaperTest {
+
+    private static final int RATE = 4 * 1024 * 1024;
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * Time that only moves when the shaper waits, so the delays it schedules can be
+     * checked exactly and nothing depends on how busy the machine is.
+     */
+    private static class FakeClock extends BandwidthShaper.Clock {
+        final AtomicLong now = new AtomicLong();
+
+        @Override
+        long nanoTime() {
+            return now.get();
+        }
+
+        @Override
+        void sleep(long nanos) {
+            now.addAndGet(nanos);
+        }
+
+        @Override
+        void await(Condition condition, long nanos) throws InterruptedException {
+            now.addAndGet(nanos);
+            // Lets go of the lock for a moment, like a real wait, so other flows get in
+            condition.awaitNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @Test
+    public void smallDownloadGetsThroughWhileLargeOnesRun() throws Exception {
+        FakeClock clock = new FakeClock();
+        BandwidthShaper shaper = new BandwidthShaper(RATE, 0, 0, clock);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong largeBytes = new AtomicLong();
+        List<Thread> large = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            InetAddress client = InetAddress.getByName("10.0.0." + (i + 1));
+            int code = 50000 + i;
+            large.add(Thread.ofVirtual().start(() -> {
+                try (BandwidthShaper.Flow flow = shaper.open(client, code, 8L * 1024 * 1024 * 1024)) {
+                    OutputStream out = flow.shape(OutputStream.nullOutputStream());
+                    byte[] chunk = new byte[8192];
+                    while (running.get()) {
+                        out.write(chunk);
+                        largeBytes.addAndGet(chunk.length);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        while (clock.nanoTime() < TimeUnit.MILLISECONDS.toNanos(300)) {
+            Thread.sleep(1);
+        }
+
+        long smallWaited;
+        try (BandwidthShaper.Flow flow = shaper.open(InetAddress.getByName("10.0.0.9"), 50009, 256 * 1024)) {
+            flow.shape(OutputStream.nullOutputStream()).write(new byte[256 * 1024]);
+            smallWaited = flow.getWaitedNanos();
+        }
+        running.set(false);
+        for (Thread thread : large) {
+            thread.join();
+        }
+
+        // Each of its 4 chunks waits at most for the chunk being sent and then its own,
+        // an equal share with 4 large downloads would have it wait for 5 chunks each time
+        long chunkNanos = TimeUnit.SECONDS.toNanos(CHUNK) / RATE;
+        assertTrue(smallWaited <= 4 * 2 * chunkNanos + 4, "Small download waited " + smallWaited + "ns");
+        // Never more than the rate allows, plus the one chunk the bucket may owe
+        long allowed = (long) ((double) RATE * clock.nanoTime() / 1e9) + CHUNK;
+        assertTrue(largeBytes.get() + 256 * 1024 <= allowed, largeBytes.get() + " bytes sent in " + clock.nanoTime() + "ns");
+        assertEquals(0, shaper.getActiveFlows());
+    }
+
+    @Test
+    public void limitsEachClientAndFollowsNewRates() throws IOException {
+        FakeClock clock = new FakeClock();
+        BandwidthShaper shaper = new BandwidthShaper(0, 1024 * 1024, 0, clock);
+        try (BandwidthShaper.Flow flow = shaper.open(InetAddress.getLoopbackAddress(), 50000, 1024 * 1024)) {
+            OutputStream out = flow.shape(OutputStream.nullOutputStream());
+            // A new bucket starts empty, so half a second at 1 MiB/s
+            out.write(new byte[512 * 1024]);
+            long waited = flow.getWaitedNanos();
+            assertTrue(Math.abs(waited - TimeUnit.MILLISECONDS.toNanos(500)) < 1000, "512 KiB waited " + waited + "ns");
+
+            shaper.setRates(0, 0, 0);
+            out.write(new byte[4 * 1024 * 1024]);
+            assertEquals(waited, flow.getWaitedNanos(), "Waited without limits");
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.storage.StorageBackend;
+import p2p.utils.Checksums;
+
+public class BlobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void keepsOneFileForSameContentUntilLastRelease() throws IOException {
+        File blobDir = dir.resolve("blobs").toFile();
+        BlobStore store = new BlobStore(blobDir);
+        byte[] content = content(1000, 1);
+
+        BlobStore.Blob first = store(store, "first", content);
+        File second = upload("second", content);
+        assertSame(first, store(store, second));
+        assertFalse(second.exists());
+        assertEquals(1, store.getBlobCount());
+        assertEquals(1L, store.getDedupHits());
+        assertEquals(1, blobDir.listFiles().length);
+        assertEquals(1000L, store.getLocalBytes());
+        File sidecar = first.sidecar("gz");
+        Files.write(sidecar.toPath(), new byte[10]);
+
+        first.release();
+        assertTrue(first.getFile().isFile());
+        assertFalse(first.isReleased());
+
+        first.release();
+        assertTrue(first.isReleased());
+        assertFalse(first.getFile().exists());
+        assertFalse(sidecar.exists());
+        assertEquals(0, store.getBlobCount());
+        assertEquals(0L, store.getLocalBytes());
+    }
+
+    @Test
+    public void deletesOnlyUnreferencedFiles() throws IOException {
+        File blobDir = dir.resolve("blobs").toFile();
+        BlobStore store = new BlobStore(blobDir);
+        BlobStore.Blob kept = store(store, "kept", content(1000, 2));
+        File keptSidecar = kept.sidecar("gz");
+        Files.write(keptSidecar.toPath(), new byte[10]);
+        // Left behind by a crash: content no share refers to, with a sidecar of its own
+        String orphan = "0".repeat(64);
+        Files.write(new File(blobDir, orphan).toPath(), new byte[10]);
+        Files.write(new File(blobDir, orphan + ".gz").toPath(), new byte[10]);
+
+        assertEquals(2, store.deleteUnreferenced());
+        assertTrue(kept.getFile().isFile());
+        assertTrue(keptSidecar.isFile());
+        assertFalse(new File(blobDir, orphan).exists());
+        assertFalse(new File(blobDir, orphan + ".gz").exists());
+        assertEquals(0, store.deleteUnreferenced());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedCopiesOfRemoteBlobs() throws IOException {
+        MemoryBackend backend = new MemoryBackend();
+        // Room for two local copies
+        BlobStore store = new BlobStore(dir.resolve("cache").toFile(), backend, 2500);
+        byte[] aContent = content(1000, 3);
+        BlobStore.Blob a = store(store, "a", aContent);
+        BlobStore.Blob b = store(store, "b", content(1000, 4));
+        assertEquals(2000L, store.getCachedBytes());
+
+        // Using a makes b the least recently used one
+        a.fetch();
+        BlobStore.Blob c = store(store, "c", content(1000, 5));
+        assertTrue(a.isLocal());
+        assertFalse(b.isLocal());
+        assertTrue(c.isLocal());
+        assertEquals(1L, store.getEvictions());
+        assertEquals(2000L, store.getCachedBytes());
+        assertEquals(3, backend.objects.size());
+
+        // Fetching b again pushes out a, which hasn't been used since
+        b.fetch();
+        assertEquals(1L, store.getFetches());
+        assertFalse(a.isLocal());
+        assertTrue(b.isLocal());
+        assertTrue(c.isLocal());
+        assertEquals(2L, store.getEvictions());
+        assertEquals(2000L, store.getCachedBytes());
+
+        assertArrayEquals(aContent, Files.readAllBytes(a.fetch().toPath()));
+        a.release();
+        b.release();
+        c.release();
+        assertTrue(backend.objects.isEmpty());
+        assertEquals(0L, store.getCachedBytes());
+    }
+
+    private BlobStore.Blob store(BlobStore store, String name, byte[] content) throws IOException {
+        return store(store, upload(name, content));
+    }
+
+    private static BlobStore.Blob store(BlobStore store, File upload) throws IOException {
+        Checksums checksums = Checksums.of(upload);
+        return store.store(upload, checksums.sha256(), checksums.crc32c());
+    }
+
+    private File upload(String name, byte[] content) throws IOException {
+        File file = dir.resolve("upload-" + name).toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Keeps objects in memory, like a bucket no local file can stand in for.
+     */
+    private static class MemoryBackend implements StorageBackend {
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+        @Override
+        public MultipartUpload startUpload(String key) {
+            Map<Integer, byte[]> parts = new TreeMap<>();
+            return new MultipartUpload() {
+                @Override
+                public void putPart(int partNumber, File file, long offset, long length) throws IOException {
+                    byte[] part = new byte[(int) length];
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                        raf.seek(offset);
+                        raf.readFully(part);
+                    }
+                    synchronized (parts) {
+                        parts.put(partNumber, part);
+                    }
+                }
+
+                @Override
+                public void complete() {
+                    ByteArrayOutputStream object = new ByteArrayOutputStream();
+                    synchronized (parts) {
+                        parts.values().forEach(object::writeBytes);
+                    }
+                    objects.put(key, object.toByteArray());
+                }
+
+                @Override
+                public void abort() {
+                }
+            };
+        }
+
+        @Override
+        public long partSize() {
+            return 5 * 1024 * 1024;
+        }
+
+        @Override
+        public int uploadParallelism() {
+            return 1;
+        }
+
+        @Override
+        public InputStream get(String key, long offset, long length) throws IOException {
+            byte[] object = objects.get(key);
+            if (object == null) {
+                throw new FileNotFoundException(key);
+            }
+            return new ByteArrayInputStream(Arrays.copyOfRange(object, (int) offset, (int) (offset + length)));
+        }
+
+        @Override
+        public long stat(String key) {
+            byte[] object = objects.get(key);
+            return object != null ? object.length : -1;
+        }
+
+        @Override
+        public void delete(String key) {
+            objects.remove(key);
+        }
+
+        @Override
+        public void copy(String sourceKey, String targetKey) throws IOException {
+            byte[] object = objects.get(sourceKey);
+            if (object == null) {
+                throw new FileNotFoundException(sourceKey);
+            }
+            objects.put(targetKey, object);
+        }
+    }
+}
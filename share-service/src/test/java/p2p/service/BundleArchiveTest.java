@@ -0,0 +1,145 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.Checksums;
+
+public class BundleArchiveTest {
+
+    // Too long for the name field alone, fits with the prefix field
+    private static final String SPLIT_PATH = "photos/" + "a".repeat(120) + "/IMG_0001.jpg";
+    // No '/' leaves a name short enough for the name field, needs a pax header
+    private static final String PAX_PATH = "docs/" + "b".repeat(150) + ".txt";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void tarHasPromisedLengthAndAllMembers() throws IOException {
+        Map<String, byte[]> files = files();
+        List<FileSharer.FileInfo> members = members(files);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BundleArchive.writeTar(members, out);
+
+        assertEquals(BundleArchive.tarLength(members), out.size());
+        assertEquals(0, out.size() % (20 * 512));
+        Map<String, byte[]> read = readTar(out.toByteArray());
+        assertEquals(files.keySet(), read.keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), read.get(file.getKey()));
+        }
+    }
+
+    @Test
+    public void zipHasAllMembers() throws IOException {
+        Map<String, byte[]> files = files();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BundleArchive.writeZip(members(files), out);
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                read.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+        assertEquals(files.keySet(), read.keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), read.get(file.getKey()));
+        }
+    }
+
+    private static Map<String, byte[]> files() {
+        Random random = new Random(17);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("readme.txt", "Holiday pictures\n".getBytes(StandardCharsets.UTF_8));
+        files.put("empty.txt", new byte[0]);
+        byte[] block = new byte[512];
+        random.nextBytes(block);
+        files.put("one-block.bin", block);
+        byte[] large = new byte[100_003];
+        random.nextBytes(large);
+        files.put(SPLIT_PATH, large);
+        files.put(PAX_PATH, "Long name\n".getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private List<FileSharer.FileInfo> members(Map<String, byte[]> files) throws IOException {
+        BlobStore store = new BlobStore(dir.resolve("blobs").toFile());
+        List<FileSharer.FileInfo> members = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            File upload = dir.resolve("upload" + i++).toFile();
+            Files.write(upload.toPath(), file.getValue());
+            Checksums checksums = Checksums.of(upload);
+            BlobStore.Blob blob = store.store(upload, checksums.sha256(), checksums.crc32c());
+            members.add(new FileSharer.FileInfo(blob, file.getKey(), null, null, Long.MAX_VALUE, 0));
+        }
+        return members;
+    }
+
+    /**
+     * Reads back what the archive writes: ustar headers, split paths and pax paths.
+     */
+    private static Map<String, byte[]> readTar(byte[] tar) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        String paxPath = null;
+        int offset = 0;
+        while (offset + 512 <= tar.length && tar[offset] != 0) {
+            byte[] header = Arrays.copyOfRange(tar, offset, offset + 512);
+            assertEquals(checksum(header), Long.parseLong(field(header, 148, 8).trim(), 8));
+            int size = Integer.parseInt(field(header, 124, 12), 8);
+            byte[] content = Arrays.copyOfRange(tar, offset + 512, offset + 512 + size);
+            offset += 512 + (size + 511) / 512 * 512;
+
+            if (header[156] == 'x') {
+                String record = new String(content, StandardCharsets.UTF_8);
+                paxPath = record.substring(record.indexOf(" path=") + 6, record.length() - 1);
+                continue;
+            }
+            String prefix = field(header, 345, 155);
+            String path = prefix.isEmpty() ? field(header, 0, 100) : prefix + "/" + field(header, 0, 100);
+            files.put(paxPath != null ? paxPath : path, content);
+            paxPath = null;
+        }
+        return files;
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long checksum(byte[] header) {
+        long sum = 0;
+        for (int i = 0; i < header.length; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,49 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HotFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void weighsNewFileAgainstEverythingItWouldEvict() throws IOException {
+        HotFileCache cache = new HotFileCache(4000, 4000);
+        for (String name : new String[] {"a", "b", "c", "d"}) {
+            File small = file(name, 1000);
+            assertNotNull(cache.get(name, small, 1000));
+            assertNotNull(cache.get(name, small, 1000));
+        }
+        assertEquals(4, cache.getEntryCount());
+
+        // Needs the room of three entries requested twice each, beating one of them isn't enough
+        File large = file("e", 3000);
+        for (int i = 1; i <= 6; i++) {
+            assertNull(cache.get("e", large, 3000), "Admitted after " + i + " requests");
+        }
+        assertEquals(6L, cache.getRejections());
+        assertEquals(4, cache.getEntryCount());
+
+        assertNotNull(cache.get("e", large, 3000));
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(3L, cache.getEvictions());
+        assertEquals(4000L, cache.getUsedBytes());
+    }
+
+    private File file(String name, int size) throws IOException {
+        File file = dir.resolve(name).toFile();
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+}
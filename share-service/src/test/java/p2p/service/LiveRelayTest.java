@@ -0,0 +1,77 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+public class LiveRelayTest {
+
+    @Test
+    public void streamsThroughSmallRingWithBackpressure() throws Exception {
+        byte[] content = new byte[1_000_003];
+        new Random(3).nextBytes(content);
+        // A ring far smaller than the file, with writes and reads that don't line up with it
+        LiveRelay relay = new LiveRelay(50000, InetAddress.getLoopbackAddress(), "file.bin", null, content.length, 4099, 10_000);
+        assertTrue(relay.attachSender());
+        assertFalse(relay.attachSender());
+        assertTrue(relay.attachReceiver());
+
+        CompletableFuture<Void> sender = CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < content.length; i += 7000) {
+                    relay.write(content, i, Math.min(7000, content.length - i));
+                }
+                relay.finish();
+                relay.awaitDelivered();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int n;
+        while ((n = relay.read(buffer, 0, buffer.length)) != -1) {
+            received.write(buffer, 0, n);
+        }
+        relay.delivered();
+        sender.get();
+        assertArrayEquals(content, received.toByteArray());
+        assertEquals(content.length, relay.getTransferred());
+    }
+
+    @Test
+    public void abortReachesTheWaitingSide() throws Exception {
+        LiveRelay relay = new LiveRelay(50000, InetAddress.getLoopbackAddress(), "file.bin", "secret", -1, 1024, 10_000);
+        assertFalse(relay.checkPassword(null));
+        assertTrue(relay.checkPassword("secret"));
+        relay.attachSender();
+        relay.attachReceiver();
+
+        // The sender blocks on the full ring until the receiver goes away
+        CompletableFuture<Void> sender = CompletableFuture.runAsync(() -> {
+            try {
+                relay.write(new byte[4096], 0, 4096);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(sender.isDone());
+        relay.abort("The receiver disconnected");
+        ExecutionException failure = assertThrows(ExecutionException.class, sender::get);
+        assertTrue(failure.getCause().getMessage().contains("The receiver disconnected"));
+        assertThrows(IOException.class, () -> relay.read(new byte[10], 0, 10));
+    }
+}
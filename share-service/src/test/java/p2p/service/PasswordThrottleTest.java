@@ -0,0 +1,39 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.Test;
+
+public class PasswordThrottleTest {
+
+    @Test
+    public void wrongPasswordsOnlyLockOutTheClientThatSentThem() throws Exception {
+        PasswordThrottle throttle = new PasswordThrottle(100, 3, 100, 60_000);
+        InetAddress attacker = InetAddress.getByName("10.0.0.1");
+        InetAddress owner = InetAddress.getByName("10.0.0.2");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(throttle.tryCheck(attacker, "share:50000"));
+            throttle.failed(attacker, "share:50000");
+        }
+        assertFalse(throttle.tryCheck(attacker, "share:50000"));
+        assertTrue(throttle.tryCheck(attacker, "share:50001"));
+        assertTrue(throttle.tryCheck(owner, "share:50000"));
+    }
+
+    @Test
+    public void limitsChecksPerClientAndFailuresPerTarget() throws Exception {
+        PasswordThrottle throttle = new PasswordThrottle(2, 100, 3, 60_000);
+        InetAddress client = InetAddress.getByName("10.0.0.1");
+        assertTrue(throttle.tryCheck(client, "share:50000"));
+        assertTrue(throttle.tryCheck(client, "relay:50000"));
+        assertFalse(throttle.tryCheck(client, "share:50001"));
+
+        for (int i = 0; i < 3; i++) {
+            throttle.failed(InetAddress.getByName("10.0.1." + i), "share:50002");
+        }
+        assertFalse(throttle.tryCheck(InetAddress.getByName("10.0.2.1"), "share:50002"));
+    }
+}
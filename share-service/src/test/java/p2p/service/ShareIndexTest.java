@@ -0,0 +1,211 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.Checksums;
+
+public class ShareIndexTest {
+
+    private static final long FAR = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    private final Map<Integer, FileSharer.FileInfo> live = new ConcurrentHashMap<>();
+
+    @Test
+    public void keepsSharesAcrossCloseAndReopen() throws IOException {
+        ShareIndex index = open();
+        BlobStore.Blob blob = blob("hello");
+        offer(index, 50001, new FileSharer.FileInfo(blob, "hello.txt", "text/plain", "secret", FAR, 5));
+        offer(index, 50002, new FileSharer.FileInfo(file("plain.txt").getPath(), null, FAR, 0));
+        offer(index, 50003, new FileSharer.FileInfo(file("gone.txt").getPath(), null, FAR, 0));
+        download(index, 50001, 2);
+        remove(index, 50003);
+        index.close();
+
+        Map<Integer, FileSharer.FileInfo> restored = load();
+        assertEquals(Set.of(50001, 50002), restored.keySet());
+        FileSharer.FileInfo hello = restored.get(50001);
+        assertEquals("hello.txt", hello.getFilename());
+        assertEquals("text/plain", hello.getContentType());
+        assertEquals(blob.getHash(), hello.getSha256());
+        assertEquals(blob.getCrc32c(), hello.getCrc32c());
+        assertEquals(2, hello.getDownloads());
+        assertEquals(5, hello.getMaxDownloads());
+        assertTrue(hello.getPasswordHash().matches("secret"));
+        assertFalse(restored.get(50002).hasPassword());
+    }
+
+    @Test
+    public void dropsTornRecordAtTheEndOfTheJournal() throws IOException {
+        ShareIndex index = open();
+        offer(index, 50001, new FileSharer.FileInfo(file("a.txt").getPath(), null, FAR, 0));
+        offer(index, 50002, new FileSharer.FileInfo(file("b.txt").getPath(), null, FAR, 0));
+        // No close, like a crash, and the last record only half written
+        File journal = dir.resolve("index/shares.journal").toFile();
+        long intact = journal.length();
+        offer(index, 50003, new FileSharer.FileInfo(file("c.txt").getPath(), null, FAR, 0));
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(intact + (raf.length() - intact) / 2);
+        }
+
+        ShareIndex reopened = new ShareIndex(dir.resolve("index").toFile());
+        live.clear();
+        reopened.load(new BlobStore(dir.resolve("blobs").toFile()), 0, live::put);
+        assertEquals(Set.of(50001, 50002), live.keySet());
+        assertEquals(intact, journal.length());
+
+        // Records written after the cut are read back too
+        reopened.start(() -> live);
+        offer(reopened, 50004, new FileSharer.FileInfo(file("d.txt").getPath(), null, FAR, 0));
+        assertEquals(Set.of(50001, 50002, 50004), load().keySet());
+    }
+
+    @Test
+    public void replaysOldJournalOverNewSnapshot() throws IOException {
+        ShareIndex index = open();
+        offer(index, 50001, new FileSharer.FileInfo(file("a.txt").getPath(), null, FAR, 10));
+        offer(index, 50002, new FileSharer.FileInfo(file("b.txt").getPath(), null, FAR, 0));
+        download(index, 50001, 3);
+        remove(index, 50002);
+        // Flushes the removal and count, which are written in order before it
+        offer(index, 50003, new FileSharer.FileInfo(file("c.txt").getPath(), null, FAR, 0));
+        Path journal = dir.resolve("index/shares.journal");
+        Path oldJournal = dir.resolve("old.journal");
+        Files.copy(journal, oldJournal);
+        // The final snapshot holds the same state, then the old journal comes back as if
+        // the crash hit between the snapshot's rename and the journal's truncation
+        index.close();
+        Files.copy(oldJournal, journal, StandardCopyOption.REPLACE_EXISTING);
+
+        Map<Integer, FileSharer.FileInfo> restored = load();
+        assertEquals(Set.of(50001, 50003), restored.keySet());
+        assertEquals(3, restored.get(50001).getDownloads());
+    }
+
+    @Test
+    public void upgradesVersionOneIndex() throws IOException {
+        File indexDir = dir.resolve("index").toFile();
+        indexDir.mkdirs();
+        File plain = file("old.txt");
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(journal);
+        out.writeInt(0x46544a4c);
+        out.writeInt(1);
+        // Version 1: plain-text password, no bundle members, no CRC32C
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(record);
+        payload.writeByte(1);
+        payload.writeInt(50001);
+        payload.writeLong(FAR);
+        payload.writeInt(0);
+        payload.writeInt(0);
+        payload.writeLong(plain.length());
+        payload.writeLong(plain.lastModified());
+        payload.writeByte(0);
+        writeString(payload, plain.getPath());
+        writeString(payload, "old.txt");
+        writeString(payload, null);
+        writeString(payload, "secret");
+        CRC32C crc = new CRC32C();
+        crc.update(record.toByteArray());
+        out.writeInt(record.size());
+        out.writeInt((int) crc.getValue());
+        out.write(record.toByteArray());
+        Files.write(new File(indexDir, "shares.journal").toPath(), journal.toByteArray());
+
+        // Loading rewrites the index in the current format right away
+        Map<Integer, FileSharer.FileInfo> restored = load();
+        assertEquals("old.txt", restored.get(50001).getFilename());
+        assertTrue(restored.get(50001).getPasswordHash().matches("secret"));
+        assertEquals(Checksums.UNKNOWN_CRC32C, restored.get(50001).getCrc32c());
+        ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(new File(indexDir, "shares.snapshot").toPath()));
+        assertEquals(0x4654534e, snapshot.getInt());
+        assertEquals(ShareIndex.FORMAT_VERSION, snapshot.getInt());
+        byte[] rewritten = Files.readAllBytes(new File(indexDir, "shares.snapshot").toPath());
+        assertFalse(new String(rewritten, StandardCharsets.ISO_8859_1).contains("secret"), "Password left in plain text");
+
+        Map<Integer, FileSharer.FileInfo> again = load();
+        assertNull(again.get(50001).getBlob());
+        assertTrue(again.get(50001).getPasswordHash().matches("secret"));
+    }
+
+    private ShareIndex open() throws IOException {
+        ShareIndex index = new ShareIndex(dir.resolve("index").toFile());
+        index.load(new BlobStore(dir.resolve("blobs").toFile()), 0, live::put);
+        index.start(() -> live);
+        return index;
+    }
+
+    /**
+     * Opens the index like a restart, closing it again afterwards.
+     */
+    private Map<Integer, FileSharer.FileInfo> load() throws IOException {
+        live.clear();
+        ShareIndex index = open();
+        Map<Integer, FileSharer.FileInfo> restored = Map.copyOf(live);
+        index.close();
+        return restored;
+    }
+
+    private void offer(ShareIndex index, int code, FileSharer.FileInfo info) throws IOException {
+        live.put(code, info);
+        index.offered(code, info);
+    }
+
+    private void download(ShareIndex index, int code, int downloads) {
+        FileSharer.FileInfo info = live.get(code);
+        live.put(code, new FileSharer.FileInfo(info.getFilePath(), info.getFilename(), info.getContentType(), info.getBlob(),
+                info.getPasswordHash(), info.getExpiresAt(), info.getMaxDownloads(), info.getSize(), info.getLastModified(), downloads));
+        index.downloaded(code, downloads);
+    }
+
+    private void remove(ShareIndex index, int code) {
+        live.remove(code);
+        index.removed(code);
+    }
+
+    private BlobStore.Blob blob(String content) throws IOException {
+        File upload = file("upload-" + content);
+        Checksums checksums = Checksums.of(upload);
+        return new BlobStore(dir.resolve("blobs").toFile()).store(upload, checksums.sha256(), checksums.crc32c());
+    }
+
+    private File file(String name) throws IOException {
+        File file = dir.resolve(name).toFile();
+        Files.writeString(file.toPath(), name);
+        return file;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,208 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class UploadSessionManagerTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private final FileSharer fileSharer = new FileSharer();
+    private final AtomicLong released = new AtomicLong();
+
+    @Test
+    public void assemblesChunksWrittenOutOfOrderAndConcurrently() throws Exception {
+        UploadSessionManager manager = manager();
+        byte[] content = content(10 * CHUNK + 123);
+        UploadSession session = manager.create("data.bin", content.length, CHUNK, null);
+        assertEquals(11, session.getChunkCount());
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < session.getChunkCount(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(3));
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        List<Future<Long>> filled = new ArrayList<>();
+        try {
+            for (int index : order) {
+                filled.add(writers.submit(() -> session.writeChunk(index, chunk(content, index))));
+            }
+            long total = 0;
+            for (Future<Long> future : filled) {
+                total += future.get();
+            }
+            assertEquals(content.length, total);
+        } finally {
+            writers.shutdown();
+        }
+        // Writing a chunk again fills nothing new
+        assertEquals(0L, session.writeChunk(4, chunk(content, 4)));
+        assertTrue(session.isComplete());
+
+        int code = manager.commit(session);
+        assertEquals(0L, released.get());
+        assertNull(manager.get(session.getId()));
+        FileSharer.FileInfo share = fileSharer.getFileInfo(code);
+        assertEquals("data.bin", share.getFilename());
+        assertArrayEquals(content, Files.readAllBytes(share.getBlob().fetch().toPath()));
+    }
+
+    @Test
+    public void rejectsChunksOfTheWrongLength() throws IOException {
+        UploadSessionManager manager = manager();
+        byte[] content = content(2 * CHUNK + 10);
+        UploadSession session = manager.create("data.bin", content.length, CHUNK, null);
+
+        assertThrows(IllegalArgumentException.class, () -> session.writeChunk(0, new ByteArrayInputStream(new byte[CHUNK - 1])));
+        assertThrows(IllegalArgumentException.class, () -> session.writeChunk(0, new ByteArrayInputStream(new byte[CHUNK + 1])));
+        // The last chunk only holds what is left of the file
+        assertThrows(IllegalArgumentException.class, () -> session.writeChunk(2, new ByteArrayInputStream(new byte[CHUNK])));
+        assertThrows(IllegalArgumentException.class, () -> session.writeChunk(3, chunk(content, 0)));
+        assertEquals(0, session.receivedCount());
+
+        assertEquals(10L, session.writeChunk(2, chunk(content, 2)));
+        assertEquals(1, session.receivedCount());
+    }
+
+    @Test
+    public void refusesCommitWhileChunkIsBeingWritten() throws Exception {
+        UploadSessionManager manager = manager();
+        byte[] content = content(2 * CHUNK);
+        UploadSession session = manager.create("data.bin", content.length, CHUNK, null);
+        session.writeChunk(0, chunk(content, 0));
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        InputStream slowBody = new InputStream() {
+            private final InputStream delegate = chunk(content, 1);
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return delegate.read(b, off, len);
+            }
+        };
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> write = writer.submit(() -> session.writeChunk(1, slowBody));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // The handler answers this with 409 Conflict
+            IllegalStateException busy = assertThrows(IllegalStateException.class, () -> manager.commit(session));
+            assertTrue(busy.getMessage().contains("being written"), busy.getMessage());
+
+            proceed.countDown();
+            assertEquals(CHUNK, write.get().longValue());
+        } finally {
+            writer.shutdown();
+        }
+        int code = manager.commit(session);
+        assertTrue(fileSharer.hasCode(code));
+    }
+
+    @Test
+    public void acceptsChunksAgainAfterEarlyCommit() throws IOException {
+        UploadSessionManager manager = manager();
+        byte[] content = content(3 * CHUNK);
+        UploadSession session = manager.create("data.bin", content.length, CHUNK, "secret");
+        session.writeChunk(0, chunk(content, 0));
+        session.writeChunk(2, chunk(content, 2));
+
+        IllegalStateException early = assertThrows(IllegalStateException.class, () -> manager.commit(session));
+        assertEquals("1 chunks are still missing", early.getMessage());
+        assertSame(session, manager.get(session.getId()));
+
+        session.writeChunk(1, chunk(content, 1));
+        int code = manager.commit(session);
+        assertArrayEquals(content, Files.readAllBytes(fileSharer.getFileInfo(code).getBlob().fetch().toPath()));
+        assertTrue(fileSharer.getFileInfo(code).getPasswordHash().matches("secret"));
+        // A committed session takes no more chunks and can't be committed twice
+        assertThrows(IllegalStateException.class, () -> session.writeChunk(0, chunk(content, 0)));
+        assertThrows(IllegalStateException.class, () -> manager.commit(session));
+    }
+
+    @Test
+    public void reapsIdleSessions() throws Exception {
+        String previous = System.getProperty("filetogo.upload.session.idle.minutes");
+        System.setProperty("filetogo.upload.session.idle.minutes", "0");
+        UploadSessionManager manager;
+        try {
+            manager = manager();
+        } finally {
+            if (previous == null) {
+                System.clearProperty("filetogo.upload.session.idle.minutes");
+            } else {
+                System.setProperty("filetogo.upload.session.idle.minutes", previous);
+            }
+        }
+        byte[] content = content(2 * CHUNK);
+        UploadSession session = manager.create("data.bin", content.length, CHUNK, null);
+        session.writeChunk(0, chunk(content, 0));
+        Thread.sleep(5);
+
+        manager.abortIdleSessions();
+        assertNull(manager.get(session.getId()));
+        assertEquals(0, manager.getSessionCount());
+        assertFalse(session.getFile().exists());
+        // Only the chunk that was never written is given back
+        assertEquals((long) CHUNK, released.get());
+        assertThrows(IllegalStateException.class, () -> session.writeChunk(1, chunk(content, 1)));
+    }
+
+    private UploadSessionManager manager() {
+        UploadSessionManager manager = new UploadSessionManager(fileSharer,
+                new BlobStore(dir.resolve("blobs").toFile()), dir.toFile());
+        manager.setOnSessionEnd(released::addAndGet);
+        return manager;
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static InputStream chunk(byte[] content, int index) {
+        int start = index * CHUNK;
+        return new ByteArrayInputStream(Arrays.copyOfRange(content, start, Math.min(start + CHUNK, content.length)));
+    }
+}
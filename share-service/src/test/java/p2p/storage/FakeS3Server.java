@@ -0,0 +1,214 @@
+package p2p.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory stand-in for an S3 bucket, with just the requests {@link S3StorageBackend}
+ * makes. Every request's signature is checked, so signing bugs show up as 403s.
+ */
+class FakeS3Server implements AutoCloseable {
+    static final String BUCKET = "shares";
+    static final String ACCESS_KEY = "test-access";
+    static final String SECRET_KEY = "test-secret";
+    static final String REGION = "us-east-1";
+
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final Pattern PART = Pattern.compile("<Part><PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag></Part>");
+
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final SigV4Signer signer = new SigV4Signer(REGION, ACCESS_KEY, SECRET_KEY);
+    private final HttpServer server;
+
+    FakeS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    S3StorageBackend backend(long partSize, int parallelism) {
+        return new S3StorageBackend(endpoint(), BUCKET, REGION, ACCESS_KEY, SECRET_KEY, "filetogo/", partSize, parallelism);
+    }
+
+    int openUploads() {
+        return uploads.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (!signatureMatches(exchange)) {
+                error(exchange, 403, "SignatureDoesNotMatch");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String prefix = "/" + BUCKET + "/";
+            if (!path.startsWith(prefix)) {
+                error(exchange, 404, "NoSuchBucket");
+                return;
+            }
+            String key = path.substring(prefix.length());
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+
+            if (method.equals("POST") && query.containsKey("uploads")) {
+                // Ids with characters that need encoding, like real ones have
+                String uploadId = "id+" + uploadIds.incrementAndGet() + "/x==";
+                uploads.put(uploadId, new ConcurrentHashMap<>());
+                respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+                Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+                if (parts == null) {
+                    error(exchange, 404, "NoSuchUpload");
+                    return;
+                }
+                int partNumber = Integer.parseInt(query.get("partNumber"));
+                parts.put(partNumber, body);
+                exchange.getResponseHeaders().add("ETag", "\"etag-" + partNumber + "-" + body.length + "\"");
+                respond(exchange, 200, "");
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                Map<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+                if (parts == null) {
+                    error(exchange, 404, "NoSuchUpload");
+                    return;
+                }
+                ByteArrayOutputStream object = new ByteArrayOutputStream();
+                Matcher part = PART.matcher(new String(body, StandardCharsets.UTF_8));
+                while (part.find()) {
+                    int partNumber = Integer.parseInt(part.group(1));
+                    byte[] content = parts.get(partNumber);
+                    if (content == null || !part.group(2).equals("&quot;etag-" + partNumber + "-" + content.length + "&quot;")) {
+                        error(exchange, 400, "InvalidPart");
+                        return;
+                    }
+                    object.write(content);
+                }
+                objects.put(key, object.toByteArray());
+                respond(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                respond(exchange, 204, null);
+            } else if (method.equals("PUT") && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+                String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"), StandardCharsets.UTF_8);
+                byte[] content = objects.get(source.substring(prefix.length()));
+                if (content == null) {
+                    error(exchange, 404, "NoSuchKey");
+                    return;
+                }
+                objects.put(key, content);
+                respond(exchange, 200, "<CopyObjectResult><ETag>&quot;copied&quot;</ETag></CopyObjectResult>");
+            } else if (method.equals("GET") || method.equals("HEAD")) {
+                byte[] content = objects.get(key);
+                if (content == null) {
+                    error(exchange, 404, "NoSuchKey");
+                    return;
+                }
+                if (method.equals("HEAD")) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                int start = 0;
+                int end = content.length - 1;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(bounds[0]);
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+                exchange.getResponseBody().write(content, start, end - start + 1);
+            } else if (method.equals("DELETE")) {
+                objects.remove(key);
+                respond(exchange, 204, null);
+            } else {
+                error(exchange, 501, "NotImplemented");
+            }
+        }
+    }
+
+    /**
+     * Signs the request again from what arrived and compares the result.
+     */
+    private boolean signatureMatches(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String amzDate = exchange.getRequestHeaders().getFirst("x-amz-date");
+        if (authorization == null || amzDate == null) {
+            return false;
+        }
+        Matcher signedHeaders = Pattern.compile("SignedHeaders=([^,]+)").matcher(authorization);
+        if (!signedHeaders.find()) {
+            return false;
+        }
+        Map<String, String> headers = new TreeMap<>();
+        for (String name : signedHeaders.group(1).split(";")) {
+            if (!Set.of("host", "x-amz-date", "x-amz-content-sha256").contains(name)) {
+                headers.put(name, exchange.getRequestHeaders().getFirst(name));
+            }
+        }
+        URI uri = URI.create("http://" + exchange.getRequestHeaders().getFirst("Host") + exchange.getRequestURI().getRawPath()
+                + (exchange.getRequestURI().getRawQuery() != null ? "?" + exchange.getRequestURI().getRawQuery() : ""));
+        Instant date = AMZ_DATE.parse(amzDate, Instant::from);
+        String method = exchange.getRequestMethod();
+        return authorization.equals(signer.sign(method, uri, headers, date).get("Authorization"));
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                query.put(name, value);
+            }
+        }
+        return query;
+    }
+
+    private static void error(HttpExchange exchange, int status, String code) throws IOException {
+        respond(exchange, status, "<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null || exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
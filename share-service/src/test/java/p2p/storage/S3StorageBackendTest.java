@@ -0,0 +1,106 @@
+package p2p.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.service.BlobStore;
+import p2p.utils.Checksums;
+
+public class S3StorageBackendTest {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void uploadsInPartsAndReadsRangesBack() throws IOException {
+        byte[] content = new byte[2 * PART_SIZE + 12345];
+        new Random(7).nextBytes(content);
+        File file = dir.resolve("upload").toFile();
+        Files.write(file.toPath(), content);
+
+        try (FakeS3Server s3 = new FakeS3Server()) {
+            S3StorageBackend backend = s3.backend(PART_SIZE, 3);
+            // A key that needs encoding in the path and in the copy source
+            String key = "dir/a b+c";
+            PartUploader.upload(backend, key, file);
+            assertArrayEquals(content, s3.objects.get("filetogo/" + key));
+            assertEquals(0, s3.openUploads());
+            assertEquals(content.length, backend.stat(key));
+
+            // Across the boundary between the first two parts
+            int offset = PART_SIZE - 100;
+            try (InputStream in = backend.get(key, offset, 1000)) {
+                assertArrayEquals(Arrays.copyOfRange(content, offset, offset + 1000), in.readAllBytes());
+            }
+
+            backend.copy(key, "copy");
+            assertEquals(content.length, backend.stat("copy"));
+            backend.delete(key);
+            backend.delete("copy");
+            assertEquals(-1, backend.stat(key));
+            assertThrows(FileNotFoundException.class, () -> backend.get("copy", 0, 1));
+        }
+    }
+
+    @Test
+    public void blobStoreStreamsUploadsAndFetchesEvictedBlobs() throws IOException {
+        byte[] first = new byte[PART_SIZE + 4096];
+        byte[] second = new byte[1000];
+        Random random = new Random(11);
+        random.nextBytes(first);
+        random.nextBytes(second);
+
+        try (FakeS3Server s3 = new FakeS3Server()) {
+            // Room for one local copy only
+            BlobStore store = new BlobStore(dir.resolve("blobs").toFile(), s3.backend(PART_SIZE, 2), first.length);
+            BlobStore.Blob firstBlob = storeThroughSink(store, first);
+            BlobStore.Blob secondBlob = storeThroughSink(store, second);
+
+            // Only the blobs are left in the bucket, not the uploads they were copied from
+            assertEquals(2, s3.objects.size());
+            assertArrayEquals(first, s3.objects.get("filetogo/" + firstBlob.getHash()));
+            assertEquals(0, s3.openUploads());
+
+            assertFalse(firstBlob.isLocal());
+            assertTrue(secondBlob.isLocal());
+            assertArrayEquals(first, Files.readAllBytes(firstBlob.fetch().toPath()));
+            assertEquals(1, store.getFetches());
+            assertFalse(secondBlob.isLocal());
+
+            firstBlob.release();
+            secondBlob.release();
+            assertTrue(s3.objects.isEmpty());
+        }
+    }
+
+    private BlobStore.Blob storeThroughSink(BlobStore store, byte[] content) throws IOException {
+        File file = dir.resolve("incoming-" + content.length).toFile();
+        Checksums checksums = new Checksums();
+        checksums.update(content, 0, content.length);
+        try (OutputStream out = store.open(file)) {
+            // In pieces, the way the multipart parser writes
+            for (int i = 0; i < content.length; i += 64 * 1024) {
+                out.write(content, i, Math.min(64 * 1024, content.length - i));
+            }
+        }
+        return store.store(file, checksums.sha256(), checksums.crc32c());
+    }
+}
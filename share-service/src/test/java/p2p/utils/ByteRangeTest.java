@@ -0,0 +1,54 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void parsesSuffixAndOpenEndedRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=-200, 900-, 10-19", 1000);
+        assertEquals(3, ranges.size());
+        assertRange(800, 999, ranges.get(0));
+        assertRange(900, 999, ranges.get(1));
+        assertRange(10, 19, ranges.get(2));
+        // A suffix longer than the file is the whole file, an end past it is cut off
+        assertRange(0, 999, ByteRange.parse("bytes=-5000", 1000).get(0));
+        assertRange(500, 999, ByteRange.parse("bytes=500-5000", 1000).get(0));
+        assertEquals("bytes 800-999/1000", ranges.get(0).contentRange(1000));
+    }
+
+    @Test
+    public void dropsRangesPastTheEnd() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-10", 0).isEmpty());
+        assertEquals(1, ByteRange.parse("bytes=1000-1100, 0-0", 1000).size());
+    }
+
+    @Test
+    public void ignoresInvalidOrTooManyRanges() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-10", 1000));
+        assertNull(ByteRange.parse("bytes=10-5", 1000));
+        assertNull(ByteRange.parse("bytes=abc-", 1000));
+        assertNull(ByteRange.parse("bytes=100", 1000));
+
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 16; i++) {
+            header.append(',').append(i * 10).append('-').append(i * 10);
+        }
+        assertEquals(16, ByteRange.parse(header.toString(), 1000).size());
+        assertNull(ByteRange.parse(header + ",999-", 1000));
+    }
+
+    private static void assertRange(long start, long end, ByteRange range) {
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+}
@@ -0,0 +1,55 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.MultipartParser.FormPart;
+
+public class MultipartParserTest {
+
+    private static final String BOUNDARY = "XyZ123";
+
+    @Test
+    public void keepsBinaryContentIntact() {
+        // Invalid UTF-8 and bytes that look like line breaks and partial boundaries
+        byte[] content = {(byte) 0xff, (byte) 0xfe, 0x00, '\r', '\n', '-', '-', 'X', 'y', (byte) 0xc3, 0x28, '\r', '\n'};
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"blob.bin\"\r\n"
+                + "Content-Type: image/png\r\n\r\n");
+        out.writeBytes(content);
+        write(out, "\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"password\"\r\n\r\n"
+                + "pässword\r\n--" + BOUNDARY + "--\r\n");
+
+        Map<String, FormPart> parts = new MultipartParser(out.toByteArray(), BOUNDARY).parseParts();
+
+        FormPart file = parts.get("file");
+        assertEquals("blob.bin", file.filename);
+        assertEquals("image/png", file.contentType);
+        assertArrayEquals(content, file.toByteArray());
+        assertTrue(file.content.isReadOnly());
+        assertEquals("pässword", parts.get("password").asText());
+    }
+
+    @Test
+    public void matcherFindsBoundaryAcrossRepeatedPrefixes() {
+        BoundaryMatcher matcher = new BoundaryMatcher("\r\n--ab");
+        byte[] data = "\r\n-\r\n--a\r\n--ab".getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(8, matcher.indexOf(data, 0, data.length));
+        assertEquals(-1, matcher.indexOf(data, 0, data.length - 1));
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,133 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.MultipartParser.FormPart;
+
+public class MultipartStreamParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundaryKzmxgAa2mIAnqOMJ";
+
+    @TempDir
+    Path uploadDir;
+
+    @Test
+    public void streamsFilePartToDiskAndKeepsFieldsInMemory() throws IOException {
+        byte[] content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+        byte[] body = multipartBody(content, "secret");
+
+        MultipartStreamParser parser = new MultipartStreamParser(new TrickleInputStream(body), BOUNDARY, uploadDir.toFile());
+        Map<String, FormPart> parts = parser.parseParts();
+
+        FormPart file = parts.get("file");
+        assertEquals("data.bin", file.filename);
+        assertEquals(content.length, file.size);
+        assertArrayEquals(content, Files.readAllBytes(file.storedFile.toPath()));
+        assertEquals(HexFormat.of().formatHex(HashUtils.newSha256().digest(content)), file.sha256);
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+        assertEquals(crc.getValue(), file.crc32c);
+        assertTrue(file.storedFile.getName().endsWith("_data.bin"));
+        assertEquals("secret", parts.get("password").asText());
+    }
+
+    @Test
+    public void deletesStoredFileWhenBodyIsTruncated() {
+        byte[] body = multipartBody(new byte[100 * 1024], "secret");
+        byte[] truncated = java.util.Arrays.copyOf(body, 80 * 1024);
+
+        MultipartStreamParser parser = new MultipartStreamParser(new ByteArrayInputStream(truncated), BOUNDARY, uploadDir.toFile());
+        assertThrows(IllegalArgumentException.class, parser::parseParts);
+
+        File[] left = uploadDir.toFile().listFiles();
+        assertEquals(0, left.length);
+    }
+
+    @Test
+    public void rejectsOneFileTooManyBeforeStoringIt() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            write(out, "--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\"part" + i + ".bin\"\r\n\r\n");
+            out.writeBytes(new byte[i < 2 ? 1024 : 4 * 1024 * 1024]);
+            write(out, "\r\n");
+        }
+        write(out, "--" + BOUNDARY + "--\r\n");
+        ByteArrayInputStream body = new ByteArrayInputStream(out.toByteArray());
+
+        MultipartStreamParser parser = new MultipartStreamParser(body, BOUNDARY, uploadDir.toFile(), FileOutputStream::new, 2);
+        assertThrows(IllegalArgumentException.class, parser::parseAll);
+
+        // Stopped at the third part's headers, its content was never read
+        assertTrue(body.available() > 4 * 1024 * 1024 - 128 * 1024, body.available() + " bytes left unread");
+        assertEquals(0, uploadDir.toFile().listFiles().length);
+    }
+
+    private static byte[] multipartBody(byte[] content, String password) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n");
+        out.writeBytes(content);
+        write(out, "\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"password\"\r\n\r\n"
+                + password
+                + "\r\n--" + BOUNDARY + "--\r\n");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns data in small, uneven reads so boundaries straddle buffer refills.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private int pos;
+        private int step;
+
+        TrickleInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            step = step % 4093 + 977;
+            int count = Math.min(Math.min(len, step), data.length - pos);
+            System.arraycopy(data, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+    }
+}